@@ -0,0 +1,236 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * <p>按时间窗口统计节点树中的活跃数量，比如每个文件夹在最近一小时内收到的消息数量。</p>
+ * <p>窗口被划分为固定数量的时间桶，组成一个环。记录只能发生在叶子节点上，
+ * 会同时累加到当前时间桶和叶子节点及其所有父辈节点的窗口合计中，所以读取任意节点的窗口合计都是O(1)的。</p>
+ * <p>时间桶在每次记录或读取时按需轮转，过期的时间桶只保存了有记录的叶子节点，
+ * 过期时从这些叶子节点及其父辈节点中减去，不需要遍历整棵树，轮转的开销均摊为O(1)。</p>
+ * <p>节点被移动或者移除（包括动态子节点的回收）之后，下一次记录或读取时会按照时间桶中的记录
+ * 重新计算所有父辈节点的窗口合计，已经移除的叶子节点的记录会被丢弃，开销与窗口内有记录的叶子节点数量成正比。
+ * 不再使用时需要调用{@link #detach()}停止监听节点树的结构变化。</p>
+ * <p>窗口使用{@link TreeCounter}的节点树结构，但与未读数量相互独立，重置未读数量不会影响窗口合计。
+ * 与{@link TreeCounter}一样，该类不是线程安全的。</p>
+ */
+@SuppressWarnings("unused")
+public class ActivityWindow implements TreeCounter.OnTreeStructureChangeListener {
+
+    private static final String LOG_TAG = "ActivityWindow";
+
+    private final TreeCounter mTreeCounter;
+    private final CountClock mClock;
+    private final long mBucketMillis;
+    private final Bucket[] mBuckets;
+    private final HashMap<CountNode, int[]> mWindowCounts = new HashMap<>();
+    private int mHead;
+    private long mHeadStartMillis;
+    private boolean mStructureChanged;
+    private boolean mDebuggable = false;
+
+    /**
+     * 单个时间桶，只保存在这段时间内有记录的叶子节点
+     */
+    private static final class Bucket {
+        final HashMap<CountNode, int[]> leafCounts = new HashMap<>();
+    }
+
+    /**
+     * @param treeCounter 提供节点树结构的统计器
+     * @param windowMillis 窗口的时长
+     * @param bucketCount 时间桶的数量，决定了窗口滑动的粒度
+     */
+    public ActivityWindow(@NonNull TreeCounter treeCounter, long windowMillis, int bucketCount) {
+        this(treeCounter, windowMillis, bucketCount, CountClock.SYSTEM);
+    }
+
+    public ActivityWindow(@NonNull TreeCounter treeCounter, long windowMillis, int bucketCount,
+                          @NonNull CountClock clock) {
+        //noinspection ConstantConditions
+        if (treeCounter == null) {
+            throw new IllegalArgumentException("Argument 'treeCounter' should not be null!");
+        }
+        //noinspection ConstantConditions
+        if (clock == null) {
+            throw new IllegalArgumentException("Argument 'clock' should not be null!");
+        }
+        if (bucketCount <= 0 || windowMillis < bucketCount) {
+            throw new IllegalArgumentException("Invalid window: " + windowMillis + "ms / " + bucketCount);
+        }
+        mTreeCounter = treeCounter;
+        mClock = clock;
+        mBucketMillis = windowMillis / bucketCount;
+        mBuckets = new Bucket[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            mBuckets[i] = new Bucket();
+        }
+        mHeadStartMillis = clock.currentTimeMillis();
+        treeCounter.addStructureObserver(this);
+    }
+
+    public void setDebuggable(boolean debuggable) {
+        this.mDebuggable = debuggable;
+    }
+
+    /**
+     * 停止监听节点树的结构变化
+     */
+    public void detach() {
+        mTreeCounter.removeStructureObserver(this);
+    }
+
+    @Override
+    public void onNodeAdded(CountNode node) {
+        // 新添加的节点还没有记录，已有节点的父辈节点不变
+    }
+
+    @Override
+    public void onNodeRemoved(CountNode node) {
+        mStructureChanged = true;
+    }
+
+    @Override
+    public void onNodeMoved(CountNode node, CountNode oldParent) {
+        mStructureChanged = true;
+    }
+
+    /**
+     * 在叶子节点上记录一次活跃
+     */
+    public void record(@NonNull String id) {
+        record(id, 1);
+    }
+
+    /**
+     * 在叶子节点上记录活跃数量
+     * @param delta 数量，必须大于0
+     */
+    public void record(@NonNull String id, int delta) {
+        if (delta <= 0) {
+            return;
+        }
+        final CountNode node = mTreeCounter.findNode(id);
+        if (node == null) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot find the node [id=" + id + "] to record.");
+            return;
+        }
+        if (!node.isLeaf()) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot record activity on a node that is not a leaf in node tree.");
+            return;
+        }
+        advance();
+        addTo(mBuckets[mHead].leafCounts, node, delta);
+        for (CountNode n = node; n != null; n = n.getParent()) {
+            addTo(mWindowCounts, n, delta);
+        }
+    }
+
+    /**
+     * @return 根节点在当前窗口内的活跃数量
+     */
+    public int getCount() {
+        return getCount(mTreeCounter.getRootNode().getId());
+    }
+
+    /**
+     * @return 节点在当前窗口内的活跃数量，包括所有子孙节点
+     */
+    public int getCount(@NonNull String id) {
+        final CountNode node = mTreeCounter.findNode(id);
+        if (node == null) {
+            return 0;
+        }
+        advance();
+        final int[] count = mWindowCounts.get(node);
+        return count != null ? count[0] : 0;
+    }
+
+    /**
+     * 清空所有记录
+     */
+    public void clear() {
+        for (Bucket bucket : mBuckets) {
+            bucket.leafCounts.clear();
+        }
+        mWindowCounts.clear();
+    }
+
+    /**
+     * 按照当前时间轮转时间桶，并减去过期时间桶中的记录
+     */
+    private void advance() {
+        if (mStructureChanged) {
+            mStructureChanged = false;
+            rebuildWindowCounts();
+        }
+        final long now = mClock.currentTimeMillis();
+        final long elapsedBuckets = (now - mHeadStartMillis) / mBucketMillis;
+        if (elapsedBuckets <= 0) {
+            return;
+        }
+        if (elapsedBuckets >= mBuckets.length) {
+            // 整个窗口都已过期，直接清空，不需要逐个减去
+            clear();
+        } else {
+            for (int i = 0; i < elapsedBuckets; i++) {
+                mHead = (mHead + 1) % mBuckets.length;
+                expire(mBuckets[mHead]);
+            }
+        }
+        mHeadStartMillis += elapsedBuckets * mBucketMillis;
+    }
+
+    /**
+     * 节点移动或移除之后，原有的父辈节点合计已经失效，丢弃已经移除的叶子节点的记录，
+     * 再按照时间桶中的叶子节点沿着新的父辈节点重新累加
+     */
+    private void rebuildWindowCounts() {
+        mWindowCounts.clear();
+        for (Bucket bucket : mBuckets) {
+            final Iterator<Map.Entry<CountNode, int[]>> iterator = bucket.leafCounts.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<CountNode, int[]> entry = iterator.next();
+                if (mTreeCounter.findNode(entry.getKey().getId()) != entry.getKey()) {
+                    iterator.remove();
+                    continue;
+                }
+                final int delta = entry.getValue()[0];
+                for (CountNode n = entry.getKey(); n != null; n = n.getParent()) {
+                    addTo(mWindowCounts, n, delta);
+                }
+            }
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        for (Map.Entry<CountNode, int[]> entry : bucket.leafCounts.entrySet()) {
+            final int delta = entry.getValue()[0];
+            for (CountNode n = entry.getKey(); n != null; n = n.getParent()) {
+                final int[] count = mWindowCounts.get(n);
+                if (count == null) {
+                    continue;
+                }
+                count[0] -= delta;
+                if (count[0] <= 0) {
+                    mWindowCounts.remove(n);
+                }
+            }
+        }
+        bucket.leafCounts.clear();
+    }
+
+    private static void addTo(HashMap<CountNode, int[]> counts, CountNode node, int delta) {
+        final int[] count = counts.get(node);
+        if (count != null) {
+            count[0] += delta;
+        } else {
+            counts.put(node, new int[] {delta});
+        }
+    }
+}
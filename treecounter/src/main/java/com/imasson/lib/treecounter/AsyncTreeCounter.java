@@ -0,0 +1,339 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>后台单线程写入模式的{@link TreeCounter}包装。</p>
+ * <p>所有修改操作都会被放入一个无锁的多生产者单消费者队列，由唯一的写线程按照提交顺序依次执行，
+ * 数据源的回调、碰触策略和监听器都不会再占用调用者的线程（比如UI线程）。
+ * 写线程每次会取出队列中当前所有的操作，放在一次批量更新中执行，参考{@link TreeCounter#beginBatchUpdate()}。</p>
+ * <p>读取操作直接返回写线程发布的数量值，任何线程都可以调用，不需要等待写线程。
+ * 监听器会在调用者指定的{@link Executor}中回调，回调时应该通过{@link #getCount(String)}读取数量值，
+ * 而不要直接读取{@link CountNode}，因为节点本身只能在写线程中访问。</p>
+ * <p>包装之后不应该再直接调用被包装的{@link TreeCounter}，如有需要可以通过{@link #execute(Runnable)}在写线程中执行。</p>
+ */
+@SuppressWarnings("unused")
+public class AsyncTreeCounter {
+
+    private static final String LOG_TAG = "AsyncTreeCounter";
+
+    private final TreeCounter mTreeCounter;
+    private final ConcurrentLinkedQueue<Runnable> mQueue = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<String, Integer> mPublishedCounts = new ConcurrentHashMap<>();
+    private final Thread mWriterThread;
+    private final Executor mListenerExecutor;
+    private volatile TreeCounter.OnNodeUnreadCountChangeListener mListener;
+    private volatile boolean mRunning = true;
+    private volatile boolean mDebuggable = false;
+
+    private final Publisher mPublisher = new Publisher();
+
+    /**
+     * 在写线程中发布数量值，并把变化转发到调用者指定的线程
+     */
+    private class Publisher implements TreeCounter.OnNodeUnreadCountChangeListener,
+            TreeCounter.OnTreeResetListener {
+        @Override
+        public void onNodeUnreadCountChanged(final CountNode node) {
+            mPublishedCounts.put(node.getId(), node.getDisplayCount());
+            final TreeCounter.OnNodeUnreadCountChangeListener listener = mListener;
+            if (listener != null) {
+                mListenerExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onNodeUnreadCountChanged(node);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onTreeReset(final TreeCounter counter) {
+            // 重置之后所有节点都是0，而读取不存在的节点也会返回0
+            mPublishedCounts.clear();
+            final TreeCounter.OnNodeUnreadCountChangeListener listener = mListener;
+            if (listener instanceof TreeCounter.OnTreeResetListener) {
+                mListenerExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ((TreeCounter.OnTreeResetListener) listener).onTreeReset(counter);
+                    }
+                });
+            } else if (listener != null) {
+                for (final CountNode node : counter.generateCountNodeList()) {
+                    mListenerExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onNodeUnreadCountChanged(node);
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * 在写线程中执行的{@link Executor}，已经在写线程中时直接执行
+     */
+    private final Executor mWriterExecutor = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            if (Thread.currentThread() == mWriterThread) {
+                command.run();
+            } else {
+                enqueue(command);
+            }
+        }
+    };
+
+    /**
+     * @param treeCounter 被包装的统计器，包装之后只能在写线程中访问
+     * @param listenerExecutor 回调监听器的线程，比如主线程的Handler
+     */
+    public AsyncTreeCounter(@NonNull TreeCounter treeCounter, @NonNull Executor listenerExecutor) {
+        //noinspection ConstantConditions
+        if (treeCounter == null) {
+            throw new IllegalArgumentException("Argument 'treeCounter' should not be null!");
+        }
+        //noinspection ConstantConditions
+        if (listenerExecutor == null) {
+            throw new IllegalArgumentException("Argument 'listenerExecutor' should not be null!");
+        }
+        mTreeCounter = treeCounter;
+        mListenerExecutor = listenerExecutor;
+        for (CountNode node : treeCounter.generateCountNodeList()) {
+            mPublishedCounts.put(node.getId(), node.getDisplayCount());
+        }
+
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWriterLoop();
+            }
+        }, "TreeCounter-Writer");
+        mWriterThread.setDaemon(true);
+
+        treeCounter.addObserver(mPublisher);
+        treeCounter.setMutationExecutor(mWriterExecutor);
+        mWriterThread.start();
+    }
+
+    public void setDebuggable(boolean debuggable) {
+        this.mDebuggable = debuggable;
+    }
+
+    public void setListener(@Nullable TreeCounter.OnNodeUnreadCountChangeListener l) {
+        this.mListener = l;
+    }
+
+    private void enqueue(Runnable task) {
+        if (!mRunning) {
+            if (mDebuggable) Log.w(LOG_TAG, "The writer thread has been shut down, task is dropped.");
+            return;
+        }
+        mQueue.offer(task);
+        LockSupport.unpark(mWriterThread);
+    }
+
+    private void runWriterLoop() {
+        while (mRunning || !mQueue.isEmpty()) {
+            Runnable task = mQueue.poll();
+            if (task == null) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            // 一次取出当前所有的操作，放在同一个批量更新中执行，遇到屏障时先结束批量更新再执行屏障
+            mTreeCounter.beginBatchUpdate();
+            try {
+                while (task != null && !(task instanceof Barrier)) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        if (mDebuggable) Log.e(LOG_TAG, "Failed to execute task in the writer thread.", e);
+                    }
+                    task = mQueue.poll();
+                }
+            } finally {
+                // 批量更新结束时会回调碰触策略和观察者，它们抛出的异常不能让写线程退出
+                try {
+                    mTreeCounter.endBatchUpdate();
+                } catch (RuntimeException e) {
+                    if (mDebuggable) Log.e(LOG_TAG, "Failed to end batch update in the writer thread.", e);
+                }
+            }
+            if (task != null) {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * 屏障任务，执行时之前所有操作的结果都已经发布
+     */
+    private static final class Barrier implements Runnable {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        @Override
+        public void run() {
+            latch.countDown();
+        }
+    }
+
+    /**
+     * 在写线程中执行任意操作，可以在其中直接访问被包装的{@link TreeCounter}
+     */
+    public void execute(@NonNull Runnable task) {
+        enqueue(task);
+    }
+
+    /**
+     * 阻塞等待在此之前提交的所有操作执行完成
+     */
+    public void flush() throws InterruptedException {
+        if (Thread.currentThread() == mWriterThread) {
+            throw new IllegalStateException("Cannot flush in the writer thread!");
+        }
+        final Barrier barrier = new Barrier();
+        enqueue(barrier);
+        if (mRunning) {
+            barrier.latch.await();
+        }
+    }
+
+    /**
+     * 执行完队列中剩余的操作后停止写线程，之后提交的操作会被丢弃
+     */
+    public void shutdown() {
+        if (!mRunning) {
+            return;
+        }
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                mTreeCounter.removeObserver(mPublisher);
+                mTreeCounter.setMutationExecutor(null);
+            }
+        });
+        mRunning = false;
+        LockSupport.unpark(mWriterThread);
+    }
+
+    public int getCount() {
+        return getCount(mTreeCounter.getRootNode().getId());
+    }
+
+    public int getCount(@NonNull String id) {
+        final Integer count = mPublishedCounts.get(id);
+        return count != null ? count : 0;
+    }
+
+    public void addCount(@NonNull final String id, final int delta) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                mTreeCounter.addCount(id, delta);
+            }
+        });
+    }
+
+    public void reduceCount(@NonNull final String id, final int delta) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                mTreeCounter.reduceCount(id, delta);
+            }
+        });
+    }
+
+    public void applyCount(@NonNull final String id, final int count) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                mTreeCounter.applyCount(id, count);
+            }
+        });
+    }
+
+    public void touchNode(@NonNull final String id) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                mTreeCounter.touchNode(id);
+            }
+        });
+    }
+
+    public void setBypass(@NonNull final String id, final boolean bypassed) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                mTreeCounter.setBypass(id, bypassed);
+            }
+        });
+    }
+
+    public void reload() {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                mTreeCounter.reload();
+            }
+        });
+    }
+
+    public void reset() {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                mTreeCounter.reset();
+            }
+        });
+    }
+
+    public void addNode(@NonNull final String parentId, @NonNull final CountNode node) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                mTreeCounter.addNode(parentId, node);
+            }
+        });
+    }
+
+    public void moveNode(@NonNull final String id, @NonNull final String newParentId) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                mTreeCounter.moveNode(id, newParentId);
+            }
+        });
+    }
+
+    public void removeNode(@NonNull final String id) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                final CountNode node = mTreeCounter.findNode(id);
+                mTreeCounter.removeNode(id);
+                if (node != null && node != mTreeCounter.getRootNode()) {
+                    mPublishedCounts.remove(node.getId());
+                    node.iterateDescendant(new CountNodeHandler() {
+                        @Override
+                        public boolean handleCountNode(@NonNull CountNode node) {
+                            mPublishedCounts.remove(node.getId());
+                            return false;
+                        }
+                    });
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,22 @@
+package com.imasson.lib.treecounter;
+
+/**
+ * 时间来源的接口，用于按时间统计的功能，测试时可以替换为手动控制的实现
+ */
+public interface CountClock {
+
+    /**
+     * 当前时间，单位为毫秒，只要求单调递增，不要求是真实的日历时间
+     */
+    long currentTimeMillis();
+
+    /**
+     * 使用系统单调时钟的实现，不受修改系统时间的影响
+     */
+    CountClock SYSTEM = new CountClock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.nanoTime() / 1000000;
+        }
+    };
+}
@@ -0,0 +1,46 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+
+/**
+ * 数量变化事件，表示对某个叶子节点的数量值增加（或减少）一个差值，通常来自消息管道
+ */
+public final class CountEvent {
+
+    private final long offset;
+    private final String nodeId;
+    private final int delta;
+
+    /**
+     * @param offset 事件在事件流中的位置，必须单调递增，用于断点续传和去重
+     * @param nodeId 叶子节点ID
+     * @param delta 数量差值，负数表示减少
+     */
+    public CountEvent(long offset, @NonNull String nodeId, int delta) {
+        //noinspection ConstantConditions
+        if (nodeId == null) {
+            throw new IllegalArgumentException("Argument 'nodeId' should not be null!");
+        }
+        this.offset = offset;
+        this.nodeId = nodeId;
+        this.delta = delta;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    @NonNull
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public int getDelta() {
+        return delta;
+    }
+
+    @Override
+    public String toString() {
+        return "CountEvent{" + offset + ", " + nodeId + ", " + delta + "}";
+    }
+}
@@ -0,0 +1,211 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * <p>事件流的批量导入器，用于把有序的{@link CountEvent}流应用到{@link TreeCounter}上。</p>
+ * <p>事件会按批次应用：同一批次内对同一个叶子节点的多个事件会先合并成最终的数量值，
+ * 每个叶子节点只会写回一次数据源，并且所有受影响的父辈节点只会在批次结束时统一计算一次，
+ * 参考{@link TreeCounter#beginBatchUpdate()}。</p>
+ * <p>导入器会记录最后一个已应用事件的offset，offset不大于该值的事件会被跳过，
+ * 调用者可以持久化{@link #getLastAppliedOffset()}，下次启动时传入构造函数来实现精确一次的断点续传。</p>
+ * <p>应用一个批次时如果抛出异常（比如监听器抛出），该批次已经写入的数量值会被恢复，
+ * {@link #getLastAppliedOffset()}保持为上一个成功的批次，调用者可以从该offset之后重试。</p>
+ */
+@SuppressWarnings("unused")
+public class CountEventIngester {
+
+    private static final String LOG_TAG = "CountEventIngester";
+    public static final int DEFAULT_BATCH_SIZE = 512;
+
+    private final TreeCounter mTreeCounter;
+    private final LinkedHashMap<CountNode, Integer> mPendingCounts = new LinkedHashMap<>();
+    /** 当前批次中每个叶子节点应用之前的数量值，用于失败时恢复 */
+    private final LinkedHashMap<CountNode, Integer> mBaseCounts = new LinkedHashMap<>();
+    private int mBatchSize = DEFAULT_BATCH_SIZE;
+    private long mLastAppliedOffset;
+    private long mPendingOffset;
+    private boolean mDebuggable = false;
+
+    public CountEventIngester(@NonNull TreeCounter treeCounter) {
+        this(treeCounter, -1);
+    }
+
+    /**
+     * @param treeCounter 统计器
+     * @param lastAppliedOffset 上次已经应用的最后一个事件的offset，没有时传-1
+     */
+    public CountEventIngester(@NonNull TreeCounter treeCounter, long lastAppliedOffset) {
+        //noinspection ConstantConditions
+        if (treeCounter == null) {
+            throw new IllegalArgumentException("Argument 'treeCounter' should not be null!");
+        }
+        mTreeCounter = treeCounter;
+        mLastAppliedOffset = lastAppliedOffset;
+        mPendingOffset = lastAppliedOffset;
+    }
+
+    public void setDebuggable(boolean debuggable) {
+        this.mDebuggable = debuggable;
+    }
+
+    /**
+     * 设置每个批次最多包含的事件数量
+     */
+    public void setBatchSize(int batchSize) {
+        this.mBatchSize = batchSize > 0 ? batchSize : 1;
+    }
+
+    public long getLastAppliedOffset() {
+        return mLastAppliedOffset;
+    }
+
+    /**
+     * 应用迭代器中的所有事件
+     * @return 实际应用的事件数量，不包括被跳过的事件
+     */
+    public int ingest(@NonNull Iterator<CountEvent> events) {
+        int applied = 0;
+        int batched = 0;
+        while (events.hasNext()) {
+            if (offer(events.next())) {
+                applied++;
+            }
+            if (++batched >= mBatchSize) {
+                flush();
+                batched = 0;
+            }
+        }
+        flush();
+        return applied;
+    }
+
+    /**
+     * 应用队列中当前所有的事件，直到队列为空
+     * @return 实际应用的事件数量，不包括被跳过的事件
+     */
+    public int drain(@NonNull Queue<CountEvent> queue) {
+        int applied = 0;
+        int batched = 0;
+        CountEvent event;
+        while ((event = queue.poll()) != null) {
+            if (offer(event)) {
+                applied++;
+            }
+            if (++batched >= mBatchSize) {
+                flush();
+                batched = 0;
+            }
+        }
+        flush();
+        return applied;
+    }
+
+    /**
+     * 重放{@link CountEventLog}写入的日志文件，已经应用过的事件会被跳过
+     * @return 实际应用的事件数量，不包括被跳过的事件
+     */
+    public int replay(@NonNull File logFile) throws IOException {
+        int applied = 0;
+        int batched = 0;
+        final CountEventLog.Reader reader = new CountEventLog.Reader(logFile);
+        try {
+            CountEvent event;
+            while ((event = reader.next()) != null) {
+                if (offer(event)) {
+                    applied++;
+                }
+                if (++batched >= mBatchSize) {
+                    flush();
+                    batched = 0;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        flush();
+        return applied;
+    }
+
+    private boolean offer(CountEvent event) {
+        if (event.getOffset() <= mPendingOffset) {
+            return false;
+        }
+        mPendingOffset = event.getOffset();
+
+        final CountNode countNode = mTreeCounter.findNode(event.getNodeId());
+        if (countNode == null) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot find the node [id=" + event.getNodeId() + "] to ingest.");
+            return false;
+        }
+        if (!countNode.isLeaf()) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot ingest count to a CountNode that is not a leaf in node tree.");
+            return false;
+        }
+
+        // 与逐个调用addCount/reduceCount一样，每个事件之后的数量值都不会小于0
+        final Integer pendingCount = mPendingCounts.get(countNode);
+        if (pendingCount == null) {
+            mBaseCounts.put(countNode, countNode.getCount());
+        }
+        final int currentCount = pendingCount != null ? pendingCount : countNode.getCount();
+        final int newCount = currentCount + event.getDelta();
+        mPendingCounts.put(countNode, newCount >= 0 ? newCount : 0);
+        return true;
+    }
+
+    private void flush() {
+        if (!mPendingCounts.isEmpty()) {
+            boolean applied = false;
+            try {
+                mTreeCounter.beginBatchUpdate();
+                try {
+                    for (Map.Entry<CountNode, Integer> entry : mPendingCounts.entrySet()) {
+                        mTreeCounter.applyCount(entry.getKey(), entry.getValue());
+                    }
+                } finally {
+                    mTreeCounter.endBatchUpdate();
+                }
+                applied = true;
+            } finally {
+                if (!applied) {
+                    rollback();
+                }
+            }
+            mPendingCounts.clear();
+            mBaseCounts.clear();
+        }
+        mLastAppliedOffset = mPendingOffset;
+    }
+
+    /**
+     * 恢复失败的批次已经写入的数量值，并回到上一个成功的批次，重试时这些事件会被重新应用
+     */
+    private void rollback() {
+        mPendingOffset = mLastAppliedOffset;
+        mPendingCounts.clear();
+        try {
+            mTreeCounter.beginBatchUpdate();
+            try {
+                for (Map.Entry<CountNode, Integer> entry : mBaseCounts.entrySet()) {
+                    mTreeCounter.applyCount(entry.getKey(), entry.getValue());
+                }
+            } finally {
+                mTreeCounter.endBatchUpdate();
+            }
+        } catch (RuntimeException e) {
+            // 数量值在通知之前就已经恢复，这里只可能是监听器再次抛出，不能覆盖原始的异常
+            if (mDebuggable) Log.w(LOG_TAG, "Failed to notify the rollback of a failed batch.", e);
+        } finally {
+            mBaseCounts.clear();
+        }
+    }
+}
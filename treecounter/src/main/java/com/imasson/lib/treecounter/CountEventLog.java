@@ -0,0 +1,162 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.util.zip.CRC32;
+
+/**
+ * <p>只追加的事件日志文件，按顺序保存{@link CountEvent}，可以通过{@link CountEventIngester#replay(File)}重放。</p>
+ * <p>每条记录依次为：offset(long)、nodeId(UTF)、delta(int)、crc(int)。
+ * 读取时遇到不完整、无法解码或者校验失败的记录会在此停止；打开日志时会先截掉崩溃时写了一半的记录，
+ * 保证之后追加的记录能被正常读取。</p>
+ * <p>{@link #append(CountEvent)}只写入缓冲区，需要持久化时调用{@link #sync()}。</p>
+ */
+public final class CountEventLog implements Closeable {
+
+    private final FileOutputStream mFileOutput;
+    private final DataOutputStream mOutput;
+    private final CountJournal.RecordBuffer mBuffer = new CountJournal.RecordBuffer();
+    private final DataOutputStream mBufferOutput = new DataOutputStream(mBuffer);
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * 以追加的方式打开日志文件，文件不存在时会被创建，末尾不完整的记录会被截掉
+     */
+    public CountEventLog(@NonNull File file) throws IOException {
+        truncateBrokenTail(file);
+        mFileOutput = new FileOutputStream(file, true);
+        mOutput = new DataOutputStream(new BufferedOutputStream(mFileOutput));
+    }
+
+    public void append(@NonNull CountEvent event) throws IOException {
+        mBuffer.reset();
+        writeRecord(mBufferOutput, event);
+        mCrc.reset();
+        mCrc.update(mBuffer.buffer(), 0, mBuffer.size());
+        mBufferOutput.writeInt((int) mCrc.getValue());
+        mOutput.write(mBuffer.buffer(), 0, mBuffer.size());
+    }
+
+    public void flush() throws IOException {
+        mOutput.flush();
+    }
+
+    /**
+     * 把缓存的记录写入日志文件并执行fsync，返回之后已经追加的记录在掉电后也不会丢失
+     */
+    public void sync() throws IOException {
+        mOutput.flush();
+        mFileOutput.getFD().sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOutput.close();
+    }
+
+    private static void writeRecord(DataOutputStream output, CountEvent event) throws IOException {
+        output.writeLong(event.getOffset());
+        output.writeUTF(event.getNodeId());
+        output.writeInt(event.getDelta());
+    }
+
+    private static void truncateBrokenTail(File file) throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        final long validLength;
+        final Reader reader = new Reader(file);
+        try {
+            //noinspection StatementWithEmptyBody
+            while (reader.next() != null) {
+            }
+            validLength = reader.getValidLength();
+        } finally {
+            reader.close();
+        }
+        if (validLength < file.length()) {
+            final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(validLength);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+    }
+
+    /**
+     * 顺序读取日志文件的读取器
+     */
+    static final class Reader implements Closeable {
+        private final DataInputStream mInput;
+        private final CountJournal.RecordBuffer mRecord = new CountJournal.RecordBuffer();
+        private final DataOutputStream mRecordOutput = new DataOutputStream(mRecord);
+        private final CRC32 mCrc = new CRC32();
+        private long mValidLength;
+        private boolean mEnded;
+
+        Reader(@NonNull File file) throws IOException {
+            mInput = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+
+        /**
+         * @return 下一条事件，读到文件末尾、不完整、无法解码或者校验失败的记录时返回null
+         */
+        CountEvent next() throws IOException {
+            if (mEnded) {
+                return null;
+            }
+            final CountEvent event;
+            final int checksum;
+            try {
+                final long offset = mInput.readLong();
+                final String nodeId = mInput.readUTF();
+                final int delta = mInput.readInt();
+                checksum = mInput.readInt();
+                event = new CountEvent(offset, nodeId, delta);
+            } catch (EOFException e) {
+                mEnded = true;
+                return null;
+            } catch (UTFDataFormatException e) {
+                // 写了一半的节点ID无法解码，与不完整的记录一样处理
+                mEnded = true;
+                return null;
+            }
+
+            mRecord.reset();
+            writeRecord(mRecordOutput, event);
+            mCrc.reset();
+            mCrc.update(mRecord.buffer(), 0, mRecord.size());
+            if ((int) mCrc.getValue() != checksum) {
+                mEnded = true;
+                return null;
+            }
+            mValidLength += mRecord.size() + 4;
+            return event;
+        }
+
+        /**
+         * @return 已经读取的完整记录的总长度
+         */
+        long getValidLength() {
+            return mValidLength;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInput.close();
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * <p>数量值的自动过期，比如功能上的“新”标记、临时的系统提醒，在指定时长之后清零。</p>
+ * <p>支持两种过期方式：</p>
+ * <ul>
+ *     <li>按节点过期：{@link #expireNode(String, long)}，到期时清零整个节点，重复设置会替换之前的到期时间</li>
+ *     <li>按增量过期：{@link #addCount(String, int, long)}，到期时只减去这一次增加的数量中尚未被清除的部分</li>
+ * </ul>
+ * <p>按增量过期的数量在到期之前可能已经通过其他途径被清除，比如用户碰触了节点，之后又收到了不会过期的新数量。
+ * 因此每次增加都会记录尚未清除的余量：叶子节点的数量被其他途径减少时，从最早的增量开始扣除余量，
+ * 到期时只减去剩余的部分，不会减去之后增加的数量。</p>
+ * <p>所有到期时间都保存在同一个分层时间轮中，插入和取消都是O(1)的，不需要为每个节点单独创建定时器。
+ * 调用者只需要一个周期性的定时器，以时间轮的刻度为间隔调用{@link #advance()}，
+ * 同一次调用中到期的所有数量会在一次批量更新中应用，参考{@link TreeCounter#beginBatchUpdate()}。</p>
+ * <p>与{@link TreeCounter}一样，该类不是线程安全的。</p>
+ */
+@SuppressWarnings("unused")
+public class CountExpiry {
+
+    private static final String LOG_TAG = "CountExpiry";
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int WHEEL_LEVELS = 4;
+    private static final long MAX_TICKS = 1L << (WHEEL_BITS * WHEEL_LEVELS);
+
+    private final TreeCounter mTreeCounter;
+    private final CountClock mClock;
+    private final long mTickMillis;
+    private final Timeout[][] mWheels = new Timeout[WHEEL_LEVELS][WHEEL_SIZE];
+    private final HashMap<String, Timeout> mNodeTimeouts = new HashMap<>();
+    private final HashMap<String, LeafState> mLeafStates = new HashMap<>();
+    private long mCurrentTick;
+    private int mPendingCount;
+    private boolean mDebuggable = false;
+
+    /**
+     * 时间轮中的一个到期项，同一个槽中的到期项组成一个双向链表
+     */
+    private static final class Timeout {
+        final String id;
+        /** 到期时减去的数量，即增量尚未被其他途径清除的余量，小于0表示清零整个节点 */
+        int delta;
+        final long deadlineTick;
+        int level;
+        int slot;
+        Timeout prev;
+        Timeout next;
+        /** 是否还在时间轮中，到期或者取消之后为false */
+        boolean linked;
+
+        Timeout(String id, int delta, long deadlineTick) {
+            this.id = id;
+            this.delta = delta;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    /**
+     * 有尚未到期的增量的叶子节点，记录上次看到的数量值，用于发现其他途径的减少
+     */
+    private static final class LeafState {
+        final ArrayDeque<Timeout> timeouts = new ArrayDeque<>();
+        int lastKnownCount;
+        int outstanding;
+    }
+
+    private final TreeCounter.OnNodeUnreadCountChangeListener mLeafObserver =
+            new TreeCounter.OnNodeUnreadCountChangeListener() {
+        @Override
+        public void onNodeUnreadCountChanged(CountNode node) {
+            final LeafState state = mLeafStates.get(node.getId());
+            if (state != null) {
+                syncLeafState(node, state);
+            }
+        }
+    };
+
+    /**
+     * @param treeCounter 需要自动过期的统计器
+     * @param tickMillis 时间轮的刻度，也就是过期时间的精度
+     */
+    public CountExpiry(@NonNull TreeCounter treeCounter, long tickMillis) {
+        this(treeCounter, tickMillis, CountClock.SYSTEM);
+    }
+
+    public CountExpiry(@NonNull TreeCounter treeCounter, long tickMillis, @NonNull CountClock clock) {
+        //noinspection ConstantConditions
+        if (treeCounter == null) {
+            throw new IllegalArgumentException("Argument 'treeCounter' should not be null!");
+        }
+        //noinspection ConstantConditions
+        if (clock == null) {
+            throw new IllegalArgumentException("Argument 'clock' should not be null!");
+        }
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Argument 'tickMillis' should be positive!");
+        }
+        mTreeCounter = treeCounter;
+        mClock = clock;
+        mTickMillis = tickMillis;
+        mCurrentTick = clock.currentTimeMillis() / tickMillis;
+    }
+
+    public void setDebuggable(boolean debuggable) {
+        this.mDebuggable = debuggable;
+    }
+
+    public long getTickMillis() {
+        return mTickMillis;
+    }
+
+    /**
+     * @return 尚未到期的数量
+     */
+    public int getPendingCount() {
+        return mPendingCount;
+    }
+
+    /**
+     * 增加叶子节点的数量值，并在指定时长之后减去这次增加的数量
+     */
+    public void addCount(@NonNull String id, int delta, long ttlMillis) {
+        if (delta <= 0) {
+            return;
+        }
+        final CountNode node = mTreeCounter.findNode(id);
+        if (node == null || !node.isLeaf()) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot find the leaf node [id=" + id + "] to add count.");
+            return;
+        }
+        LeafState state = mLeafStates.get(id);
+        if (state == null) {
+            if (mLeafStates.isEmpty()) {
+                mTreeCounter.addObserver(mLeafObserver);
+            }
+            state = new LeafState();
+            state.lastKnownCount = node.getCount();
+            mLeafStates.put(id, state);
+        } else {
+            syncLeafState(node, state);
+        }
+        final int oldCount = node.getCount();
+        mTreeCounter.addCount(id, delta);
+        state.lastKnownCount = node.getCount();
+
+        final Timeout timeout = new Timeout(id, node.getCount() - oldCount, deadlineTickOf(ttlMillis));
+        state.timeouts.add(timeout);
+        state.outstanding += timeout.delta;
+        schedule(timeout);
+    }
+
+    /**
+     * 在指定时长之后清零节点，包括所有子孙节点，会替换之前设置的到期时间
+     */
+    public void expireNode(@NonNull String id, long ttlMillis) {
+        if (mTreeCounter.findNode(id) == null) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot find the node [id=" + id + "] to expire.");
+            return;
+        }
+        cancel(id);
+        final Timeout timeout = new Timeout(id, -1, deadlineTickOf(ttlMillis));
+        mNodeTimeouts.put(id, timeout);
+        schedule(timeout);
+    }
+
+    /**
+     * 取消节点的到期时间，不影响按增量过期的数量
+     */
+    public void cancel(@NonNull String id) {
+        final Timeout timeout = mNodeTimeouts.remove(id);
+        if (timeout != null) {
+            unlink(timeout);
+        }
+    }
+
+    /**
+     * 推进时间轮到当前时间，并应用所有到期的数量
+     */
+    public void advance() {
+        final long targetTick = mClock.currentTimeMillis() / mTickMillis;
+        List<Timeout> expired = null;
+        while (mCurrentTick < targetTick) {
+            if (mPendingCount == 0) {
+                // 没有待处理的到期项时直接跳到当前时间
+                mCurrentTick = targetTick;
+                break;
+            }
+            mCurrentTick++;
+            cascade();
+            final int slot = (int) (mCurrentTick & WHEEL_MASK);
+            Timeout timeout = mWheels[0][slot];
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+                unlink(timeout);
+                if (expired == null) {
+                    expired = new ArrayList<>();
+                }
+                expired.add(timeout);
+                timeout = next;
+            }
+        }
+        if (expired != null) {
+            applyExpired(expired);
+        }
+    }
+
+    private void applyExpired(List<Timeout> expired) {
+        mTreeCounter.beginBatchUpdate();
+        try {
+            for (Timeout timeout : expired) {
+                if (timeout.delta < 0) {
+                    mNodeTimeouts.remove(timeout.id);
+                    mTreeCounter.clearSubtree(timeout.id);
+                    continue;
+                }
+                final LeafState state = mLeafStates.get(timeout.id);
+                final CountNode node = mTreeCounter.findNode(timeout.id);
+                if (state == null) {
+                    continue;
+                }
+                if (node == null) {
+                    mLeafStates.remove(timeout.id);
+                    continue;
+                }
+                // 先计入到期之前其他途径的减少，再减去剩余的余量
+                syncLeafState(node, state);
+                if (state.timeouts.remove(timeout)) {
+                    state.outstanding -= timeout.delta;
+                    if (timeout.delta > 0) {
+                        mTreeCounter.reduceCount(timeout.id, timeout.delta);
+                    }
+                }
+                // 自己减去的数量已经从余量中扣除，批量更新结束时的通知不再重复扣除
+                state.lastKnownCount = node.getCount();
+                if (state.timeouts.isEmpty()) {
+                    mLeafStates.remove(timeout.id);
+                }
+            }
+        } finally {
+            mTreeCounter.endBatchUpdate();
+            if (mLeafStates.isEmpty()) {
+                mTreeCounter.removeObserver(mLeafObserver);
+            }
+        }
+    }
+
+    /**
+     * 把叶子节点被其他途径减少的数量从最早的增量开始扣除，剩余的余量也不会超过节点当前的数量值
+     */
+    private void syncLeafState(CountNode node, LeafState state) {
+        final int count = node.getCount();
+        int consumed = state.lastKnownCount - count;
+        if (state.outstanding - (consumed > 0 ? consumed : 0) > count) {
+            consumed = state.outstanding - count;
+        }
+        state.lastKnownCount = count;
+        if (consumed <= 0) {
+            return;
+        }
+        final Iterator<Timeout> iterator = state.timeouts.iterator();
+        while (consumed > 0 && iterator.hasNext()) {
+            final Timeout timeout = iterator.next();
+            final int amount = timeout.delta < consumed ? timeout.delta : consumed;
+            timeout.delta -= amount;
+            state.outstanding -= amount;
+            consumed -= amount;
+            if (timeout.delta == 0) {
+                // 已经全部被清除，不需要再等待到期
+                iterator.remove();
+                unlink(timeout);
+            }
+        }
+        if (state.timeouts.isEmpty()) {
+            mLeafStates.remove(node.getId());
+            if (mLeafStates.isEmpty()) {
+                mTreeCounter.removeObserver(mLeafObserver);
+            }
+        }
+    }
+
+    private long deadlineTickOf(long ttlMillis) {
+        final long deadlineMillis = mClock.currentTimeMillis() + (ttlMillis > 0 ? ttlMillis : 0);
+        // 向上取整，保证不会早于指定的时长到期
+        final long deadlineTick = (deadlineMillis + mTickMillis - 1) / mTickMillis;
+        return deadlineTick > mCurrentTick ? deadlineTick : mCurrentTick + 1;
+    }
+
+    private void schedule(Timeout timeout) {
+        insert(timeout);
+        timeout.linked = true;
+        mPendingCount++;
+    }
+
+    /**
+     * 按照到期时间与当前刻度的距离放入对应层级的槽中，超出时间轮范围的放入最高层，到时会被重新放入
+     */
+    private void insert(Timeout timeout) {
+        final long delta = timeout.deadlineTick - mCurrentTick;
+        long tick = delta > 0 ? timeout.deadlineTick : mCurrentTick;
+        if (delta >= MAX_TICKS) {
+            tick = mCurrentTick + MAX_TICKS - 1;
+        }
+        int level = 0;
+        while (level < WHEEL_LEVELS - 1 && (tick - mCurrentTick) >= (1L << (WHEEL_BITS * (level + 1)))) {
+            level++;
+        }
+        final int slot = (int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        timeout.level = level;
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = mWheels[level][slot];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        mWheels[level][slot] = timeout;
+    }
+
+    /**
+     * 从时间轮中移除，已经到期或者取消的到期项不做任何处理
+     */
+    private void unlink(Timeout timeout) {
+        if (!timeout.linked) {
+            return;
+        }
+        timeout.linked = false;
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            mWheels[timeout.level][timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        mPendingCount--;
+    }
+
+    /**
+     * 低层时间轮转完一圈时，把高层对应槽中的到期项重新放入低层
+     */
+    private void cascade() {
+        for (int level = 1; level < WHEEL_LEVELS; level++) {
+            if (((mCurrentTick >>> (WHEEL_BITS * (level - 1))) & WHEEL_MASK) != 0) {
+                return;
+            }
+            final int slot = (int) ((mCurrentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+            Timeout timeout = mWheels[level][slot];
+            mWheels[level][slot] = null;
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+                insert(timeout);
+                timeout = next;
+            }
+        }
+    }
+}
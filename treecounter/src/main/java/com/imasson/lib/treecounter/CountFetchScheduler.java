@@ -0,0 +1,266 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>按优先级调度叶子节点的加载，参考{@link TreeCounter#setFetchScheduler(CountFetchScheduler)}。</p>
+ * <p>没有调度器时{@link TreeCounter#reload()}按照前序遍历的顺序同时加载所有叶子节点，用户正在看的角标可能最后才加载出来。
+ * 设置调度器之后，叶子节点的加载会先进入队列：可见或者高优先级的子树下的叶子节点先加载，
+ * 同一优先级的按照前序遍历的顺序；其余的后台叶子节点只在没有更高优先级的节点排队时才加载，并且有更低的并发数。
+ * 加载的总量不变，只是调整了顺序。</p>
+ * <p>优先级设置在节点上，对整棵子树生效，叶子节点的优先级取自己和父辈节点中最高的。
+ * 除了数据源的回调可以在任意线程进行，其他方法都应该在修改{@link TreeCounter}的线程中调用。
+ * 节点树被丢弃时应该调用{@link #cancel()}，尚未开始的加载不会再开始，已经开始的加载的结果也会被忽略。</p>
+ * <p>批量数据源不经过调度器，参考{@link TreeCounter#setBatchCountFetcher(String, IBatchCountFetcher)}。</p>
+ */
+@SuppressWarnings("unused")
+public final class CountFetchScheduler {
+
+    /** 后台节点，默认的优先级 */
+    public static final int PRIORITY_BACKGROUND = 0;
+    /** 高优先级，比如即将滚动到的节点 */
+    public static final int PRIORITY_HIGH = 1;
+    /** 正在显示的节点 */
+    public static final int PRIORITY_VISIBLE = 2;
+
+    private final int mMaxConcurrency;
+    private final int mMaxBackgroundConcurrency;
+    private final HashMap<String, Integer> mPriorities = new HashMap<>();
+    private final PriorityQueue<FetchTask> mQueue = new PriorityQueue<>();
+    private final HashMap<CountNode, FetchTask> mQueuedTasks = new HashMap<>();
+    private final AtomicInteger mWip = new AtomicInteger();
+    private TreeCounter mTreeCounter;
+    private int mRunningCount;
+    private int mRunningBackgroundCount;
+    private int mGeneration;
+    private long mSequence;
+
+    /**
+     * 一个排队中或者正在进行的加载
+     */
+    private static final class FetchTask implements Comparable<FetchTask> {
+        final CountNode node;
+        final long sequence;
+        int priority;
+        int generation;
+
+        FetchTask(CountNode node, int priority, long sequence) {
+            this.node = node;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(@NonNull FetchTask other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * @param maxConcurrency 同时进行的加载的最大数量
+     * @param maxBackgroundConcurrency 同时进行的后台节点加载的最大数量，不能超过maxConcurrency
+     */
+    public CountFetchScheduler(int maxConcurrency, int maxBackgroundConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("Argument 'maxConcurrency' should be positive!");
+        }
+        if (maxBackgroundConcurrency <= 0 || maxBackgroundConcurrency > maxConcurrency) {
+            throw new IllegalArgumentException("Argument 'maxBackgroundConcurrency' should be in [1, maxConcurrency]!");
+        }
+        mMaxConcurrency = maxConcurrency;
+        mMaxBackgroundConcurrency = maxBackgroundConcurrency;
+    }
+
+    /**
+     * 设置节点的优先级，对整棵子树生效，排队中的加载会按照新的优先级重新排序
+     * @param id 节点ID，可以是分支节点
+     * @param priority 优先级，{@link #PRIORITY_BACKGROUND}表示取消设置
+     */
+    public void setPriority(@NonNull String id, int priority) {
+        synchronized (this) {
+            final Integer existing = priority > PRIORITY_BACKGROUND
+                    ? mPriorities.put(id, priority) : mPriorities.remove(id);
+            if ((existing != null ? existing : PRIORITY_BACKGROUND) == priority || mQueue.isEmpty()) {
+                return;
+            }
+            final List<FetchTask> tasks = new ArrayList<>(mQueue);
+            mQueue.clear();
+            for (FetchTask task : tasks) {
+                task.priority = priorityOf(task.node);
+                mQueue.add(task);
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * 标记节点是否正在显示，参考{@link #setPriority(String, int)}
+     */
+    public void setVisible(@NonNull String id, boolean visible) {
+        setPriority(id, visible ? PRIORITY_VISIBLE : PRIORITY_BACKGROUND);
+    }
+
+    /**
+     * @return 排队中尚未开始的加载数量
+     */
+    public synchronized int getPendingCount() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return 已经开始但尚未返回的加载数量
+     */
+    public synchronized int getRunningCount() {
+        return mRunningCount;
+    }
+
+    /**
+     * 取消所有排队中的加载，并忽略已经开始的加载的结果，之后的{@link TreeCounter#reload()}仍然可以正常调度
+     */
+    public void cancel() {
+        synchronized (this) {
+            mGeneration++;
+            mQueue.clear();
+            mQueuedTasks.clear();
+            mRunningCount = 0;
+            mRunningBackgroundCount = 0;
+        }
+    }
+
+    void attach(@NonNull TreeCounter treeCounter) {
+        synchronized (this) {
+            if (mTreeCounter != null && mTreeCounter != treeCounter) {
+                throw new IllegalStateException("The scheduler is already attached to another TreeCounter.");
+            }
+            mTreeCounter = treeCounter;
+        }
+    }
+
+    void detach() {
+        cancel();
+        synchronized (this) {
+            mTreeCounter = null;
+        }
+    }
+
+    /**
+     * 把叶子节点放入队列，已经在排队的节点不会重复加载，需要在之后调用{@link #dispatch()}
+     */
+    synchronized void enqueue(@NonNull CountNode node) {
+        if (node.getCountFetcher() == null || mQueuedTasks.containsKey(node)) {
+            return;
+        }
+        final FetchTask task = new FetchTask(node, priorityOf(node), mSequence++);
+        mQueuedTasks.put(node, task);
+        mQueue.add(task);
+    }
+
+    /**
+     * 在并发数允许的范围内开始排队中的加载，同一时刻只有一个线程在开始加载，
+     * 同步返回的数据源也不会造成递归
+     */
+    void dispatch() {
+        if (mWip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        while (true) {
+            FetchTask task;
+            while ((task = pollRunnableTask()) != null) {
+                start(task);
+            }
+            missed = mWip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    private synchronized FetchTask pollRunnableTask() {
+        while (true) {
+            final FetchTask task = mQueue.peek();
+            if (task == null || mRunningCount >= mMaxConcurrency) {
+                return null;
+            }
+            final boolean background = task.priority <= PRIORITY_BACKGROUND;
+            if (background && mRunningBackgroundCount >= mMaxBackgroundConcurrency) {
+                // 队首是后台节点说明已经没有更高优先级的节点在排队
+                return null;
+            }
+            mQueue.poll();
+            mQueuedTasks.remove(task.node);
+            if (mTreeCounter == null || mTreeCounter.findNode(task.node.getId()) != task.node
+                    || !task.node.isLeaf()) {
+                // 排队期间节点已经被移除，或者已经不是叶子节点
+                continue;
+            }
+            task.generation = mGeneration;
+            mRunningCount++;
+            if (background) {
+                mRunningBackgroundCount++;
+            }
+            return task;
+        }
+    }
+
+    private void start(final FetchTask task) {
+        final ICountFetcher fetcher = task.node.getCountFetcher();
+        if (fetcher == null) {
+            finish(task);
+            return;
+        }
+        fetcher.loadCount(new ICountFetcher.LoadCountCallback() {
+            @Override
+            public void onLoadCount(ICountFetcher fetcher, int count) {
+                final TreeCounter treeCounter;
+                synchronized (CountFetchScheduler.this) {
+                    treeCounter = task.generation == mGeneration ? mTreeCounter : null;
+                }
+                if (treeCounter != null) {
+                    treeCounter.deliverLoadedCount(task.node, count);
+                }
+                finish(task);
+            }
+        });
+    }
+
+    private void finish(FetchTask task) {
+        synchronized (this) {
+            if (task.generation != mGeneration) {
+                // 已经取消，计数已经清零
+                return;
+            }
+            mRunningCount--;
+            if (task.priority <= PRIORITY_BACKGROUND) {
+                mRunningBackgroundCount--;
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * 叶子节点的优先级取自己和父辈节点中最高的
+     */
+    private int priorityOf(CountNode node) {
+        if (mPriorities.isEmpty()) {
+            return PRIORITY_BACKGROUND;
+        }
+        int priority = PRIORITY_BACKGROUND;
+        for (CountNode n = node; n != null; n = n.getParent()) {
+            final Integer p = mPriorities.get(n.getId());
+            if (p != null && p > priority) {
+                priority = p;
+            }
+        }
+        return priority;
+    }
+}
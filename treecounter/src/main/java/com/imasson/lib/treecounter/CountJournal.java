@@ -0,0 +1,431 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * <p>节点数量值的预写日志（Write-Ahead Log），用于保证崩溃之后节点树的一致性。</p>
+ * <p>通过{@link TreeCounter#setJournal(CountJournal)}设置后，每次叶子节点数量值或节点旁路标志的变化都会
+ * 以紧凑的二进制记录追加到日志中。记录会先缓存在内存中，达到一定数量或者一定时间后统一写入文件并执行一次fsync
+ * （组提交），也可以通过{@link #sync()}主动提交。第一条记录进入缓存时会启动一个定时提交，
+ * 所以即使之后不再有修改，缓存的记录最迟也会在提交间隔之后落盘。日志达到一定长度后会被压缩为一个快照文件。</p>
+ * <p>启动时通过{@link #recover(TreeCounter)}顺序读取快照和日志即可恢复所有叶子节点的数量值和旁路标志，
+ * 不需要像{@link TreeCounter#reload()}那样调用每个{@link ICountFetcher}。
+ * 恢复的数值不会写回数据源，此时日志被当做权威数据。</p>
+ * <p>日志记录：type(byte)、id(UTF)、value(int)、crc(int)；遇到不完整或者校验失败的记录时恢复会在此停止，
+ * 并截掉之后的内容。</p>
+ */
+@SuppressWarnings("unused")
+public final class CountJournal implements Closeable {
+
+    private static final String LOG_TAG = "CountJournal";
+
+    static final String LOG_FILE_NAME = "count.journal";
+    static final String SNAPSHOT_FILE_NAME = "count.snapshot";
+    private static final int SNAPSHOT_MAGIC = 0x54434E53;
+
+    static final byte RECORD_COUNT = 1;
+    static final byte RECORD_BYPASSED = 2;
+    static final byte RECORD_RESET = 3;
+
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 64;
+    public static final long DEFAULT_GROUP_COMMIT_INTERVAL_MILLIS = 200;
+    public static final int DEFAULT_COMPACT_THRESHOLD = 16 * 1024;
+
+    private final File mLogFile;
+    private final File mSnapshotFile;
+    private FileOutputStream mLogOutput;
+
+    private final RecordBuffer mBuffer = new RecordBuffer();
+    private final DataOutputStream mBufferOutput = new DataOutputStream(mBuffer);
+    private final CRC32 mCrc = new CRC32();
+
+    private int mGroupCommitSize = DEFAULT_GROUP_COMMIT_SIZE;
+    private long mGroupCommitInterval = DEFAULT_GROUP_COMMIT_INTERVAL_MILLIS;
+    private int mCompactThreshold = DEFAULT_COMPACT_THRESHOLD;
+
+    private int mPendingRecords = 0;
+    private long mFirstPendingTime = 0;
+    private int mRecordsSinceCompaction = 0;
+    private TreeCounter mTreeCounter;
+    private Timer mCommitTimer;
+    private TimerTask mDeadlineCommit;
+    private volatile boolean mDebuggable = false;
+
+    /**
+     * 打开指定目录下的日志，目录不存在时会被创建
+     * @param directory 存放日志和快照的目录，每棵节点树需要使用单独的目录
+     */
+    public CountJournal(@NonNull File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory: " + directory);
+        }
+        mLogFile = new File(directory, LOG_FILE_NAME);
+        mSnapshotFile = new File(directory, SNAPSHOT_FILE_NAME);
+        mLogOutput = new FileOutputStream(mLogFile, true);
+    }
+
+    public void setDebuggable(boolean debuggable) {
+        this.mDebuggable = debuggable;
+    }
+
+    /**
+     * 设置组提交的条件，满足任意一个条件时会执行提交
+     * @param groupSize 缓存的记录数量
+     * @param intervalMillis 第一条缓存的记录最多等待的时间，为{@link Long#MAX_VALUE}时不会定时提交
+     */
+    public synchronized void setGroupCommit(int groupSize, long intervalMillis) {
+        this.mGroupCommitSize = groupSize > 0 ? groupSize : 1;
+        this.mGroupCommitInterval = intervalMillis >= 0 ? intervalMillis : 0;
+    }
+
+    /**
+     * 设置日志压缩的阈值，自上次压缩以来写入的记录数量达到该值后，下一次提交时会自动压缩为快照
+     */
+    public void setCompactThreshold(int compactThreshold) {
+        this.mCompactThreshold = compactThreshold > 0 ? compactThreshold : Integer.MAX_VALUE;
+    }
+
+    void attach(TreeCounter treeCounter) {
+        this.mTreeCounter = treeCounter;
+    }
+
+    void appendCount(@NonNull String id, int count) {
+        appendRecord(RECORD_COUNT, id, count);
+    }
+
+    void appendBypassed(@NonNull String id, boolean bypassed) {
+        appendRecord(RECORD_BYPASSED, id, bypassed ? 1 : 0);
+    }
+
+    /**
+     * 记录整棵树的重置，恢复时之前的所有记录都会失效
+     */
+    void appendReset() {
+        appendRecord(RECORD_RESET, "", 0);
+    }
+
+    private synchronized void appendRecord(byte type, String id, int value) {
+        try {
+            final int start = mBuffer.size();
+            mBufferOutput.writeByte(type);
+            mBufferOutput.writeUTF(id);
+            mBufferOutput.writeInt(value);
+            mCrc.reset();
+            mCrc.update(mBuffer.buffer(), start, mBuffer.size() - start);
+            mBufferOutput.writeInt((int) mCrc.getValue());
+        } catch (IOException e) {
+            // 写入内存缓冲区不会发生异常
+            throw new IllegalStateException(e);
+        }
+
+        final long now = System.currentTimeMillis();
+        if (mPendingRecords == 0) {
+            mFirstPendingTime = now;
+        }
+        mPendingRecords++;
+        if (mPendingRecords >= mGroupCommitSize || now - mFirstPendingTime >= mGroupCommitInterval) {
+            try {
+                sync();
+            } catch (IOException e) {
+                if (mDebuggable) Log.e(LOG_TAG, "Failed to commit count journal.", e);
+            }
+        } else if (mDeadlineCommit == null) {
+            scheduleDeadlineCommit();
+        }
+    }
+
+    /**
+     * 在提交间隔之后提交缓存的记录，只写入日志而不压缩，因为压缩需要在修改节点树的线程中读取节点树
+     */
+    private void scheduleDeadlineCommit() {
+        if (mGroupCommitInterval >= Long.MAX_VALUE / 2) {
+            return;
+        }
+        if (mCommitTimer == null) {
+            mCommitTimer = new Timer("CountJournal-commit", true);
+        }
+        mDeadlineCommit = new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (CountJournal.this) {
+                    if (mDeadlineCommit != this) {
+                        return;
+                    }
+                    try {
+                        commitPendingRecords();
+                    } catch (IOException e) {
+                        if (mDebuggable) Log.e(LOG_TAG, "Failed to commit count journal.", e);
+                    }
+                }
+            }
+        };
+        mCommitTimer.schedule(mDeadlineCommit, mGroupCommitInterval);
+    }
+
+    /**
+     * 把缓存的记录写入日志文件并执行fsync，必要时压缩日志
+     */
+    public synchronized void sync() throws IOException {
+        commitPendingRecords();
+        if (mRecordsSinceCompaction >= mCompactThreshold && mTreeCounter != null) {
+            compact(mTreeCounter);
+        }
+    }
+
+    private void commitPendingRecords() throws IOException {
+        if (mDeadlineCommit != null) {
+            mDeadlineCommit.cancel();
+            mDeadlineCommit = null;
+        }
+        if (mPendingRecords > 0) {
+            mLogOutput.write(mBuffer.buffer(), 0, mBuffer.size());
+            mLogOutput.getFD().sync();
+            mBuffer.reset();
+            mRecordsSinceCompaction += mPendingRecords;
+            mPendingRecords = 0;
+        }
+    }
+
+    /**
+     * 把节点树当前的状态写入快照，并清空日志
+     */
+    public synchronized void compact(@NonNull TreeCounter treeCounter) throws IOException {
+        // 先提交所有缓存的记录，保证快照之前的日志都已经落盘
+        commitPendingRecords();
+
+        final List<CountNode> countNodes = treeCounter.generateCountNodeList();
+        int entryCount = 0;
+        for (CountNode node : countNodes) {
+            if (node.isLeaf() || node.isBypassed()) {
+                entryCount++;
+            }
+        }
+
+        final File tempFile = new File(mSnapshotFile.getPath() + ".tmp");
+        final FileOutputStream fileOutput = new FileOutputStream(tempFile);
+        final CheckedOutputStream checkedOutput = new CheckedOutputStream(
+                new BufferedOutputStream(fileOutput), new CRC32());
+        final DataOutputStream output = new DataOutputStream(checkedOutput);
+        try {
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.writeInt(entryCount);
+            for (CountNode node : countNodes) {
+                if (node.isLeaf() || node.isBypassed()) {
+                    output.writeUTF(node.getId());
+                    output.writeInt(node.isLeaf() ? node.getCount() : -1);
+                    output.writeBoolean(node.isBypassed());
+                }
+            }
+            output.flush();
+            output.writeLong(checkedOutput.getChecksum().getValue());
+            output.flush();
+            fileOutput.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!tempFile.renameTo(mSnapshotFile)) {
+            throw new IOException("Cannot replace journal snapshot: " + mSnapshotFile);
+        }
+
+        // 日志里的记录都是绝对值，所以即使在这里崩溃，重放旧日志得到的结果也和快照一致
+        mLogOutput.close();
+        mLogOutput = new FileOutputStream(mLogFile, false);
+        mRecordsSinceCompaction = 0;
+    }
+
+    /**
+     * <p>从快照和日志中恢复节点树的状态，恢复之后会重新汇总整棵树，并通知每个节点。</p>
+     * <p>通常在构建好节点树之后、调用{@link TreeCounter#setJournal(CountJournal)}之前执行，
+     * 已经不存在的节点会被忽略。</p>
+     * @return 恢复的记录数量，包括快照中的记录
+     */
+    public synchronized int recover(@NonNull TreeCounter treeCounter) throws IOException {
+        final HashMap<String, Integer> counts = new HashMap<>();
+        final HashMap<String, Boolean> bypassedFlags = new HashMap<>();
+        final boolean[] resetFound = new boolean[1];
+        int recordCount = readSnapshot(counts, bypassedFlags);
+        recordCount += readLog(counts, bypassedFlags, resetFound);
+
+        if (resetFound[0]) {
+            for (CountNode node : treeCounter.generateCountNodeList()) {
+                node.restoreCount(0);
+                node.setBypassed(false);
+            }
+        }
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            final CountNode node = treeCounter.findNode(entry.getKey());
+            if (node != null && node.isLeaf()) {
+                node.restoreCount(entry.getValue());
+            }
+        }
+        for (Map.Entry<String, Boolean> entry : bypassedFlags.entrySet()) {
+            final CountNode node = treeCounter.findNode(entry.getKey());
+            if (node != null) {
+                node.setBypassed(entry.getValue());
+            }
+        }
+        treeCounter.recomputeAll();
+        treeCounter.notifyAllCountChanged();
+        return recordCount;
+    }
+
+    private int readSnapshot(Map<String, Integer> counts, Map<String, Boolean> bypassedFlags)
+            throws IOException {
+        if (!mSnapshotFile.isFile()) {
+            return 0;
+        }
+        final HashMap<String, Integer> snapshotCounts = new HashMap<>();
+        final HashMap<String, Boolean> snapshotBypassedFlags = new HashMap<>();
+        final CheckedInputStream checkedInput = new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(mSnapshotFile)), new CRC32());
+        final DataInputStream input = new DataInputStream(checkedInput);
+        try {
+            if (input.readInt() != SNAPSHOT_MAGIC) {
+                if (mDebuggable) Log.e(LOG_TAG, "Invalid journal snapshot, ignored: " + mSnapshotFile);
+                return 0;
+            }
+            final int entryCount = input.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                final String id = input.readUTF();
+                final int count = input.readInt();
+                final boolean bypassed = input.readBoolean();
+                if (count >= 0) {
+                    snapshotCounts.put(id, count);
+                }
+                snapshotBypassedFlags.put(id, bypassed);
+            }
+            final long checksum = checkedInput.getChecksum().getValue();
+            if (input.readLong() != checksum) {
+                if (mDebuggable) Log.e(LOG_TAG, "Corrupted journal snapshot, ignored: " + mSnapshotFile);
+                return 0;
+            }
+        } catch (EOFException e) {
+            if (mDebuggable) Log.e(LOG_TAG, "Truncated journal snapshot, ignored: " + mSnapshotFile);
+            return 0;
+        } finally {
+            input.close();
+        }
+        counts.putAll(snapshotCounts);
+        bypassedFlags.putAll(snapshotBypassedFlags);
+        return snapshotCounts.size() + snapshotBypassedFlags.size();
+    }
+
+    private int readLog(Map<String, Integer> counts, Map<String, Boolean> bypassedFlags,
+                        boolean[] resetFound) throws IOException {
+        if (!mLogFile.isFile()) {
+            return 0;
+        }
+        int recordCount = 0;
+        long validLength = 0;
+        final CRC32 crc = new CRC32();
+        final RecordBuffer record = new RecordBuffer();
+        final DataOutputStream recordOutput = new DataOutputStream(record);
+        final DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mLogFile)));
+        try {
+            while (true) {
+                final byte type;
+                final String id;
+                final int value;
+                final int checksum;
+                try {
+                    type = input.readByte();
+                    id = input.readUTF();
+                    value = input.readInt();
+                    checksum = input.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                record.reset();
+                recordOutput.writeByte(type);
+                recordOutput.writeUTF(id);
+                recordOutput.writeInt(value);
+                crc.reset();
+                crc.update(record.buffer(), 0, record.size());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                if (type == RECORD_COUNT) {
+                    counts.put(id, value);
+                } else if (type == RECORD_BYPASSED) {
+                    bypassedFlags.put(id, value != 0);
+                } else if (type == RECORD_RESET) {
+                    counts.clear();
+                    bypassedFlags.clear();
+                    resetFound[0] = true;
+                } else {
+                    break;
+                }
+                recordCount++;
+                validLength += record.size() + 4;
+            }
+        } catch (IOException e) {
+            if (mDebuggable) Log.e(LOG_TAG, "Failed to read count journal, recovered " + recordCount + " records.", e);
+        } finally {
+            input.close();
+        }
+
+        if (validLength < mLogFile.length()) {
+            // 截掉崩溃时写了一半的记录，保证之后追加的记录能被正常读取
+            if (mDebuggable) Log.w(LOG_TAG, "Truncate broken journal tail at " + validLength);
+            final RandomAccessFile file = new RandomAccessFile(mLogFile, "rw");
+            try {
+                file.setLength(validLength);
+            } finally {
+                file.close();
+            }
+        }
+        mRecordsSinceCompaction = recordCount;
+        return recordCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            if (mCommitTimer != null) {
+                mCommitTimer.cancel();
+                mCommitTimer = null;
+            }
+            mLogOutput.close();
+        }
+    }
+
+    /**
+     * 可以直接访问内部数组的缓冲区，避免计算校验值时复制数据，也被{@link CountEventLog}使用
+     */
+    static final class RecordBuffer extends ByteArrayOutputStream {
+        RecordBuffer() {
+            super(256);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
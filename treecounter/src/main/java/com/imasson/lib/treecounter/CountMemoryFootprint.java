@@ -0,0 +1,195 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.IdentityHashMap;
+
+/**
+ * <p>节点树或子树占用内存的估算结果，由{@link TreeCounter#estimateMemoryFootprint()}创建。</p>
+ * <p>估算按照32位引用、12字节对象头、8字节对齐的内存布局计算（即ART和开启了压缩指针的64位JVM），
+ * 只统计{@link TreeCounter}自身持有的对象：节点、子节点数组、节点ID字符串、节点索引、路径索引和订阅。
+ * 数据源由使用者创建，只能按照对象本身的浅层大小计算，默认不计入总量。</p>
+ */
+@SuppressWarnings("unused")
+public final class CountMemoryFootprint {
+
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+
+    /** {@link CountNode}：7个引用、4个int、2个long、5个boolean */
+    static final int NODE_SIZE = align(OBJECT_HEADER + 7 * REFERENCE + 4 * 4 + 2 * 8 + 5);
+    /** {@link CountSubscription}：6个引用、1个int、2个boolean */
+    static final int SUBSCRIPTION_SIZE = align(OBJECT_HEADER + 6 * REFERENCE + 4 + 2);
+    /** {@link java.util.concurrent.ConcurrentHashMap}的一个条目：3个引用、1个int */
+    static final int INDEX_ENTRY_SIZE = align(OBJECT_HEADER + 3 * REFERENCE + 4);
+    /** {@link CountPathTrie}的一条边：3个引用、2个int */
+    static final int PATH_ENTRY_SIZE = align(OBJECT_HEADER + 3 * REFERENCE + 2 * 4);
+    /** 没有任何字段的数据源对象 */
+    static final int MIN_FETCHER_SIZE = align(OBJECT_HEADER);
+
+    private int mNodeCount;
+    private long mNodeBytes;
+    private long mChildArrayBytes;
+    private long mIdBytes;
+    private long mIndexBytes;
+    private long mPathIndexBytes;
+    private int mSubscriptionCount;
+    private long mSubscriptionBytes;
+    private int mFetcherCount;
+    private long mFetcherBytes;
+
+    private CountMemoryFootprint() {
+    }
+
+    /**
+     * 估算以指定节点为根的子树
+     * @param subtreeRoot 子树的根节点
+     * @param indexSize 不为负数时表示这是整棵树，额外计入节点索引的哈希表
+     * @param pathIndex 整棵树的路径索引，没有开启或者只估算子树时为null
+     */
+    @NonNull
+    static CountMemoryFootprint of(@NonNull CountNode subtreeRoot, int indexSize, @Nullable CountPathTrie pathIndex) {
+        final CountMemoryFootprint footprint = new CountMemoryFootprint();
+        final IdentityHashMap<ICountFetcher, Boolean> fetchers = new IdentityHashMap<>();
+        footprint.addNode(subtreeRoot, fetchers);
+        subtreeRoot.iterateDescendant(new CountNodeHandler() {
+            @Override
+            public boolean handleCountNode(@NonNull CountNode node) {
+                footprint.addNode(node, fetchers);
+                return false;
+            }
+        });
+        footprint.mFetcherCount = fetchers.size();
+        footprint.mFetcherBytes = (long) fetchers.size() * MIN_FETCHER_SIZE;
+        if (indexSize >= 0) {
+            footprint.mIndexBytes += align(OBJECT_HEADER + 64) + arraySize(indexTableLength(indexSize));
+        }
+        if (pathIndex != null) {
+            footprint.mPathIndexBytes = pathIndex.estimateBytes();
+        }
+        return footprint;
+    }
+
+    private void addNode(CountNode node, IdentityHashMap<ICountFetcher, Boolean> fetchers) {
+        mNodeCount++;
+        mNodeBytes += NODE_SIZE;
+        // 叶子节点共享同一个空数组
+        final int childCount = node.getChildren().length;
+        if (childCount > 0) {
+            mChildArrayBytes += arraySize(childCount);
+        }
+        mIdBytes += stringSize(node.getId());
+        mIndexBytes += INDEX_ENTRY_SIZE;
+        for (CountSubscription s = node.subscriptions; s != null; s = s.next) {
+            mSubscriptionCount++;
+            mSubscriptionBytes += SUBSCRIPTION_SIZE;
+        }
+        if (node.getCountFetcher() != null) {
+            fetchers.put(node.getCountFetcher(), Boolean.TRUE);
+        }
+    }
+
+    static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    static long arraySize(int length) {
+        return align(ARRAY_HEADER + length * REFERENCE);
+    }
+
+    static long stringSize(String value) {
+        // String对象本身加上UTF-16的字符数组
+        return align(OBJECT_HEADER + 8) + align(ARRAY_HEADER + value.length() * 2);
+    }
+
+    /**
+     * 哈希表的容量是2的幂，且保持0.75的负载因子
+     */
+    private static int indexTableLength(int size) {
+        int length = 16;
+        while (length * 3 / 4 < size) {
+            length <<= 1;
+        }
+        return length;
+    }
+
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    public long getNodeBytes() {
+        return mNodeBytes;
+    }
+
+    public long getChildArrayBytes() {
+        return mChildArrayBytes;
+    }
+
+    public long getIdBytes() {
+        return mIdBytes;
+    }
+
+    /**
+     * @return 节点索引的条目，估算整棵树时还包括哈希表本身
+     */
+    public long getIndexBytes() {
+        return mIndexBytes;
+    }
+
+    /**
+     * @return 路径索引占用的大小，参考{@link TreeCounter#enablePathIndex(char, TouchNodePolicy)}
+     */
+    public long getPathIndexBytes() {
+        return mPathIndexBytes;
+    }
+
+    public int getSubscriptionCount() {
+        return mSubscriptionCount;
+    }
+
+    public long getSubscriptionBytes() {
+        return mSubscriptionBytes;
+    }
+
+    /**
+     * @return 不同的数据源对象的数量，多个节点共用的数据源只计算一次
+     */
+    public int getFetcherCount() {
+        return mFetcherCount;
+    }
+
+    /**
+     * @return 数据源对象本身的浅层大小，不包括数据源引用的其他对象，只能作为下限
+     */
+    public long getFetcherBytes() {
+        return mFetcherBytes;
+    }
+
+    /**
+     * @return 不包括数据源的总大小
+     */
+    public long getTotalBytes() {
+        return getTotalBytes(false);
+    }
+
+    public long getTotalBytes(boolean includeFetchers) {
+        return mNodeBytes + mChildArrayBytes + mIdBytes + mIndexBytes + mPathIndexBytes + mSubscriptionBytes
+                + (includeFetchers ? mFetcherBytes : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "CountMemoryFootprint{nodes=" + mNodeCount
+                + ", total=" + getTotalBytes()
+                + ", nodeBytes=" + mNodeBytes
+                + ", childArrayBytes=" + mChildArrayBytes
+                + ", idBytes=" + mIdBytes
+                + ", indexBytes=" + mIndexBytes
+                + ", pathIndexBytes=" + mPathIndexBytes
+                + ", subscriptionBytes=" + mSubscriptionBytes
+                + ", fetchers=" + mFetcherCount
+                + "}";
+    }
+}
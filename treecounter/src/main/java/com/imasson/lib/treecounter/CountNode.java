@@ -11,6 +11,9 @@ import android.support.annotation.Nullable;
 @SuppressWarnings("unused")
 public final class CountNode {
 
+    /** 所有叶子节点共享的空子节点数组 */
+    private static final CountNode[] EMPTY_CHILDREN = new CountNode[0];
+
     private String id;
     private CountNode parent;
     private CountNode[] children;
@@ -19,6 +22,23 @@ public final class CountNode {
 
     private int count = 0;
     private boolean bypassed = false;
+    private Epoch epochSource;
+    private int epoch;
+    private boolean applyCountHook;
+    private long idHash;
+    private long subtreeHash;
+    private boolean subtreeHashValid;
+    private int subtreeHashEpoch;
+    /** 没有子节点时也当做分支节点，比如开启了动态子节点的父节点 */
+    private boolean branch;
+    /** 由{@link TreeCounter}自动创建的节点，比如动态子节点和按路径创建的节点，没有自己的数据源 */
+    private boolean generated;
+
+    /** 节点被移除的次数，用于检测失效的{@link CountNodeHandle} */
+    int generation;
+
+    /** 该节点上的订阅链表的头，参考{@link CountSubscription} */
+    CountSubscription subscriptions;
 
     protected ICountFetcher getCountFetcher() {
         return countFetcher;
@@ -28,6 +48,13 @@ public final class CountNode {
         return touchNodePolicy;
     }
 
+    /**
+     * 碰触策略是否需要{@link TouchNodePolicy#afterNodeApplyCount}回调，内置的空回调策略在构造时就会被排除
+     */
+    boolean hasApplyCountHook() {
+        return applyCountHook;
+    }
+
     @Nullable
     protected CountNode getParent() {
         return parent;
@@ -48,15 +75,45 @@ public final class CountNode {
      * @return 数量值
      */
     public int getCount() {
-        return count;
+        return isStale() ? 0 : count;
     }
 
     public boolean isBypassed() {
-        return bypassed;
+        return bypassed && !isStale();
     }
 
     public void setBypassed(boolean bypassed) {
-        this.bypassed = bypassed;
+        normalize();
+        if (this.bypassed != bypassed) {
+            this.bypassed = bypassed;
+            invalidateSubtreeHash();
+        }
+    }
+
+    /**
+     * 关联节点树的纪元，之后纪元每次增加都会使该节点的数量值和旁路标志失效，参考{@link TreeCounter#reset()}
+     */
+    void attachEpoch(@NonNull Epoch epochSource) {
+        this.epochSource = epochSource;
+        this.epoch = epochSource.value;
+    }
+
+    /**
+     * 节点树重置之后尚未更新过的节点，其数量值当做0、旁路标志当做未设置
+     */
+    private boolean isStale() {
+        return epochSource != null && epoch != epochSource.value;
+    }
+
+    /**
+     * 把失效的节点真正清零，并更新到当前的纪元
+     */
+    private void normalize() {
+        if (isStale()) {
+            count = 0;
+            bypassed = false;
+            epoch = epochSource.value;
+        }
     }
 
     public CountNode(@NonNull String id) {
@@ -81,8 +138,9 @@ public final class CountNode {
 
     private CountNode(@NonNull String id, CountNode[] children, ICountFetcher fetcher, TouchNodePolicy policy) {
         this.id = id;
+        this.idHash = hashId(id);
 
-        if (children != null) {
+        if (children != null && children.length > 0) {
             int totalCount = 0;
             for (CountNode child : children) {
                 child.parent = this;
@@ -92,11 +150,14 @@ public final class CountNode {
             this.children = children;
         } else {
             this.count = 0;
-            this.children = new CountNode[0];
+            this.children = EMPTY_CHILDREN;
         }
 
         this.countFetcher = fetcher;
         this.touchNodePolicy = (policy != null) ? policy : TreeCounter.DoNothingPolicy;
+        this.applyCountHook = touchNodePolicy != TreeCounter.DoNothingPolicy
+                && touchNodePolicy != TreeCounter.ZeroSelfPolicy
+                && touchNodePolicy != TreeCounter.ZeroDescendantPolicy;
     }
 
 
@@ -105,14 +166,32 @@ public final class CountNode {
      * @return 数量值
      */
     public final int getDisplayCount() {
-        return bypassed ? 0 : count;
+        return isBypassed() ? 0 : getCount();
     }
 
     /**
      * 是否为叶子节点
      */
     public final boolean isLeaf() {
-        return children.length == 0;
+        return children.length == 0 && !branch;
+    }
+
+    /**
+     * 设置没有子节点时是否也当做分支节点，分支节点的数量值总是子节点的合计，不能直接修改
+     */
+    void setBranch(boolean branch) {
+        this.branch = branch;
+    }
+
+    /**
+     * 是否为{@link TreeCounter}自动创建的节点
+     */
+    boolean isGenerated() {
+        return generated;
+    }
+
+    void setGenerated() {
+        this.generated = true;
     }
 
     public final int getDepth() {
@@ -158,14 +237,44 @@ public final class CountNode {
     }
 
 
+    /**
+     * 直接设置子节点数组，不会重新计算数量值，供批量构建节点树时使用
+     * @param children 子节点数组，调用者需保证不再修改该数组
+     */
+    void attachChildren(@NonNull CountNode[] children) {
+        for (CountNode child : children) {
+            child.parent = this;
+        }
+        this.children = children;
+        invalidateSubtreeHash();
+    }
+
+    /**
+     * 直接恢复数量值，与{@link #applyCount(int)}不同的是不会写回数据源
+     * @param newCount 数量值
+     */
+    void restoreCount(int newCount) {
+        normalize();
+        setCountValue(newCount);
+    }
+
     protected void applyCount(int newCount) {
-        this.count = newCount >= 0 ? newCount : 0;
+        normalize();
+        setCountValue(newCount);
 
         if (countFetcher != null) {
             countFetcher.updateCount(newCount);
         }
     }
 
+    private void setCountValue(int newCount) {
+        final int value = newCount >= 0 ? newCount : 0;
+        if (this.count != value) {
+            this.count = value;
+            invalidateSubtreeHash();
+        }
+    }
+
     protected int computeCount() {
         int totalCount = 0;
         for (CountNode child : children) {
@@ -182,6 +291,7 @@ public final class CountNode {
         node.parent = this;
 
         children = newChildren;
+        invalidateSubtreeHash();
     }
 
     protected boolean removeNode(@NonNull CountNode node) {
@@ -195,13 +305,14 @@ public final class CountNode {
 
         boolean hasRemoved = false;
         if (indexToRemove >= 0) {
-            CountNode[] newChildren = new CountNode[children.length - 1];
+            CountNode[] newChildren = children.length > 1 ? new CountNode[children.length - 1] : EMPTY_CHILDREN;
             for (int i = 0; i < children.length - 1; i++) {
                 int originIndex = i >= indexToRemove ? i + 1 : i;
                 newChildren[i] = children[originIndex];
             }
             children = newChildren;
             hasRemoved = true;
+            invalidateSubtreeHash();
         } else {
             for (CountNode child : children) {
                 if (child.removeNode(node)) {
@@ -214,10 +325,59 @@ public final class CountNode {
         return hasRemoved;
     }
 
+    /**
+     * 获取以此节点为根的子树的哈希值，包括每个节点的ID、数量值、旁路标志和子节点的顺序。
+     * 哈希值会被缓存，节点变化时只有它和它的父辈节点的缓存会失效，所以重新计算的开销与变化的节点数量成正比。
+     */
+    long getSubtreeHash() {
+        final int currentEpoch = epochSource != null ? epochSource.value : 0;
+        if (subtreeHashValid && subtreeHashEpoch == currentEpoch) {
+            return subtreeHash;
+        }
+        long hash = mixHash(idHash ^ (((long) getCount() << 1) | (isBypassed() ? 1 : 0)));
+        for (CountNode child : children) {
+            hash = mixHash(hash * 31 + child.getSubtreeHash());
+        }
+        subtreeHash = hash;
+        subtreeHashValid = true;
+        subtreeHashEpoch = currentEpoch;
+        return hash;
+    }
+
+    /**
+     * 使自己和父辈节点的子树哈希值失效，遇到已经失效的节点即可停止，因为它的父辈节点也一定已经失效
+     */
+    private void invalidateSubtreeHash() {
+        for (CountNode node = this; node != null && node.subtreeHashValid; node = node.parent) {
+            node.subtreeHashValid = false;
+        }
+    }
+
+    /**
+     * 64位的FNV-1a哈希，比{@link String#hashCode()}更不容易碰撞
+     */
+    private static long hashId(String id) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long mixHash(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
     public String getDebugInfo() {
         return id
                 + " " + String.valueOf(getDisplayCount())
-                + " (" + String.valueOf(count) + ")"
+                + " (" + String.valueOf(getCount()) + ")"
                 + " [" + (
                     getTouchNodePolicy() == TreeCounter.BypassPolicy ? "BypassPolicy" :
                     getTouchNodePolicy() == TreeCounter.DoNothingPolicy ? "DoNothingPolicy" :
@@ -229,4 +389,11 @@ public final class CountNode {
                 + (isLeaf() ? "[Leaf]" : "[Children: " + children.length + "]")
                 ;
     }
+
+    /**
+     * 节点树的纪元，由同一棵树上的所有节点共享
+     */
+    static final class Epoch {
+        int value = 0;
+    }
 }
@@ -0,0 +1,45 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+
+/**
+ * <p>节点的句柄，由{@link TreeCounter#resolve(String)}创建。</p>
+ * <p>句柄直接引用节点，使用句柄调用{@link TreeCounter}的各个操作时不需要再对ID字符串进行哈希查找，
+ * 适合在热点路径上反复更新同一个节点，比如聊天界面的未读数量。</p>
+ * <p>节点被{@link TreeCounter#removeNode(String)}移除之后句柄即失效，即使之后再添加同一个节点，
+ * 也需要重新解析。使用失效的句柄调用操作不会产生任何效果，检查是否失效只需要比较一个整数。</p>
+ */
+@SuppressWarnings("unused")
+public final class CountNodeHandle {
+
+    final TreeCounter owner;
+    final CountNode node;
+    private final int generation;
+
+    CountNodeHandle(@NonNull TreeCounter owner, @NonNull CountNode node) {
+        this.owner = owner;
+        this.node = node;
+        this.generation = node.generation;
+    }
+
+    @NonNull
+    public String getId() {
+        return node.getId();
+    }
+
+    /**
+     * @return 节点是否仍然在节点树中
+     */
+    public boolean isValid() {
+        return node.generation == generation;
+    }
+
+    boolean isValidFor(@NonNull TreeCounter treeCounter) {
+        return owner == treeCounter && node.generation == generation;
+    }
+
+    @Override
+    public String toString() {
+        return "CountNodeHandle{" + node.getId() + (isValid() ? "" : ", stale") + "}";
+    }
+}
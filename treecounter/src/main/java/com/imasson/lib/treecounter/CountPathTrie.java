@@ -0,0 +1,243 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * <p>按节点ID索引节点的压缩前缀树，供{@link TreeCounter#enablePathIndex(char, TouchNodePolicy)}使用。</p>
+ * <p>每条边对应一段ID，子边按首字符排序，所以可以按字典序遍历某个前缀下的所有节点，
+ * 而不需要扫描整个节点索引。边上不保存ID片段的副本，只引用这条边之下某个节点的ID和片段的起止位置，
+ * 索引本身只增加边和子边数组的开销。</p>
+ */
+final class CountPathTrie {
+
+    private static final Entry[] EMPTY_ENTRIES = new Entry[0];
+
+    private static final class Entry {
+        /** 这条边之下某个节点的ID，边对应的片段是其中的[start, end) */
+        String key;
+        int start;
+        int end;
+        CountNode node;
+        Entry[] children = EMPTY_ENTRIES;
+
+        Entry(String key, int start, int end) {
+            this.key = key;
+            this.start = start;
+            this.end = end;
+        }
+
+        int length() {
+            return end - start;
+        }
+
+        char firstChar() {
+            return key.charAt(start);
+        }
+    }
+
+    private final Entry mRoot = new Entry("", 0, 0);
+    private int mSize;
+
+    int size() {
+        return mSize;
+    }
+
+    void put(@NonNull String key, @NonNull CountNode node) {
+        Entry entry = mRoot;
+        int offset = 0;
+        while (offset < key.length()) {
+            final int index = indexOf(entry, key.charAt(offset));
+            if (index < 0) {
+                final Entry child = new Entry(key, offset, key.length());
+                child.node = node;
+                insertChild(entry, -index - 1, child);
+                mSize++;
+                return;
+            }
+
+            final Entry child = entry.children[index];
+            final int common = commonLength(child, key, offset);
+            if (common < child.length()) {
+                // 从共同前缀处拆分这条边
+                final Entry middle = new Entry(child.key, child.start, child.start + common);
+                child.start += common;
+                middle.children = new Entry[] {child};
+                entry.children[index] = middle;
+                entry = middle;
+            } else {
+                entry = child;
+            }
+            offset += common;
+        }
+        if (entry.node == null) {
+            mSize++;
+        }
+        entry.node = node;
+    }
+
+    @Nullable
+    CountNode get(@NonNull String key) {
+        final Entry entry = find(key, false);
+        return entry != null ? entry.node : null;
+    }
+
+    /**
+     * 移除指定的节点，索引中的节点已经被替换时不做任何处理
+     */
+    void remove(@NonNull String key, @NonNull CountNode node) {
+        if (remove(mRoot, key, 0, node)) {
+            mSize--;
+        }
+    }
+
+    private boolean remove(Entry entry, String key, int offset, CountNode node) {
+        if (offset == key.length()) {
+            if (entry.node != node) {
+                return false;
+            }
+            entry.node = null;
+            return true;
+        }
+        final int index = indexOf(entry, key.charAt(offset));
+        if (index < 0) {
+            return false;
+        }
+        final Entry child = entry.children[index];
+        if (!matches(child, key, offset)
+                || !remove(child, key, offset + child.length(), node)) {
+            return false;
+        }
+
+        // 删除空的边，并把只剩一个子边的边合并，保持压缩
+        if (child.node == null && child.children.length == 0) {
+            removeChild(entry, index);
+        } else if (child.node == null && child.children.length == 1) {
+            // 子边的ID以同样的前缀开头，直接扩展片段的起始位置
+            final Entry grandChild = child.children[0];
+            grandChild.start = child.start;
+            entry.children[index] = grandChild;
+        } else if (child.key == node.getId()) {
+            // 不再引用已经移除的节点的ID
+            child.key = child.node != null ? child.node.getId() : child.children[0].key;
+        }
+        return true;
+    }
+
+    /**
+     * 估算索引占用的内存，边上引用的都是节点的ID，不重复计算
+     */
+    long estimateBytes() {
+        return estimateBytes(mRoot);
+    }
+
+    private static long estimateBytes(Entry entry) {
+        long bytes = CountMemoryFootprint.PATH_ENTRY_SIZE;
+        if (entry.children.length > 0) {
+            bytes += CountMemoryFootprint.arraySize(entry.children.length);
+        }
+        for (Entry child : entry.children) {
+            bytes += estimateBytes(child);
+        }
+        return bytes;
+    }
+
+    /**
+     * 按字典序遍历ID以指定前缀开头的所有节点
+     * @return 是否被处理器终止
+     */
+    boolean iteratePrefix(@NonNull String prefix, @NonNull CountNodeHandler handler) {
+        final Entry entry = find(prefix, true);
+        return entry != null && iterate(entry, handler);
+    }
+
+    private static boolean iterate(Entry entry, CountNodeHandler handler) {
+        if (entry.node != null && handler.handleCountNode(entry.node)) {
+            return true;
+        }
+        for (Entry child : entry.children) {
+            if (iterate(child, handler)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param prefix 为true时返回第一个ID以key开头的边，否则只返回恰好等于key的边
+     */
+    private Entry find(String key, boolean prefix) {
+        Entry entry = mRoot;
+        int offset = 0;
+        while (offset < key.length()) {
+            final int index = indexOf(entry, key.charAt(offset));
+            if (index < 0) {
+                return null;
+            }
+            final Entry child = entry.children[index];
+            final int remaining = key.length() - offset;
+            if (child.length() > remaining) {
+                return prefix && commonLength(child, key, offset) == remaining ? child : null;
+            }
+            if (!matches(child, key, offset)) {
+                return null;
+            }
+            entry = child;
+            offset += child.length();
+        }
+        return entry;
+    }
+
+    private static int indexOf(Entry entry, char c) {
+        final Entry[] children = entry.children;
+        int low = 0;
+        int high = children.length - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final char middleChar = children[middle].firstChar();
+            if (middleChar < c) {
+                low = middle + 1;
+            } else if (middleChar > c) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * @return key从offset开始是否以这条边的片段开头
+     */
+    private static boolean matches(Entry entry, String key, int offset) {
+        return key.regionMatches(offset, entry.key, entry.start, entry.length());
+    }
+
+    private static int commonLength(Entry entry, String key, int offset) {
+        final int length = Math.min(entry.length(), key.length() - offset);
+        int i = 0;
+        while (i < length && entry.key.charAt(entry.start + i) == key.charAt(offset + i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static void insertChild(Entry entry, int index, Entry child) {
+        final Entry[] children = new Entry[entry.children.length + 1];
+        System.arraycopy(entry.children, 0, children, 0, index);
+        children[index] = child;
+        System.arraycopy(entry.children, index, children, index + 1, entry.children.length - index);
+        entry.children = children;
+    }
+
+    private static void removeChild(Entry entry, int index) {
+        if (entry.children.length == 1) {
+            entry.children = EMPTY_ENTRIES;
+            return;
+        }
+        final Entry[] children = new Entry[entry.children.length - 1];
+        System.arraycopy(entry.children, 0, children, 0, index);
+        System.arraycopy(entry.children, index + 1, children, index, children.length - index);
+        entry.children = children;
+    }
+}
@@ -0,0 +1,225 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>以响应式流的方式发布一个节点的显示数量（即整棵子树的合计），接口与{@code java.util.concurrent.Flow}一致，
+ * 但不依赖它，所以可以在较低版本的Android上使用，也很容易桥接到RxJava等响应式框架。</p>
+ * <p>订阅者只会收到最新的数量：订阅者处理不过来时，中间的数量会被合并，每个订阅者只保存一个标志位，
+ * 所以无论数量变化多频繁，占用的内存和回调次数都是有限的。订阅之后第一次请求会收到当前的数量，
+ * 之后只在数量与上次收到的不同时回调，每次回调消耗一个请求数。</p>
+ * <p>发布者必须在修改{@link TreeCounter}的线程中创建和关闭；订阅、请求和取消可以在任意线程进行。
+ * 指定了{@link Executor}时在其中回调订阅者，同一个订阅者的回调不会并发；否则在触发回调的线程中直接回调。</p>
+ */
+@SuppressWarnings("unused")
+public final class CountPublisher {
+
+    /**
+     * 数量的订阅者，与{@code Flow.Subscriber<Integer>}一致，但数量以基本类型传递
+     */
+    public interface Subscriber {
+        void onSubscribe(@NonNull Subscription subscription);
+        void onNext(int displayCount);
+        void onError(@NonNull Throwable throwable);
+        void onComplete();
+    }
+
+    /**
+     * 订阅关系，与{@code Flow.Subscription}一致
+     */
+    public interface Subscription {
+        /**
+         * 请求更多的数量，请求数不大于0时会以{@link IllegalArgumentException}结束订阅
+         */
+        void request(long n);
+        void cancel();
+    }
+
+    private final CountSubscription mSubscription;
+    private final Executor mExecutor;
+    private final CopyOnWriteArrayList<CountStream> mStreams = new CopyOnWriteArrayList<>();
+    private volatile int mLatestCount;
+    private volatile boolean mClosed;
+
+    /**
+     * @param treeCounter 统计器
+     * @param id 节点ID
+     * @param executor 回调订阅者的线程，为null时直接回调
+     * @throws IllegalArgumentException 节点不存在时抛出
+     */
+    public CountPublisher(@NonNull TreeCounter treeCounter, @NonNull String id, @Nullable Executor executor) {
+        //noinspection ConstantConditions
+        if (treeCounter == null) {
+            throw new IllegalArgumentException("Argument 'treeCounter' should not be null!");
+        }
+        final CountNode node = treeCounter.findNode(id);
+        if (node == null) {
+            throw new IllegalArgumentException("Cannot find the node [id=" + id + "] to publish.");
+        }
+        mExecutor = executor;
+        mLatestCount = node.getDisplayCount();
+        mSubscription = treeCounter.subscribe(id, new TreeCounter.OnNodeUnreadCountChangeListener() {
+            @Override
+            public void onNodeUnreadCountChanged(CountNode node) {
+                publish(node.getDisplayCount());
+            }
+        });
+    }
+
+    /**
+     * 添加订阅者，会先回调{@link Subscriber#onSubscribe(Subscription)}，已经关闭时随后直接结束
+     */
+    public void subscribe(@NonNull Subscriber subscriber) {
+        final CountStream stream = new CountStream(subscriber);
+        subscriber.onSubscribe(stream);
+        if (mClosed) {
+            stream.complete();
+            return;
+        }
+        mStreams.add(stream);
+        stream.signal();
+        if (mClosed) {
+            stream.complete();
+        }
+    }
+
+    /**
+     * @return 节点最新的显示数量
+     */
+    public int getLatestCount() {
+        return mLatestCount;
+    }
+
+    public int getSubscriberCount() {
+        return mStreams.size();
+    }
+
+    /**
+     * 停止发布并结束所有订阅，订阅者还会先收到最后一次数量（如果有请求数）
+     */
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mSubscription.unsubscribe();
+        for (CountStream stream : mStreams) {
+            stream.complete();
+        }
+        mStreams.clear();
+    }
+
+    private void publish(int displayCount) {
+        mLatestCount = displayCount;
+        for (CountStream stream : mStreams) {
+            stream.signal();
+        }
+    }
+
+    /**
+     * 一个订阅者的状态，只记录是否有新的数量，真正发送时再读取最新的数量
+     */
+    private final class CountStream implements Subscription, Runnable {
+
+        private final Subscriber mSubscriber;
+        private final AtomicLong mRequested = new AtomicLong();
+        private final AtomicInteger mWip = new AtomicInteger();
+        private volatile boolean mDirty;
+        private volatile boolean mDone;
+        private volatile boolean mCancelled;
+        private volatile Throwable mError;
+        private boolean mEmitted;
+        private int mLastEmittedCount;
+
+        CountStream(Subscriber subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        void signal() {
+            mDirty = true;
+            schedule();
+        }
+
+        void complete() {
+            mDone = true;
+            schedule();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                mError = new IllegalArgumentException("Non-positive request: " + n);
+                schedule();
+                return;
+            }
+            long current;
+            long next;
+            do {
+                current = mRequested.get();
+                next = current + n;
+                if (next < 0) {
+                    next = Long.MAX_VALUE;
+                }
+            } while (!mRequested.compareAndSet(current, next));
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            mStreams.remove(this);
+        }
+
+        private void schedule() {
+            // 同一时刻只有一个线程在发送，其它线程只增加计数，由发送的线程再检查一遍
+            if (mWip.getAndIncrement() != 0) {
+                return;
+            }
+            if (mExecutor != null) {
+                mExecutor.execute(this);
+            } else {
+                run();
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            while (!mCancelled) {
+                if (mError != null) {
+                    cancel();
+                    mSubscriber.onError(mError);
+                    return;
+                }
+                if (mDirty && mRequested.get() > 0) {
+                    mDirty = false;
+                    final int count = mLatestCount;
+                    if (!mEmitted || count != mLastEmittedCount) {
+                        mEmitted = true;
+                        mLastEmittedCount = count;
+                        if (mRequested.get() != Long.MAX_VALUE) {
+                            mRequested.decrementAndGet();
+                        }
+                        mSubscriber.onNext(count);
+                    }
+                    continue;
+                }
+                if (mDone) {
+                    cancel();
+                    mSubscriber.onComplete();
+                    return;
+                }
+                missed = mWip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
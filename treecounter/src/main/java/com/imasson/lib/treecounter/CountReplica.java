@@ -0,0 +1,222 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * <p>多设备之间同步叶子节点数量的副本，每个叶子节点由一个{@link PNCounter}支持。</p>
+ * <p>副本作为观察者挂在{@link TreeCounter}上，本地对叶子节点的修改（增减数量、碰触节点、重置）
+ * 会被记录为本副本的增加量或减少量。清零被记录为减去当前数量，所以其他设备上并发增加的数量不会被清除。
+ * 数据源加载的数量不是本地的修改，只会替换叶子节点的基准值，所以多个设备加载同一个服务端数量后合并不会重复计算。</p>
+ * <p>通过{@link #drainDelta()}取出上次同步之后本地发生变化的叶子节点，发送给其他设备；
+ * 收到的数据通过{@link #merge(Map)}合并，合并是幂等的，只有值发生变化的叶子节点会被更新，
+ * 并且在一次批量更新中完成，只会重新计算受影响的父辈节点。</p>
+ * <p>创建副本时节点树中已有的数量作为基准值，不参与同步，所以各个设备应该从同一个基准开始，
+ * 比如都在从服务端重新加载之后创建副本。与{@link TreeCounter}一样，该类不是线程安全的。</p>
+ */
+@SuppressWarnings("unused")
+public class CountReplica implements TreeCounter.OnNodeUnreadCountChangeListener,
+        TreeCounter.OnTreeResetListener, TreeCounter.OnNodeCountLoadedListener {
+
+    private static final String LOG_TAG = "CountReplica";
+
+    private final TreeCounter mTreeCounter;
+    private final String mReplicaId;
+    private final HashMap<String, LeafState> mLeafStates = new HashMap<>();
+    private final LinkedHashSet<String> mDirtyLeafIds = new LinkedHashSet<>();
+    private boolean mDebuggable = false;
+
+    /**
+     * 单个叶子节点的同步状态，节点的数量为基准值加上计数器的值，且不小于0
+     */
+    private static final class LeafState {
+        long base;
+        final PNCounter counter = new PNCounter();
+
+        LeafState(long base) {
+            this.base = base;
+        }
+
+        long getRawValue() {
+            return base + counter.getValue();
+        }
+
+        int getValue() {
+            final long value = getRawValue();
+            return value <= 0 ? 0 : value >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) value;
+        }
+    }
+
+    /**
+     * @param treeCounter 需要同步的统计器
+     * @param replicaId 本设备的副本ID，在所有设备中唯一且保持不变
+     */
+    public CountReplica(@NonNull TreeCounter treeCounter, @NonNull String replicaId) {
+        //noinspection ConstantConditions
+        if (treeCounter == null) {
+            throw new IllegalArgumentException("Argument 'treeCounter' should not be null!");
+        }
+        //noinspection ConstantConditions
+        if (replicaId == null) {
+            throw new IllegalArgumentException("Argument 'replicaId' should not be null!");
+        }
+        mTreeCounter = treeCounter;
+        mReplicaId = replicaId;
+        for (CountNode node : treeCounter.generateCountNodeList()) {
+            if (node.isLeaf()) {
+                mLeafStates.put(node.getId(), new LeafState(node.getCount()));
+            }
+        }
+        treeCounter.addObserver(this);
+    }
+
+    public void setDebuggable(boolean debuggable) {
+        this.mDebuggable = debuggable;
+    }
+
+    @NonNull
+    public String getReplicaId() {
+        return mReplicaId;
+    }
+
+    /**
+     * 停止记录本地的修改
+     */
+    public void detach() {
+        mTreeCounter.removeObserver(this);
+    }
+
+    @Override
+    public void onNodeUnreadCountChanged(CountNode node) {
+        if (node.isLeaf()) {
+            recordLocalChange(node);
+        }
+    }
+
+    @Override
+    public void onNodeCountLoaded(CountNode node, int count) {
+        if (!node.isLeaf()) {
+            return;
+        }
+        // 以加载的数量作为新的基准，已经记录的本地修改和合并的远端修改保留在计数器中
+        final LeafState state = stateOf(node.getId());
+        state.base = Math.max(count, 0) - state.counter.getValue();
+    }
+
+    @Override
+    public void onTreeReset(TreeCounter counter) {
+        for (CountNode node : counter.generateCountNodeList()) {
+            if (node.isLeaf()) {
+                recordLocalChange(node);
+            }
+        }
+    }
+
+    private LeafState stateOf(String id) {
+        LeafState state = mLeafStates.get(id);
+        if (state == null) {
+            // 创建副本之后新增的叶子节点，基准值为0
+            state = new LeafState(0);
+            mLeafStates.put(id, state);
+        }
+        return state;
+    }
+
+    private void recordLocalChange(CountNode node) {
+        final LeafState state = stateOf(node.getId());
+        final int count = node.getCount();
+        if (count == state.getValue()) {
+            // 合并远端数据或者数据源加载引起的变化，或者数量被截断为0
+            return;
+        }
+        final long delta = count - state.getRawValue();
+        if (delta > 0) {
+            state.counter.increment(mReplicaId, delta);
+        } else {
+            state.counter.decrement(mReplicaId, -delta);
+        }
+        mDirtyLeafIds.add(node.getId());
+    }
+
+    /**
+     * @return 上次调用之后本地发生变化的叶子节点的完整状态，用于增量同步
+     */
+    @NonNull
+    public Map<String, PNCounter> drainDelta() {
+        final LinkedHashMap<String, PNCounter> delta = new LinkedHashMap<>();
+        for (String id : mDirtyLeafIds) {
+            delta.put(id, mLeafStates.get(id).counter.copy());
+        }
+        mDirtyLeafIds.clear();
+        return delta;
+    }
+
+    /**
+     * @return 所有叶子节点的完整状态，用于新设备的首次同步
+     */
+    @NonNull
+    public Map<String, PNCounter> getState() {
+        final LinkedHashMap<String, PNCounter> state = new LinkedHashMap<>();
+        for (Map.Entry<String, LeafState> entry : mLeafStates.entrySet()) {
+            state.put(entry.getKey(), entry.getValue().counter.copy());
+        }
+        return state;
+    }
+
+    /**
+     * 合并其他设备的状态，重复合并同一份数据不会产生任何变化
+     */
+    public void merge(@NonNull Map<String, PNCounter> remoteStates) {
+        mTreeCounter.beginBatchUpdate();
+        try {
+            for (Map.Entry<String, PNCounter> remote : remoteStates.entrySet()) {
+                final String id = remote.getKey();
+                final CountNode node = mTreeCounter.findNode(id);
+                if (node == null || !node.isLeaf()) {
+                    if (mDebuggable) Log.w(LOG_TAG, "Cannot find the leaf node [id=" + id + "] to merge.");
+                    continue;
+                }
+                final LeafState state = stateOf(id);
+                if (state.counter.merge(remote.getValue())) {
+                    mTreeCounter.applyCount(id, state.getValue());
+                }
+            }
+        } finally {
+            mTreeCounter.endBatchUpdate();
+        }
+    }
+
+    /**
+     * 把同步数据写入数据包
+     */
+    public static void writeStates(@NonNull DataOutput output, @NonNull Map<String, PNCounter> states)
+            throws IOException {
+        output.writeInt(states.size());
+        for (Map.Entry<String, PNCounter> entry : states.entrySet()) {
+            output.writeUTF(entry.getKey());
+            entry.getValue().writeTo(output);
+        }
+    }
+
+    /**
+     * 从数据包读取同步数据
+     */
+    @NonNull
+    public static Map<String, PNCounter> readStates(@NonNull DataInput input) throws IOException {
+        final int size = input.readInt();
+        final LinkedHashMap<String, PNCounter> states = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            final String id = input.readUTF();
+            states.put(id, PNCounter.readFrom(input));
+        }
+        return states;
+    }
+}
@@ -0,0 +1,127 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * <p>节点或子树上的一个监听器订阅，由{@link TreeCounter#subscribe(String, TreeCounter.OnNodeUnreadCountChangeListener)}
+ * 或{@link TreeCounter#subscribeSubtree(String, TreeCounter.OnNodeUnreadCountChangeListener)}创建。</p>
+ * <p>订阅保存在被订阅节点的双向链表中，数量变化时只会通知变化路径上的节点的订阅者，取消订阅是O(1)的。</p>
+ * <p>节点订阅可以指定显示数量的阈值，此时只有显示数量跨越阈值（即所在的区间发生变化）时才会回调，
+ * 比如只显示小红点的角标使用{@link #DOT_THRESHOLDS}，在消息密集到达时可以省去绝大部分回调。</p>
+ * <p>订阅和取消订阅都应该在修改{@link TreeCounter}的线程中进行，可以在回调中取消订阅。</p>
+ */
+@SuppressWarnings("unused")
+public final class CountSubscription {
+
+    /** 小红点角标的阈值：只在0与非0之间变化时回调 */
+    public static final int[] DOT_THRESHOLDS = {1};
+
+    /** 数字角标的阈值：1到99每个数字都回调，超过99之后显示“99+”，不再回调 */
+    public static final int[] NUMBER_THRESHOLDS = numberThresholds(99);
+
+    final TreeCounter owner;
+    final CountNode node;
+    final TreeCounter.OnNodeUnreadCountChangeListener listener;
+    final boolean subtree;
+    final int[] thresholds;
+    int lastBucket;
+    CountSubscription prev;
+    CountSubscription next;
+    boolean active = true;
+
+    CountSubscription(TreeCounter owner, CountNode node, TreeCounter.OnNodeUnreadCountChangeListener listener,
+                      boolean subtree, int[] thresholds) {
+        this.owner = owner;
+        this.node = node;
+        this.listener = listener;
+        this.subtree = subtree;
+        this.thresholds = thresholds;
+        if (thresholds != null) {
+            this.lastBucket = bucketOf(node.getDisplayCount());
+        }
+    }
+
+    /**
+     * 生成数字角标的阈值，显示数量不超过最大值时每次变化都会回调
+     * @param maxNumber 角标能够显示的最大数字
+     */
+    @NonNull
+    public static int[] numberThresholds(int maxNumber) {
+        final int[] thresholds = new int[maxNumber + 1];
+        for (int i = 0; i < thresholds.length; i++) {
+            thresholds[i] = i + 1;
+        }
+        return thresholds;
+    }
+
+    /**
+     * 检查阈值是否严格递增，并复制一份，避免调用者之后修改
+     */
+    static int[] checkThresholds(@NonNull int[] thresholds) {
+        for (int i = 1; i < thresholds.length; i++) {
+            if (thresholds[i] <= thresholds[i - 1]) {
+                throw new IllegalArgumentException("Thresholds should be strictly increasing: "
+                        + Arrays.toString(thresholds));
+            }
+        }
+        return thresholds.clone();
+    }
+
+    /**
+     * 显示数量跨越阈值时更新所在的区间
+     * @return 是否需要回调
+     */
+    boolean updateBucket(int displayCount) {
+        if (thresholds == null) {
+            return true;
+        }
+        final int bucket = bucketOf(displayCount);
+        if (bucket == lastBucket) {
+            return false;
+        }
+        lastBucket = bucket;
+        return true;
+    }
+
+    /**
+     * @return 不大于显示数量的阈值的个数
+     */
+    private int bucketOf(int displayCount) {
+        int low = 0;
+        int high = thresholds.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (thresholds[mid] <= displayCount) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @NonNull
+    public String getNodeId() {
+        return node.getId();
+    }
+
+    /**
+     * @return 是否订阅了整棵子树，否则只订阅了节点自身
+     */
+    public boolean isSubtree() {
+        return subtree;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * 取消订阅，重复调用没有副作用
+     */
+    public void unsubscribe() {
+        owner.unsubscribe(this);
+    }
+}
@@ -0,0 +1,355 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <p>{@link TreeCounter}调用轨迹的紧凑二进制格式，用于录制线上的真实负载并在基准测试中回放，
+ * 参考{@link TreeCounter#setTraceWriter(Writer)}和{@link CountTraceReplayer}。</p>
+ * <p>轨迹以节点树的结构开始，之后是按调用顺序排列的操作。节点ID只在第一次出现时写入字符串，
+ * 之后使用变长编码的序号引用，所以大部分操作只占用几个字节。</p>
+ */
+@SuppressWarnings("unused")
+public final class CountTrace {
+
+    private static final int MAGIC = 0x54435452;
+    private static final int VERSION = 1;
+
+    /** 节点树结构中的一个节点：ID、父节点ID、碰触策略、数量值 */
+    public static final int OP_NODE = 1;
+    public static final int OP_ADD_COUNT = 2;
+    public static final int OP_REDUCE_COUNT = 3;
+    public static final int OP_APPLY_COUNT = 4;
+    public static final int OP_TOUCH_NODE = 5;
+    public static final int OP_SET_BYPASS = 6;
+    public static final int OP_CLEAR_SUBTREE = 7;
+    public static final int OP_RELOAD = 8;
+    public static final int OP_RESET = 9;
+    public static final int OP_BEGIN_BATCH = 10;
+    public static final int OP_END_BATCH = 11;
+    /** 在已有的节点树中添加节点：ID、父节点ID、碰触策略 */
+    public static final int OP_ADD_NODE = 12;
+    public static final int OP_REMOVE_NODE = 13;
+    /** 移动节点：ID、新的父节点ID */
+    public static final int OP_MOVE_NODE = 14;
+
+    static final byte POLICY_DO_NOTHING = 0;
+    static final byte POLICY_ZERO_SELF = 1;
+    static final byte POLICY_ZERO_DESCENDANT = 2;
+    static final byte POLICY_BYPASS = 3;
+
+    private CountTrace() {
+    }
+
+    static byte policyCodeOf(TouchNodePolicy policy) {
+        if (policy == TreeCounter.ZeroSelfPolicy) {
+            return POLICY_ZERO_SELF;
+        } else if (policy == TreeCounter.ZeroDescendantPolicy) {
+            return POLICY_ZERO_DESCENDANT;
+        } else if (policy == TreeCounter.BypassPolicy) {
+            return POLICY_BYPASS;
+        }
+        // 自定义策略无法录制，回放时按不处理策略执行
+        return POLICY_DO_NOTHING;
+    }
+
+    @NonNull
+    static TouchNodePolicy policyOf(int policyCode) {
+        switch (policyCode) {
+            case POLICY_ZERO_SELF:
+                return TreeCounter.ZeroSelfPolicy;
+            case POLICY_ZERO_DESCENDANT:
+                return TreeCounter.ZeroDescendantPolicy;
+            case POLICY_BYPASS:
+                return TreeCounter.BypassPolicy;
+            default:
+                return TreeCounter.DoNothingPolicy;
+        }
+    }
+
+    /**
+     * 轨迹中的一个操作，不同的操作使用不同的字段
+     */
+    public static final class Op {
+        public int type;
+        public String id;
+        /** {@link #OP_NODE}和{@link #OP_ADD_NODE}的父节点ID，根节点为null；{@link #OP_MOVE_NODE}的新父节点ID */
+        public String parentId;
+        /** 数量值、增减的数量、旁路标志（1或0）或碰触策略 */
+        public int value;
+        /** {@link #OP_NODE}和{@link #OP_ADD_NODE}的碰触策略 */
+        public int policy;
+
+        @Override
+        public String toString() {
+            return "Op{type=" + type + ", id=" + id + ", parentId=" + parentId
+                    + ", value=" + value + ", policy=" + policy + "}";
+        }
+    }
+
+    /**
+     * 轨迹的写入者，可以直接挂在{@link TreeCounter}上录制，也可以由{@link CountWorkloadGenerator}生成
+     */
+    public static final class Writer implements Closeable {
+
+        private final DataOutputStream mOutput;
+        private final HashMap<String, Integer> mIdIndexes = new HashMap<>();
+        private long mOpCount;
+        private IOException mError;
+
+        public Writer(@NonNull OutputStream output) throws IOException {
+            mOutput = new DataOutputStream(new BufferedOutputStream(output));
+            mOutput.writeInt(MAGIC);
+            mOutput.writeInt(VERSION);
+        }
+
+        /**
+         * @return 已经写入的操作数量
+         */
+        public long getOpCount() {
+            return mOpCount;
+        }
+
+        /**
+         * 录制过程中不会抛出异常，以免影响线上的统计器，第一次写入失败后停止录制
+         * @return 第一次写入失败的异常，没有失败时返回null
+         */
+        @Nullable
+        public IOException getError() {
+            return mError;
+        }
+
+        /**
+         * 写入节点树的结构，必须在其他操作之前调用，父节点在子节点之前写入
+         */
+        public void writeTree(@NonNull TreeCounter treeCounter) {
+            writeSubtree(null, treeCounter.getRootNode(), OP_NODE);
+        }
+
+        void writeSubtree(@Nullable CountNode parent, @NonNull CountNode node, int type) {
+            writeNode(type, node.getId(), parent != null ? parent.getId() : null,
+                    policyCodeOf(node.getTouchNodePolicy()), node.isLeaf() ? node.getCount() : 0);
+            for (CountNode child : node.getChildren()) {
+                writeSubtree(node, child, type);
+            }
+        }
+
+        public void writeNode(int type, @NonNull String id, @Nullable String parentId, int policy, int count) {
+            if (mError != null) return;
+            try {
+                mOutput.writeByte(type);
+                writeId(id);
+                writeId(parentId);
+                mOutput.writeByte(policy);
+                if (type == OP_NODE) {
+                    mOutput.writeInt(count);
+                }
+                mOpCount++;
+            } catch (IOException e) {
+                mError = e;
+            }
+        }
+
+        /**
+         * 写入一个{@link #OP_MOVE_NODE}操作
+         */
+        public void writeMove(@NonNull String id, @NonNull String parentId) {
+            if (mError != null) return;
+            try {
+                mOutput.writeByte(OP_MOVE_NODE);
+                writeId(id);
+                writeId(parentId);
+                mOpCount++;
+            } catch (IOException e) {
+                mError = e;
+            }
+        }
+
+        /**
+         * 写入一个不带参数的操作，比如{@link #OP_RELOAD}
+         */
+        public void write(int type) {
+            if (mError != null) return;
+            try {
+                mOutput.writeByte(type);
+                mOpCount++;
+            } catch (IOException e) {
+                mError = e;
+            }
+        }
+
+        /**
+         * 写入一个针对节点的操作，比如{@link #OP_TOUCH_NODE}
+         */
+        public void write(int type, @NonNull String id) {
+            if (mError != null) return;
+            try {
+                mOutput.writeByte(type);
+                writeId(id);
+                mOpCount++;
+            } catch (IOException e) {
+                mError = e;
+            }
+        }
+
+        /**
+         * 写入一个针对节点且带有数值的操作，比如{@link #OP_ADD_COUNT}
+         */
+        public void write(int type, @NonNull String id, int value) {
+            if (mError != null) return;
+            try {
+                mOutput.writeByte(type);
+                writeId(id);
+                writeVarInt(value);
+                mOpCount++;
+            } catch (IOException e) {
+                mError = e;
+            }
+        }
+
+        private void writeId(String id) throws IOException {
+            if (id == null) {
+                writeVarInt(0);
+                return;
+            }
+            final Integer index = mIdIndexes.get(id);
+            if (index != null) {
+                writeVarInt(index + 2);
+            } else {
+                mIdIndexes.put(id, mIdIndexes.size());
+                writeVarInt(1);
+                mOutput.writeUTF(id);
+            }
+        }
+
+        private void writeVarInt(int value) throws IOException {
+            // 使用ZigZag编码，负数也只占用少量字节
+            int v = (value << 1) ^ (value >> 31);
+            while ((v & ~0x7F) != 0) {
+                mOutput.writeByte((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            mOutput.writeByte(v);
+        }
+
+        public void flush() throws IOException {
+            mOutput.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOutput.close();
+        }
+    }
+
+    /**
+     * 轨迹的读取者
+     */
+    public static final class Reader implements Closeable {
+
+        private final DataInputStream mInput;
+        private final List<String> mIds = new ArrayList<>();
+
+        public Reader(@NonNull InputStream input) throws IOException {
+            mInput = new DataInputStream(new BufferedInputStream(input));
+            if (mInput.readInt() != MAGIC || mInput.readInt() != VERSION) {
+                throw new IOException("Not a count trace.");
+            }
+        }
+
+        /**
+         * @return 下一个操作，读到末尾时返回null
+         */
+        @Nullable
+        public Op next() throws IOException {
+            final int type = mInput.read();
+            if (type < 0) {
+                return null;
+            }
+            final Op op = new Op();
+            op.type = type;
+            try {
+                switch (type) {
+                    case OP_NODE:
+                    case OP_ADD_NODE:
+                        op.id = readId();
+                        op.parentId = readId();
+                        op.policy = mInput.readByte();
+                        if (type == OP_NODE) {
+                            op.value = mInput.readInt();
+                        }
+                        break;
+                    case OP_ADD_COUNT:
+                    case OP_REDUCE_COUNT:
+                    case OP_APPLY_COUNT:
+                    case OP_SET_BYPASS:
+                        op.id = readId();
+                        op.value = readVarInt();
+                        break;
+                    case OP_TOUCH_NODE:
+                    case OP_CLEAR_SUBTREE:
+                    case OP_REMOVE_NODE:
+                        op.id = readId();
+                        break;
+                    case OP_MOVE_NODE:
+                        op.id = readId();
+                        op.parentId = readId();
+                        break;
+                    case OP_RELOAD:
+                    case OP_RESET:
+                    case OP_BEGIN_BATCH:
+                    case OP_END_BATCH:
+                        break;
+                    default:
+                        throw new IOException("Unknown trace op: " + type);
+                }
+            } catch (EOFException e) {
+                // 录制过程中被中断，丢弃最后一个不完整的操作
+                return null;
+            }
+            return op;
+        }
+
+        private String readId() throws IOException {
+            final int ref = readVarInt();
+            if (ref == 0) {
+                return null;
+            } else if (ref == 1) {
+                final String id = mInput.readUTF();
+                mIds.add(id);
+                return id;
+            }
+            return mIds.get(ref - 2);
+        }
+
+        private int readVarInt() throws IOException {
+            int v = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = mInput.readUnsignedByte();
+                v |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInput.close();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * <p>回放{@link CountTrace}轨迹的基准测试工具，统计吞吐量、单次操作的延迟分位数以及内存分配。</p>
+ * <p>轨迹会先被完整读入内存，再按照轨迹开头的结构重新建立节点树，之后依次执行每个操作，
+ * 所以统计结果只包含{@link TreeCounter}本身的开销。回放时节点没有数据源，{@link CountTrace#OP_RELOAD}只会重新汇总。</p>
+ * <p>可以多次调用{@link #run()}，第一次通常作为预热。</p>
+ */
+@SuppressWarnings("unused")
+public class CountTraceReplayer {
+
+    private final List<CountTrace.Op> mStructureOps = new ArrayList<>();
+    private final List<CountTrace.Op> mOps = new ArrayList<>();
+    private TreeCounter mLastTreeCounter;
+
+    /**
+     * 回放的统计结果
+     */
+    public static final class Result {
+        public int opCount;
+        public long elapsedNanos;
+        public long p50Nanos;
+        public long p90Nanos;
+        public long p99Nanos;
+        public long maxNanos;
+        /** 回放过程中当前线程分配的内存，运行环境不支持统计时为-1 */
+        public long allocatedBytes = -1;
+
+        public double getOpsPerSecond() {
+            return elapsedNanos > 0 ? opCount * 1e9 / elapsedNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "ops=%d, throughput=%.0f ops/s, p50=%dns, p90=%dns, p99=%dns, max=%dns, allocated=%d bytes",
+                    opCount, getOpsPerSecond(), p50Nanos, p90Nanos, p99Nanos, maxNanos, allocatedBytes);
+        }
+    }
+
+    public CountTraceReplayer(@NonNull InputStream input) throws IOException {
+        final CountTrace.Reader reader = new CountTrace.Reader(input);
+        try {
+            CountTrace.Op op;
+            while ((op = reader.next()) != null) {
+                if (op.type == CountTrace.OP_NODE && mOps.isEmpty()) {
+                    mStructureOps.add(op);
+                } else {
+                    mOps.add(op);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (mStructureOps.isEmpty()) {
+            throw new IOException("The trace does not start with a node tree.");
+        }
+    }
+
+    public int getNodeCount() {
+        return mStructureOps.size();
+    }
+
+    public int getOpCount() {
+        return mOps.size();
+    }
+
+    /**
+     * @return 上一次回放使用的统计器，可以用于检查回放之后的数量值
+     */
+    @Nullable
+    public TreeCounter getLastTreeCounter() {
+        return mLastTreeCounter;
+    }
+
+    /**
+     * 按照轨迹开头的结构建立新的节点树
+     */
+    @NonNull
+    public TreeCounter buildTreeCounter() {
+        final CountTreeBuilder builder = new CountTreeBuilder(mStructureOps.size());
+        for (CountTrace.Op op : mStructureOps) {
+            builder.addNode(op.id, op.parentId, op.value, CountTrace.policyOf(op.policy));
+        }
+        return builder.build();
+    }
+
+    /**
+     * 在新建立的节点树上回放一次所有操作
+     */
+    @NonNull
+    public Result run() {
+        final TreeCounter treeCounter = buildTreeCounter();
+        final long[] latencies = new long[mOps.size()];
+        final long allocatedBefore = getAllocatedBytes();
+
+        final long start = System.nanoTime();
+        long last = start;
+        for (int i = 0; i < latencies.length; i++) {
+            apply(treeCounter, mOps.get(i));
+            final long now = System.nanoTime();
+            latencies[i] = now - last;
+            last = now;
+        }
+
+        final Result result = new Result();
+        result.elapsedNanos = last - start;
+        final long allocatedAfter = getAllocatedBytes();
+        if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+            result.allocatedBytes = allocatedAfter - allocatedBefore;
+        }
+        result.opCount = latencies.length;
+        Arrays.sort(latencies);
+        result.p50Nanos = percentile(latencies, 0.50);
+        result.p90Nanos = percentile(latencies, 0.90);
+        result.p99Nanos = percentile(latencies, 0.99);
+        result.maxNanos = latencies.length > 0 ? latencies[latencies.length - 1] : 0;
+        mLastTreeCounter = treeCounter;
+        return result;
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))];
+    }
+
+    /**
+     * 在统计器上执行轨迹中的一个操作
+     */
+    static void apply(@NonNull TreeCounter treeCounter, @NonNull CountTrace.Op op) {
+        switch (op.type) {
+            case CountTrace.OP_ADD_COUNT:
+                treeCounter.addCount(op.id, op.value);
+                break;
+            case CountTrace.OP_REDUCE_COUNT:
+                treeCounter.reduceCount(op.id, op.value);
+                break;
+            case CountTrace.OP_APPLY_COUNT:
+                treeCounter.applyCount(op.id, op.value);
+                break;
+            case CountTrace.OP_TOUCH_NODE:
+                treeCounter.touchNode(op.id);
+                break;
+            case CountTrace.OP_SET_BYPASS:
+                treeCounter.setBypass(op.id, op.value != 0);
+                break;
+            case CountTrace.OP_CLEAR_SUBTREE:
+                treeCounter.clearSubtree(op.id);
+                break;
+            case CountTrace.OP_RELOAD:
+                treeCounter.reload();
+                break;
+            case CountTrace.OP_RESET:
+                treeCounter.reset();
+                break;
+            case CountTrace.OP_BEGIN_BATCH:
+                treeCounter.beginBatchUpdate();
+                break;
+            case CountTrace.OP_END_BATCH:
+                treeCounter.endBatchUpdate();
+                break;
+            case CountTrace.OP_NODE:
+            case CountTrace.OP_ADD_NODE:
+                treeCounter.addNode(op.parentId, new CountNode(op.id, (ICountFetcher) null,
+                        CountTrace.policyOf(op.policy)));
+                break;
+            case CountTrace.OP_REMOVE_NODE:
+                treeCounter.removeNode(op.id);
+                break;
+            case CountTrace.OP_MOVE_NODE:
+                treeCounter.moveNode(op.id, op.parentId);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 通过反射读取当前线程分配的内存，只在支持com.sun.management.ThreadMXBean的JVM上可用，Android上返回-1
+     */
+    private static long getAllocatedBytes() {
+        try {
+            final Object threadBean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            final Method method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(threadBean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        } catch (LinkageError e) {
+            return -1;
+        }
+    }
+}
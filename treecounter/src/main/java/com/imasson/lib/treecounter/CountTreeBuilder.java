@@ -0,0 +1,218 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>根据扁平的节点列表（id, parentId, 初始数量, 碰触策略, 数据源）批量构建{@link TreeCounter}。</p>
+ * <p>与嵌套调用{@link CountNode}构造函数相比，所有的结构都会按照预估的大小预先分配，
+ * 节点索引、子节点数组和各节点的数量值都是线性地构建出来的，不会重复遍历整棵树。
+ * 适用于直接从数据库游标中读取节点树的场景。</p>
+ * <p>节点行的顺序没有要求，父节点可以出现在子节点之后；parentId为null的行作为根节点，有且只能有一个。
+ * 只有叶子节点的初始数量会被使用，分支节点的数量会按照子节点汇总。</p>
+ */
+@SuppressWarnings("unused")
+public final class CountTreeBuilder {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int mSize = 0;
+    private String[] mIds;
+    private String[] mParentIds;
+    private int[] mCounts;
+    private TouchNodePolicy[] mPolicies;
+    private ICountFetcher[] mFetchers;
+
+    public CountTreeBuilder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize 预估的节点数量，用于预先分配空间
+     */
+    public CountTreeBuilder(int expectedSize) {
+        final int capacity = expectedSize > 0 ? expectedSize : DEFAULT_CAPACITY;
+        mIds = new String[capacity];
+        mParentIds = new String[capacity];
+        mCounts = new int[capacity];
+        mPolicies = new TouchNodePolicy[capacity];
+        mFetchers = new ICountFetcher[capacity];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public CountTreeBuilder addNode(@NonNull String id, @Nullable String parentId) {
+        return addNode(id, parentId, 0, null, null);
+    }
+
+    public CountTreeBuilder addNode(@NonNull String id, @Nullable String parentId,
+                                    int initialCount, @Nullable TouchNodePolicy policy) {
+        return addNode(id, parentId, initialCount, policy, null);
+    }
+
+    /**
+     * 添加一个节点行
+     * @param id 节点ID
+     * @param parentId 父节点ID，为null时表示根节点
+     * @param initialCount 初始数量，仅对叶子节点有效
+     * @param policy 碰触策略，为null时使用{@link TreeCounter#DoNothingPolicy}
+     * @param fetcher 数据源
+     * @return 构建器本身
+     */
+    public CountTreeBuilder addNode(@NonNull String id, @Nullable String parentId, int initialCount,
+                                    @Nullable TouchNodePolicy policy, @Nullable ICountFetcher fetcher) {
+        //noinspection ConstantConditions
+        if (id == null) {
+            throw new IllegalArgumentException("Argument 'id' should not be null!");
+        }
+        if (mSize == mIds.length) {
+            grow();
+        }
+        mIds[mSize] = id;
+        mParentIds[mSize] = parentId;
+        mCounts[mSize] = initialCount;
+        mPolicies[mSize] = policy;
+        mFetchers[mSize] = fetcher;
+        mSize++;
+        return this;
+    }
+
+    private void grow() {
+        final int capacity = mIds.length + (mIds.length >> 1) + 1;
+        mIds = copyOf(mIds, new String[capacity]);
+        mParentIds = copyOf(mParentIds, new String[capacity]);
+        mPolicies = copyOf(mPolicies, new TouchNodePolicy[capacity]);
+        mFetchers = copyOf(mFetchers, new ICountFetcher[capacity]);
+        final int[] counts = new int[capacity];
+        System.arraycopy(mCounts, 0, counts, 0, mSize);
+        mCounts = counts;
+    }
+
+    private <T> T[] copyOf(T[] origin, T[] target) {
+        System.arraycopy(origin, 0, target, 0, mSize);
+        return target;
+    }
+
+    public TreeCounter build() {
+        return build(null);
+    }
+
+    /**
+     * 构建节点树以及节点索引
+     * @param preferenceHandler 配置处理器
+     * @return 构建好的统计器，尚未执行{@link TreeCounter#reload()}
+     * @throws IllegalArgumentException 节点ID重复、找不到父节点、根节点不唯一或者存在环时抛出
+     */
+    public TreeCounter build(@Nullable TreeCounter.PreferenceHandler preferenceHandler) {
+        final int size = mSize;
+        if (size == 0) {
+            throw new IllegalArgumentException("There is no node to build!");
+        }
+
+        // 创建节点和索引
+        final CountNode.Epoch epoch = new CountNode.Epoch();
+        final CountNode[] nodes = new CountNode[size];
+        final HashMap<String, Integer> positions = new HashMap<>(capacityFor(size));
+        final ConcurrentHashMap<String, CountNode> nodeMap = new ConcurrentHashMap<>(capacityFor(size));
+        for (int i = 0; i < size; i++) {
+            if (positions.put(mIds[i], i) != null) {
+                throw new IllegalArgumentException("Duplicate node id: " + mIds[i]);
+            }
+            nodes[i] = new CountNode(mIds[i], mFetchers[i], mPolicies[i]);
+            nodes[i].attachEpoch(epoch);
+            nodeMap.put(mIds[i], nodes[i]);
+        }
+
+        // 解析父节点，并统计每个节点的子节点数量
+        int rootIndex = -1;
+        final int[] parentIndexes = new int[size];
+        final int[] childCounts = new int[size];
+        for (int i = 0; i < size; i++) {
+            final String parentId = mParentIds[i];
+            if (parentId == null) {
+                if (rootIndex >= 0) {
+                    throw new IllegalArgumentException("More than one root node: "
+                            + mIds[rootIndex] + ", " + mIds[i]);
+                }
+                rootIndex = i;
+                parentIndexes[i] = -1;
+            } else {
+                final Integer parentIndex = positions.get(parentId);
+                if (parentIndex == null) {
+                    throw new IllegalArgumentException("Cannot find the parent node [id="
+                            + parentId + "] of node [id=" + mIds[i] + "]");
+                }
+                parentIndexes[i] = parentIndex;
+                childCounts[parentIndex]++;
+            }
+        }
+        if (rootIndex < 0) {
+            throw new IllegalArgumentException("There is no root node!");
+        }
+
+        // 按照预先统计的大小分配子节点数组，子节点保持行的顺序
+        final int[][] childIndexes = new int[size][];
+        for (int i = 0; i < size; i++) {
+            if (childCounts[i] > 0) {
+                childIndexes[i] = new int[childCounts[i]];
+                childCounts[i] = 0;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            final int parentIndex = parentIndexes[i];
+            if (parentIndex >= 0) {
+                childIndexes[parentIndex][childCounts[parentIndex]++] = i;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            final int[] indexes = childIndexes[i];
+            if (indexes != null) {
+                final CountNode[] children = new CountNode[indexes.length];
+                for (int j = 0; j < indexes.length; j++) {
+                    children[j] = nodes[indexes[j]];
+                }
+                nodes[i].attachChildren(children);
+            }
+        }
+
+        // 广度优先得到从上到下的顺序，逆序汇总即可保证子节点先于父节点计算
+        final int[] order = new int[size];
+        order[0] = rootIndex;
+        int tail = 1;
+        for (int head = 0; head < tail; head++) {
+            final int[] indexes = childIndexes[order[head]];
+            if (indexes == null) continue;
+            // 每个节点只有一个父节点且根节点没有父节点，所以每个节点最多被访问一次
+            for (int childIndex : indexes) {
+                order[tail++] = childIndex;
+            }
+        }
+        if (tail != size) {
+            throw new IllegalArgumentException("Some nodes are unreachable from the root, "
+                    + "the node rows may contain a cycle.");
+        }
+        for (int i = size - 1; i >= 0; i--) {
+            final CountNode node = nodes[order[i]];
+            if (node.isLeaf()) {
+                node.restoreCount(mCounts[order[i]]);
+            } else {
+                int totalCount = 0;
+                for (CountNode child : node.getChildren()) {
+                    totalCount += child.getDisplayCount();
+                }
+                node.restoreCount(totalCount);
+            }
+        }
+
+        return new TreeCounter(nodes[rootIndex], preferenceHandler, nodeMap, epoch);
+    }
+
+    private static int capacityFor(int size) {
+        return (int) (size / 0.75f) + 1;
+    }
+}
@@ -0,0 +1,72 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>基于子树哈希（Merkle树）的节点树对账工具，用于检查客户端和服务端的数量值是否一致。</p>
+ * <p>从根节点开始比较两边的子树哈希，只有哈希不同的子树才会继续向下比较，
+ * 所以对账的开销与不一致的节点数量成正比，而不是与整棵树的大小成正比。</p>
+ * <p>哈希值由{@link TreeCounter#getSubtreeHash(String)}提供，远端的哈希值需要使用相同的算法计算，
+ * 比如远端也是一个{@link TreeCounter}，参考{@link #of(TreeCounter)}。</p>
+ */
+@SuppressWarnings("unused")
+public final class CountTreeDigest {
+
+    /**
+     * 子树哈希值的提供者，通常是远端数据的包装
+     */
+    public interface DigestProvider {
+
+        /**
+         * @return 以指定节点为根的子树的哈希值
+         */
+        long getSubtreeHash(@NonNull String id);
+    }
+
+    private CountTreeDigest() {
+    }
+
+    /**
+     * 把本地的统计器包装为哈希值的提供者，用于比较两棵本地的树或者在服务端提供哈希值
+     */
+    @NonNull
+    public static DigestProvider of(@NonNull final TreeCounter treeCounter) {
+        return new DigestProvider() {
+            @Override
+            public long getSubtreeHash(@NonNull String id) {
+                return treeCounter.getSubtreeHash(id);
+            }
+        };
+    }
+
+    /**
+     * 找出本地与远端不一致的最深的节点：节点的子树哈希不同，但它的所有子节点的子树哈希都相同（或者它是叶子节点），
+     * 说明这个节点自身的数量值、旁路标志或子节点结构不一致
+     * @return 不一致的节点ID，两边完全一致时返回空列表
+     */
+    @NonNull
+    public static List<String> diff(@NonNull TreeCounter local, @NonNull DigestProvider remote) {
+        final List<String> result = new ArrayList<>();
+        final CountNode rootNode = local.getRootNode();
+        if (rootNode.getSubtreeHash() != remote.getSubtreeHash(rootNode.getId())) {
+            collectDiff(rootNode, remote, result);
+        }
+        return result;
+    }
+
+    private static void collectDiff(CountNode node, DigestProvider remote, List<String> result) {
+        boolean hasDifferentChild = false;
+        for (CountNode child : node.getChildren()) {
+            if (child.getSubtreeHash() != remote.getSubtreeHash(child.getId())) {
+                hasDifferentChild = true;
+                collectDiff(child, remote, result);
+            }
+        }
+        if (!hasDifferentChild) {
+            result.add(node.getId());
+        }
+    }
+}
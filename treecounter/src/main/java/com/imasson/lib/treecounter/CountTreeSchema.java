@@ -0,0 +1,134 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <p>节点树的不可变结构描述，包括节点ID、拓扑结构和碰触策略，但不包括任何数量值。</p>
+ * <p>节点按照先序遍历的顺序编号，所以以任意节点为根的子树都是一段连续的编号区间。
+ * 一个结构可以被{@link TreeCounterRegistry}中的多个租户共享，每个租户只需要保存自己的数量值。</p>
+ * <p>只支持{@link TreeCounter}中内置的碰触策略，不支持{@link ICountFetcher}。</p>
+ */
+@SuppressWarnings("unused")
+public final class CountTreeSchema {
+
+    static final byte POLICY_DO_NOTHING = 0;
+    static final byte POLICY_ZERO_SELF = 1;
+    static final byte POLICY_ZERO_DESCENDANT = 2;
+    static final byte POLICY_BYPASS = 3;
+
+    private final String[] mIds;
+    private final int[] mParents;
+    private final int[] mSubtreeEnds;
+    private final byte[] mPolicies;
+    private final HashMap<String, Integer> mIndexes;
+
+    private CountTreeSchema(String[] ids, int[] parents, int[] subtreeEnds, byte[] policies) {
+        mIds = ids;
+        mParents = parents;
+        mSubtreeEnds = subtreeEnds;
+        mPolicies = policies;
+        mIndexes = new HashMap<>((int) (ids.length / 0.75f) + 1);
+        for (int i = 0; i < ids.length; i++) {
+            mIndexes.put(ids[i], i);
+        }
+    }
+
+    /**
+     * 按照已有节点树的结构创建，节点的数量值、数据源都会被忽略
+     * @throws IllegalArgumentException 节点使用了自定义的碰触策略时抛出
+     */
+    public static CountTreeSchema from(@NonNull CountNode rootNode) {
+        final List<CountNode> nodes = new ArrayList<>();
+        collect(rootNode, nodes);
+
+        final int size = nodes.size();
+        final String[] ids = new String[size];
+        final int[] parents = new int[size];
+        final int[] subtreeEnds = new int[size];
+        final byte[] policies = new byte[size];
+        final HashMap<CountNode, Integer> indexes = new HashMap<>((int) (size / 0.75f) + 1);
+        for (int i = 0; i < size; i++) {
+            final CountNode node = nodes.get(i);
+            indexes.put(node, i);
+            ids[i] = node.getId();
+            parents[i] = (i == 0) ? -1 : indexes.get(node.getParent());
+            policies[i] = policyOf(node);
+        }
+        // 先序遍历中，子树的结束位置等于最后一个子节点的子树的结束位置
+        for (int i = size - 1; i >= 0; i--) {
+            final CountNode[] children = nodes.get(i).getChildren();
+            subtreeEnds[i] = children.length == 0
+                    ? i + 1 : subtreeEnds[indexes.get(children[children.length - 1])];
+        }
+        return new CountTreeSchema(ids, parents, subtreeEnds, policies);
+    }
+
+    public static CountTreeSchema from(@NonNull TreeCounter treeCounter) {
+        return from(treeCounter.getRootNode());
+    }
+
+    private static void collect(CountNode node, List<CountNode> nodes) {
+        nodes.add(node);
+        for (CountNode child : node.getChildren()) {
+            collect(child, nodes);
+        }
+    }
+
+    private static byte policyOf(CountNode node) {
+        final TouchNodePolicy policy = node.getTouchNodePolicy();
+        if (policy == TreeCounter.DoNothingPolicy) {
+            return POLICY_DO_NOTHING;
+        } else if (policy == TreeCounter.ZeroSelfPolicy) {
+            return POLICY_ZERO_SELF;
+        } else if (policy == TreeCounter.ZeroDescendantPolicy) {
+            return POLICY_ZERO_DESCENDANT;
+        } else if (policy == TreeCounter.BypassPolicy) {
+            return POLICY_BYPASS;
+        }
+        throw new IllegalArgumentException("Custom TouchNodePolicy is not supported by schema, node: "
+                + node.getId());
+    }
+
+    public int size() {
+        return mIds.length;
+    }
+
+    @NonNull
+    public String getId(int index) {
+        return mIds[index];
+    }
+
+    /**
+     * @return 节点的编号，不存在时返回-1
+     */
+    public int indexOf(@NonNull String id) {
+        final Integer index = mIndexes.get(id);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * @return 父节点的编号，根节点返回-1
+     */
+    public int getParent(int index) {
+        return mParents[index];
+    }
+
+    /**
+     * @return 以该节点为根的子树的结束编号（不包含），子树的编号区间为[index, end)
+     */
+    int getSubtreeEnd(int index) {
+        return mSubtreeEnds[index];
+    }
+
+    public boolean isLeaf(int index) {
+        return mSubtreeEnds[index] == index + 1;
+    }
+
+    byte getPolicy(int index) {
+        return mPolicies[index];
+    }
+}
@@ -0,0 +1,144 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * <p>生成接近线上负载的{@link CountTrace}轨迹，用于在没有录制数据时进行基准测试。</p>
+ * <p>节点树使用优先连接的方式生成，子节点越多的节点越容易得到新的子节点，所以树的形状是偏斜的，
+ * 少数的会话列表下挂着大量的叶子节点。叶子节点使用{@link TreeCounter#ZeroSelfPolicy}，
+ * 部分中间节点使用{@link TreeCounter#BypassPolicy}。</p>
+ * <p>叶子节点的访问频率服从Zipf分布，少数热点会话占据大部分的消息，操作的比例大致为：
+ * 增加70%，减少10%，碰触15%，设置数量3%，旁路2%。相同的种子总是生成相同的轨迹。</p>
+ */
+@SuppressWarnings("unused")
+public class CountWorkloadGenerator {
+
+    private static final String ROOT_ID = "root";
+
+    private final Random mRandom;
+    private int mNodeCount = 1000;
+    private double mLeafRatio = 0.8;
+    private double mBypassRatio = 0.2;
+    private double mZipfExponent = 1.1;
+
+    public CountWorkloadGenerator(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * 设置节点总数，默认为1000
+     */
+    public CountWorkloadGenerator setNodeCount(int nodeCount) {
+        if (nodeCount < 2) {
+            throw new IllegalArgumentException("Node count should be at least 2!");
+        }
+        mNodeCount = nodeCount;
+        return this;
+    }
+
+    /**
+     * 设置叶子节点占节点总数的比例，默认为0.8
+     */
+    public CountWorkloadGenerator setLeafRatio(double leafRatio) {
+        mLeafRatio = leafRatio;
+        return this;
+    }
+
+    /**
+     * 设置中间节点中使用旁路策略的比例，默认为0.2
+     */
+    public CountWorkloadGenerator setBypassRatio(double bypassRatio) {
+        mBypassRatio = bypassRatio;
+        return this;
+    }
+
+    /**
+     * 设置叶子节点访问频率的Zipf指数，越大热点越集中，默认为1.1
+     */
+    public CountWorkloadGenerator setZipfExponent(double zipfExponent) {
+        mZipfExponent = zipfExponent;
+        return this;
+    }
+
+    /**
+     * 生成节点树和指定数量的操作，写入到轨迹中
+     * @param writer 轨迹的写入者，调用者负责关闭
+     * @param opCount 操作的数量
+     */
+    public void generate(@NonNull CountTrace.Writer writer, int opCount) {
+        final int innerCount = Math.max(1, (int) (mNodeCount * (1 - mLeafRatio)));
+        final String[] leafIds = new String[mNodeCount - innerCount];
+
+        // 中间节点：优先连接到子节点较多的节点
+        final String[] innerIds = new String[innerCount];
+        final int[] attachments = new int[innerCount * 2];
+        int attachmentCount = 0;
+        innerIds[0] = ROOT_ID;
+        attachments[attachmentCount++] = 0;
+        writer.writeNode(CountTrace.OP_NODE, ROOT_ID, null, CountTrace.POLICY_DO_NOTHING, 0);
+        for (int i = 1; i < innerCount; i++) {
+            final int parent = attachments[mRandom.nextInt(attachmentCount)];
+            innerIds[i] = "group_" + i;
+            writer.writeNode(CountTrace.OP_NODE, innerIds[i], innerIds[parent],
+                    mRandom.nextDouble() < mBypassRatio
+                            ? CountTrace.POLICY_BYPASS : CountTrace.POLICY_DO_NOTHING, 0);
+            attachments[attachmentCount++] = parent;
+            attachments[attachmentCount++] = i;
+        }
+
+        // 叶子节点：同样偏向子节点较多的中间节点
+        final int[] leafAttachments = Arrays.copyOf(attachments, attachmentCount + leafIds.length);
+        int leafAttachmentCount = attachmentCount;
+        for (int i = 0; i < leafIds.length; i++) {
+            final int parent = leafAttachments[mRandom.nextInt(leafAttachmentCount)];
+            leafIds[i] = "leaf_" + i;
+            writer.writeNode(CountTrace.OP_NODE, leafIds[i], innerIds[parent],
+                    CountTrace.POLICY_ZERO_SELF, 0);
+            leafAttachments[leafAttachmentCount++] = parent;
+        }
+
+        // 叶子节点的访问累积分布，热度的排名与节点的顺序无关
+        final double[] cdf = new double[leafIds.length];
+        double sum = 0;
+        for (int i = 0; i < cdf.length; i++) {
+            sum += 1 / Math.pow(i + 1, mZipfExponent);
+            cdf[i] = sum;
+        }
+        shuffle(leafIds);
+
+        for (int i = 0; i < opCount; i++) {
+            final String leafId = leafIds[sample(cdf, sum)];
+            final int op = mRandom.nextInt(100);
+            if (op < 70) {
+                writer.write(CountTrace.OP_ADD_COUNT, leafId, 1 + mRandom.nextInt(3));
+            } else if (op < 80) {
+                writer.write(CountTrace.OP_REDUCE_COUNT, leafId, 1);
+            } else if (op < 95) {
+                writer.write(CountTrace.OP_TOUCH_NODE, leafId);
+            } else if (op < 98) {
+                writer.write(CountTrace.OP_APPLY_COUNT, leafId, mRandom.nextInt(100));
+            } else {
+                final String innerId = innerIds[mRandom.nextInt(innerIds.length)];
+                writer.write(CountTrace.OP_SET_BYPASS, innerId, mRandom.nextInt(2));
+            }
+        }
+    }
+
+    private int sample(double[] cdf, double sum) {
+        final double value = mRandom.nextDouble() * sum;
+        final int index = Arrays.binarySearch(cdf, value);
+        return Math.min(cdf.length - 1, index >= 0 ? index : -index - 1);
+    }
+
+    private void shuffle(String[] ids) {
+        for (int i = ids.length - 1; i > 0; i--) {
+            final int j = mRandom.nextInt(i + 1);
+            final String id = ids[i];
+            ids[i] = ids[j];
+            ids[j] = id;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+
+/**
+ * 一次获取多个叶子节点数量的数据源接口，比如用一次“SELECT id, COUNT(*) ... GROUP BY id”代替每个节点一次查询，
+ * 参考{@link TreeCounter#setBatchCountFetcher(String, IBatchCountFetcher)}
+ */
+public interface IBatchCountFetcher {
+
+    /**
+     * 从数据源获取多个叶子节点的数量
+     * @param ids 需要获取数量的叶子节点ID
+     * @param callback 获取完成后的回调，可以在其他线程回调，但只能回调一次
+     */
+    void loadCounts(@NonNull String[] ids, @NonNull LoadCountsCallback callback);
+
+    interface LoadCountsCallback {
+        /**
+         * 返回获取到的数量，两个数组按下标一一对应，可以只返回数量不为0的节点，没有返回的节点数量当做0
+         * @param ids 节点ID
+         * @param counts 节点的数量
+         */
+        void onLoadCounts(@NonNull String[] ids, @NonNull int[] counts);
+    }
+}
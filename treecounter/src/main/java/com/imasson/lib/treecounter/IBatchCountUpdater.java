@@ -0,0 +1,18 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+
+/**
+ * 一次写回多个叶子节点数量的数据源接口，比如用一次“UPDATE ... WHERE id IN (...)”代替每个节点一次更新。
+ * 通过{@link TreeCounter#setBatchCountFetcher(String, IBatchCountFetcher)}设置的批量数据源同时实现该接口时，
+ * {@link TreeCounter#clearSubtree(String)}会把子树下叶子节点的写回合并为一次调用，而不再逐个调用{@link ICountFetcher#updateCount(int)}
+ */
+public interface IBatchCountUpdater {
+
+    /**
+     * 把多个叶子节点的数量写回数据源
+     * @param ids 节点ID
+     * @param counts 节点的数量，与ID按下标一一对应
+     */
+    void updateCounts(@NonNull String[] ids, @NonNull int[] counts);
+}
@@ -0,0 +1,220 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * <p>在服务端确认的数量之上叠加本地的乐观修改，比如用户阅读会话之后立即清零，而不必等待服务端确认。</p>
+ * <p>每个叶子节点的数量值由两层组成：服务端确认的基础值，以及按操作ID记录的尚未确认的增量，
+ * 节点上的数量值总是两者之和（不小于0）。服务端确认或拒绝一个操作时只会更新这一个叶子节点及其父辈节点，
+ * 不需要再调用{@link TreeCounter#reload()}重新加载整棵树；拒绝的操作会被精确地撤销，
+ * 即使期间还有其他操作或者新的确认值。</p>
+ * <p>只有存在未确认操作的叶子节点才会被记录，期间通过其他方式对节点的修改（比如新消息的{@link TreeCounter#addCount}）
+ * 会被当做基础值的变化。与{@link TreeCounter}一样，该类不是线程安全的。</p>
+ */
+@SuppressWarnings("unused")
+public class OptimisticCounts {
+
+    private static final String LOG_TAG = "OptimisticCounts";
+
+    private final TreeCounter mTreeCounter;
+    private final HashMap<String, LeafState> mLeafStates = new HashMap<>();
+    private final LinkedHashMap<String, PendingOperation> mOperations = new LinkedHashMap<>();
+    private boolean mDebuggable = false;
+
+    /**
+     * 有未确认操作的叶子节点
+     */
+    private static final class LeafState {
+        int confirmedCount;
+        int pendingDelta;
+        int pendingOperationCount;
+        /** 上次写入节点的数量值，用于发现其他途径的修改 */
+        int appliedCount;
+    }
+
+    private static final class PendingOperation {
+        final String id;
+        final int delta;
+
+        PendingOperation(String id, int delta) {
+            this.id = id;
+            this.delta = delta;
+        }
+    }
+
+    public OptimisticCounts(@NonNull TreeCounter treeCounter) {
+        //noinspection ConstantConditions
+        if (treeCounter == null) {
+            throw new IllegalArgumentException("Argument 'treeCounter' should not be null!");
+        }
+        mTreeCounter = treeCounter;
+    }
+
+    public void setDebuggable(boolean debuggable) {
+        this.mDebuggable = debuggable;
+    }
+
+    /**
+     * @return 尚未确认的操作数量
+     */
+    public int getPendingOperationCount() {
+        return mOperations.size();
+    }
+
+    /**
+     * 乐观地修改叶子节点的数量，直到{@link #acknowledge(String)}或{@link #reject(String)}
+     * @param operationId 操作ID，通常是发送给服务端的请求ID
+     * @param id 叶子节点ID
+     * @param delta 数量的增量
+     */
+    public void applyDelta(@NonNull String operationId, @NonNull String id, int delta) {
+        if (mOperations.containsKey(operationId)) {
+            if (mDebuggable) Log.w(LOG_TAG, "The operation [id=" + operationId + "] is already pending.");
+            return;
+        }
+        final LeafState state = obtainState(id);
+        if (state == null) {
+            return;
+        }
+        mOperations.put(operationId, new PendingOperation(id, delta));
+        state.pendingDelta += delta;
+        state.pendingOperationCount++;
+        applyState(id, state);
+    }
+
+    /**
+     * 乐观地清零叶子节点，比如用户阅读了会话，增量为当前显示的数量的相反数
+     */
+    public void markRead(@NonNull String operationId, @NonNull String id) {
+        final CountNode node = mTreeCounter.findNode(id);
+        if (node == null || !node.isLeaf()) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot find the leaf node [id=" + id + "] to mark read.");
+            return;
+        }
+        applyDelta(operationId, id, -node.getCount());
+    }
+
+    /**
+     * 服务端接受了操作，操作的增量成为基础值的一部分，节点的数量值不变
+     */
+    public void acknowledge(@NonNull String operationId) {
+        final PendingOperation operation = mOperations.remove(operationId);
+        if (operation == null) {
+            return;
+        }
+        final LeafState state = mLeafStates.get(operation.id);
+        syncState(operation.id, state);
+        state.confirmedCount += operation.delta;
+        finishOperation(operation, state);
+    }
+
+    /**
+     * 服务端接受了操作，并返回了包括该操作在内的最新数量
+     * @param confirmedCount 服务端确认的数量，其他尚未确认的操作会继续叠加在它之上
+     */
+    public void acknowledge(@NonNull String operationId, int confirmedCount) {
+        final PendingOperation operation = mOperations.remove(operationId);
+        if (operation == null) {
+            return;
+        }
+        final LeafState state = mLeafStates.get(operation.id);
+        state.confirmedCount = confirmedCount;
+        finishOperation(operation, state);
+    }
+
+    /**
+     * 服务端拒绝了操作，撤销操作的增量
+     */
+    public void reject(@NonNull String operationId) {
+        final PendingOperation operation = mOperations.remove(operationId);
+        if (operation == null) {
+            return;
+        }
+        final LeafState state = mLeafStates.get(operation.id);
+        syncState(operation.id, state);
+        finishOperation(operation, state);
+    }
+
+    /**
+     * 更新服务端确认的数量，比如同步时收到的推送，未确认的操作会继续叠加在它之上
+     */
+    public void confirm(@NonNull String id, int confirmedCount) {
+        final LeafState state = mLeafStates.get(id);
+        if (state == null) {
+            mTreeCounter.applyCount(id, confirmedCount);
+            return;
+        }
+        state.confirmedCount = confirmedCount;
+        applyState(id, state);
+    }
+
+    /**
+     * @return 叶子节点服务端确认的数量，没有未确认的操作时就是节点的数量值
+     */
+    public int getConfirmedCount(@NonNull String id) {
+        final LeafState state = mLeafStates.get(id);
+        if (state != null) {
+            syncState(id, state);
+            return state.confirmedCount;
+        }
+        final CountNode node = mTreeCounter.findNode(id);
+        return node != null ? node.getCount() : 0;
+    }
+
+    /**
+     * @return 叶子节点尚未确认的增量合计
+     */
+    public int getPendingDelta(@NonNull String id) {
+        final LeafState state = mLeafStates.get(id);
+        return state != null ? state.pendingDelta : 0;
+    }
+
+    private LeafState obtainState(String id) {
+        LeafState state = mLeafStates.get(id);
+        if (state != null) {
+            syncState(id, state);
+            return state;
+        }
+        final CountNode node = mTreeCounter.findNode(id);
+        if (node == null || !node.isLeaf()) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot find the leaf node [id=" + id + "] to apply delta.");
+            return null;
+        }
+        state = new LeafState();
+        state.confirmedCount = node.getCount();
+        state.appliedCount = state.confirmedCount;
+        mLeafStates.put(id, state);
+        return state;
+    }
+
+    /**
+     * 把其他途径对节点的修改计入基础值
+     */
+    private void syncState(String id, LeafState state) {
+        final CountNode node = mTreeCounter.findNode(id);
+        final int currentCount = node != null ? node.getCount() : 0;
+        if (currentCount != state.appliedCount) {
+            state.confirmedCount += currentCount - state.appliedCount;
+            state.appliedCount = currentCount;
+        }
+    }
+
+    private void finishOperation(PendingOperation operation, LeafState state) {
+        state.pendingDelta -= operation.delta;
+        state.pendingOperationCount--;
+        applyState(operation.id, state);
+        if (state.pendingOperationCount == 0) {
+            mLeafStates.remove(operation.id);
+        }
+    }
+
+    private void applyState(String id, LeafState state) {
+        final int count = Math.max(0, state.confirmedCount + state.pendingDelta);
+        state.appliedCount = count;
+        mTreeCounter.applyCount(id, count);
+    }
+}
@@ -0,0 +1,108 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>可合并的增减计数器（PN-Counter），一种无冲突复制数据类型。</p>
+ * <p>每个副本只修改自己的增加量和减少量，两者都只增不减，合并时按副本取最大值，
+ * 所以合并满足交换律、结合律和幂等性，同一个数据包重复合并或乱序合并都会得到相同的结果。</p>
+ */
+@SuppressWarnings("unused")
+public final class PNCounter {
+
+    /** 副本ID到{增加量, 减少量}的映射 */
+    private final HashMap<String, long[]> mEntries = new HashMap<>(4);
+
+    public void increment(@NonNull String replicaId, long delta) {
+        if (delta > 0) {
+            entryOf(replicaId)[0] += delta;
+        }
+    }
+
+    public void decrement(@NonNull String replicaId, long delta) {
+        if (delta > 0) {
+            entryOf(replicaId)[1] += delta;
+        }
+    }
+
+    /**
+     * @return 所有副本的增加量之和减去减少量之和，可能为负数
+     */
+    public long getValue() {
+        long value = 0;
+        for (long[] entry : mEntries.values()) {
+            value += entry[0] - entry[1];
+        }
+        return value;
+    }
+
+    /**
+     * 合并另一个计数器的状态
+     * @return 合并后的值是否发生了变化
+     */
+    public boolean merge(@NonNull PNCounter other) {
+        boolean changed = false;
+        for (Map.Entry<String, long[]> remote : other.mEntries.entrySet()) {
+            final long[] remoteEntry = remote.getValue();
+            final long[] localEntry = entryOf(remote.getKey());
+            if (remoteEntry[0] > localEntry[0]) {
+                localEntry[0] = remoteEntry[0];
+                changed = true;
+            }
+            if (remoteEntry[1] > localEntry[1]) {
+                localEntry[1] = remoteEntry[1];
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    @NonNull
+    public PNCounter copy() {
+        final PNCounter counter = new PNCounter();
+        for (Map.Entry<String, long[]> entry : mEntries.entrySet()) {
+            counter.mEntries.put(entry.getKey(), entry.getValue().clone());
+        }
+        return counter;
+    }
+
+    public void writeTo(@NonNull DataOutput output) throws IOException {
+        output.writeInt(mEntries.size());
+        for (Map.Entry<String, long[]> entry : mEntries.entrySet()) {
+            output.writeUTF(entry.getKey());
+            output.writeLong(entry.getValue()[0]);
+            output.writeLong(entry.getValue()[1]);
+        }
+    }
+
+    @NonNull
+    public static PNCounter readFrom(@NonNull DataInput input) throws IOException {
+        final PNCounter counter = new PNCounter();
+        final int size = input.readInt();
+        for (int i = 0; i < size; i++) {
+            final String replicaId = input.readUTF();
+            counter.mEntries.put(replicaId, new long[] {input.readLong(), input.readLong()});
+        }
+        return counter;
+    }
+
+    private long[] entryOf(String replicaId) {
+        long[] entry = mEntries.get(replicaId);
+        if (entry == null) {
+            entry = new long[2];
+            mEntries.put(replicaId, entry);
+        }
+        return entry;
+    }
+
+    @Override
+    public String toString() {
+        return "PNCounter{value=" + getValue() + ", replicas=" + mEntries.size() + "}";
+    }
+}
@@ -0,0 +1,281 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <p>跨进程共享的数量表，基于内存映射文件，比如桌面小部件、通知服务和主进程显示同一份未读数量。</p>
+ * <p>只有一个进程通过{@link #publish(TreeCounter, File)}把{@link TreeCounter}发布到文件中，
+ * 之后每次数量变化都会写入对应节点的槽。其他进程通过{@link #open(File)}以只读方式打开，
+ * 读取时不需要任何IPC调用，也不需要重建节点树或重新执行{@link ICountFetcher}。</p>
+ * <p>每个槽使用序号锁（seqlock）：写入前后各递增一次序号，并写入整个槽的校验值。
+ * 读取时一次读出整个槽，序号为奇数、前后不一致或者校验值不匹配时重试。跨进程的普通内存写入没有顺序保证，
+ * 所以由校验值而不是写入顺序发现读到了一半的槽。每次读取的值都来自某一次完整的写入，
+ * 但两次读取（比如先读显示数量再读原始数量）之间可能已经有新的写入。</p>
+ * <p>发布时的节点树结构是固定的，之后新增的节点不会被发布。节点树结构发生变化时，
+ * 需要重新发布，读取者也需要重新打开。发布时先写入临时文件再重命名，
+ * 已经打开的读取者仍然映射着原来的文件，可以继续读取旧的数量值，而不会因为文件被截断而崩溃。</p>
+ */
+@SuppressWarnings("unused")
+public class SharedCountTable {
+
+    private static final String LOG_TAG = "SharedCountTable";
+
+    private static final int MAGIC = 0x54435354;
+    private static final int VERSION = 2;
+    /** 文件头：魔数、版本、槽数量、ID表长度 */
+    private static final int HEADER_SIZE = 16;
+    /** 每个槽：序号、显示数量、原始数量、旁路标志、校验值 */
+    private static final int SLOT_SIZE = 20;
+    private static final int MAX_READ_RETRIES = 1000;
+
+    private final MappedByteBuffer mBuffer;
+    private final HashMap<String, Integer> mSlots;
+    private boolean mDebuggable = false;
+
+    private SharedCountTable(MappedByteBuffer buffer, HashMap<String, Integer> slots) {
+        mBuffer = buffer;
+        mSlots = slots;
+    }
+
+    /**
+     * 以只读方式打开其他进程发布的数量表
+     * @throws IOException 文件不存在或格式不正确时抛出
+     */
+    public static SharedCountTable open(@NonNull File file) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        final MappedByteBuffer buffer;
+        try {
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+        } finally {
+            // 关闭文件之后映射依然有效
+            randomAccessFile.close();
+        }
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a shared count table: " + file);
+        }
+        final int slotCount = buffer.getInt(8);
+        final int idTableLength = buffer.getInt(12);
+        final int idTableOffset = HEADER_SIZE + slotCount * SLOT_SIZE;
+        if (slotCount < 0 || idTableLength < 0 || idTableOffset + idTableLength > buffer.capacity()) {
+            throw new IOException("Corrupted shared count table: " + file);
+        }
+
+        final byte[] idTable = new byte[idTableLength];
+        final ByteBuffer view = buffer.duplicate();
+        view.position(idTableOffset);
+        view.get(idTable);
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(idTable));
+        final HashMap<String, Integer> slots = new HashMap<>((int) (slotCount / 0.75f) + 1);
+        for (int i = 0; i < slotCount; i++) {
+            slots.put(input.readUTF(), i);
+        }
+        return new SharedCountTable(buffer, slots);
+    }
+
+    /**
+     * 把节点树发布到文件中，之后数量的变化会持续写入，直到调用{@link Writer#close()}
+     */
+    public static Writer publish(@NonNull TreeCounter treeCounter, @NonNull File file) throws IOException {
+        return new Writer(treeCounter, file);
+    }
+
+    public void setDebuggable(boolean debuggable) {
+        this.mDebuggable = debuggable;
+    }
+
+    public int size() {
+        return mSlots.size();
+    }
+
+    public boolean contains(@NonNull String id) {
+        return mSlots.containsKey(id);
+    }
+
+    /**
+     * @return 根节点的显示数量
+     */
+    public int getCount() {
+        return readSlot(0, 4);
+    }
+
+    /**
+     * @return 节点的显示数量，与{@link TreeCounter#getCount(String)}一致，不存在的节点返回0
+     */
+    public int getCount(@NonNull String id) {
+        final Integer slot = mSlots.get(id);
+        return slot != null ? readSlot(slot, 4) : 0;
+    }
+
+    /**
+     * @return 节点的原始数量，与{@link CountNode#getCount()}一致，不存在的节点返回0
+     */
+    public int getRawCount(@NonNull String id) {
+        final Integer slot = mSlots.get(id);
+        return slot != null ? readSlot(slot, 8) : 0;
+    }
+
+    public boolean isBypassed(@NonNull String id) {
+        final Integer slot = mSlots.get(id);
+        return slot != null && readSlot(slot, 12) != 0;
+    }
+
+    private int readSlot(int slot, int fieldOffset) {
+        final int offset = HEADER_SIZE + slot * SLOT_SIZE;
+        for (int i = 0; i < MAX_READ_RETRIES; i++) {
+            final int seq = mBuffer.getInt(offset);
+            if ((seq & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            final int displayCount = mBuffer.getInt(offset + 4);
+            final int count = mBuffer.getInt(offset + 8);
+            final int bypassed = mBuffer.getInt(offset + 12);
+            final int checksum = mBuffer.getInt(offset + 16);
+            if (mBuffer.getInt(offset) == seq && checksum == checksumOf(seq, displayCount, count, bypassed)) {
+                return fieldOffset == 4 ? displayCount : fieldOffset == 8 ? count : bypassed;
+            }
+        }
+        // 写入进程在写入过程中退出时序号会一直是奇数，此时返回最后写入的值
+        if (mDebuggable) Log.w(LOG_TAG, "Slot " + slot + " is not stable, returning the latest value.");
+        return mBuffer.getInt(offset + fieldOffset);
+    }
+
+    /**
+     * 槽的校验值，包括序号，所以旧的校验值不会与新写入的数量值匹配
+     */
+    private static int checksumOf(int seq, int displayCount, int count, int bypassed) {
+        int h = seq * 0x9E3779B9;
+        h = (h ^ displayCount) * 0x85EBCA6B;
+        h = (h ^ count) * 0xC2B2AE35;
+        h = (h ^ bypassed) * 0x27D4EB2F;
+        return h ^ (h >>> 15);
+    }
+
+    /**
+     * 数量表的写入者，作为观察者挂在{@link TreeCounter}上，在统计器的线程中写入
+     */
+    public static final class Writer implements TreeCounter.OnNodeUnreadCountChangeListener,
+            TreeCounter.OnTreeResetListener {
+
+        private final TreeCounter mTreeCounter;
+        private final MappedByteBuffer mBuffer;
+        private final HashMap<CountNode, Integer> mSlots;
+        private boolean mClosed;
+
+        private Writer(TreeCounter treeCounter, File file) throws IOException {
+            //noinspection ConstantConditions
+            if (treeCounter == null) {
+                throw new IllegalArgumentException("Argument 'treeCounter' should not be null!");
+            }
+            mTreeCounter = treeCounter;
+            // 根节点总是在第0个槽中
+            final List<CountNode> nodes = treeCounter.generateCountNodeList();
+
+            final ByteArrayOutputStream idTable = new ByteArrayOutputStream();
+            final DataOutputStream output = new DataOutputStream(idTable);
+            mSlots = new HashMap<>((int) (nodes.size() / 0.75f) + 1);
+            for (int i = 0; i < nodes.size(); i++) {
+                output.writeUTF(nodes.get(i).getId());
+                mSlots.put(nodes.get(i), i);
+            }
+            output.close();
+
+            final int idTableOffset = HEADER_SIZE + nodes.size() * SLOT_SIZE;
+            // 不能截断已经被其他进程映射的文件，在新的临时文件中写好之后再替换
+            final File tempFile = new File(file.getPath() + ".tmp");
+            if (tempFile.exists() && !tempFile.delete()) {
+                throw new IOException("Cannot delete temporary table file: " + tempFile);
+            }
+            final RandomAccessFile randomAccessFile = new RandomAccessFile(tempFile, "rw");
+            try {
+                randomAccessFile.setLength(idTableOffset + idTable.size());
+                mBuffer = randomAccessFile.getChannel().map(
+                        FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length());
+            } finally {
+                randomAccessFile.close();
+            }
+            for (CountNode node : nodes) {
+                writeSlot(node);
+            }
+            final ByteBuffer view = mBuffer.duplicate();
+            view.position(idTableOffset);
+            view.put(idTable.toByteArray());
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.putInt(4, VERSION);
+            mBuffer.putInt(8, nodes.size());
+            mBuffer.putInt(12, idTable.size());
+            if (!tempFile.renameTo(file)) {
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+                throw new IOException("Cannot replace table file: " + file);
+            }
+
+            treeCounter.addObserver(this);
+        }
+
+        @Override
+        public void onNodeUnreadCountChanged(CountNode node) {
+            if (!mClosed) {
+                writeSlot(node);
+            }
+        }
+
+        @Override
+        public void onTreeReset(TreeCounter counter) {
+            if (!mClosed) {
+                for (CountNode node : mSlots.keySet()) {
+                    writeSlot(node);
+                }
+            }
+        }
+
+        private void writeSlot(CountNode node) {
+            final Integer slot = mSlots.get(node);
+            if (slot == null) {
+                return;
+            }
+            final int offset = HEADER_SIZE + slot * SLOT_SIZE;
+            final int seq = mBuffer.getInt(offset);
+            final int displayCount = node.getDisplayCount();
+            final int count = node.getCount();
+            final int bypassed = node.isBypassed() ? 1 : 0;
+            mBuffer.putInt(offset, seq + 1);
+            mBuffer.putInt(offset + 4, displayCount);
+            mBuffer.putInt(offset + 8, count);
+            mBuffer.putInt(offset + 12, bypassed);
+            mBuffer.putInt(offset + 16, checksumOf(seq + 2, displayCount, count, bypassed));
+            mBuffer.putInt(offset, seq + 2);
+        }
+
+        /**
+         * 把映射的内容刷新到存储设备，通常不需要调用，其他进程读取的是同一份内存
+         */
+        public void force() {
+            mBuffer.force();
+        }
+
+        /**
+         * 停止发布，已经写入的数量值依然可以被读取
+         */
+        public void close() {
+            if (!mClosed) {
+                mClosed = true;
+                mTreeCounter.removeObserver(this);
+            }
+        }
+    }
+}
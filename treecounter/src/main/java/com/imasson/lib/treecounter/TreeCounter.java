@@ -5,8 +5,20 @@ import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 
 /**
@@ -21,9 +33,28 @@ import java.util.concurrent.ConcurrentHashMap;
 public class TreeCounter {
 
     private CountNode mRootNode;
-    private ConcurrentHashMap<String, CountNode> mCountNodeMap = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CountNode> mCountNodeMap;
     private OnNodeUnreadCountChangeListener mListener;
     private PreferenceHandler mPreferenceHandler;
+    private CountJournal mJournal;
+    private final CopyOnWriteArrayList<OnNodeUnreadCountChangeListener> mObservers = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<OnTreeStructureChangeListener> mStructureObservers = new CopyOnWriteArrayList<>();
+    private final CountNode.Epoch mEpoch;
+    private ResetHandler mResetHandler;
+    private Executor mMutationExecutor;
+    private int mSubscriptionCount;
+    private CountTrace.Writer mTraceWriter;
+    private int mSubtreeSubscriptionCount;
+    private long mMemoryBudget;
+    private OnMemoryBudgetExceededListener mMemoryBudgetListener;
+    private boolean mCheckingMemoryBudget;
+    private final HashMap<CountNode, TouchNodePolicy> mDynamicParents = new HashMap<>();
+    private final LinkedHashSet<CountNode> mPendingCollapses = new LinkedHashSet<>();
+    private CountPathTrie mPathIndex;
+    private char mPathSeparator;
+    private TouchNodePolicy mPathLeafPolicy;
+    private final HashMap<CountNode, IBatchCountFetcher> mBatchFetchers = new HashMap<>();
+    private CountFetchScheduler mFetchScheduler;
 
     public CountNode getRootNode() {
         return mRootNode;
@@ -33,10 +64,152 @@ public class TreeCounter {
         this.mListener = l;
     }
 
+    /**
+     * 添加一个内部的观察者，与{@link #setListener(OnNodeUnreadCountChangeListener)}设置的监听器同时生效，
+     * 供同一个包内的组件（如{@link AsyncTreeCounter}）使用，不会占用调用者的监听器
+     */
+    void addObserver(@NonNull OnNodeUnreadCountChangeListener observer) {
+        mObservers.addIfAbsent(observer);
+    }
+
+    void removeObserver(@NonNull OnNodeUnreadCountChangeListener observer) {
+        mObservers.remove(observer);
+    }
+
+    /**
+     * 添加一个内部的结构观察者，节点被添加、移除（包括动态子节点的回收）或移动之后回调，
+     * 供按父辈节点缓存合计的组件（比如{@link ActivityWindow}）发现父辈节点的变化
+     */
+    void addStructureObserver(@NonNull OnTreeStructureChangeListener observer) {
+        mStructureObservers.addIfAbsent(observer);
+    }
+
+    void removeStructureObserver(@NonNull OnTreeStructureChangeListener observer) {
+        mStructureObservers.remove(observer);
+    }
+
+    /**
+     * 订阅单个节点的数量变化，与{@link #setListener(OnNodeUnreadCountChangeListener)}不同，
+     * 只有该节点变化时才会回调，且同一个节点可以有多个订阅者
+     * @return 订阅，节点不存在时返回null
+     */
+    @Nullable
+    public CountSubscription subscribe(@NonNull String id, @NonNull OnNodeUnreadCountChangeListener l) {
+        return subscribe(id, l, false, null);
+    }
+
+    /**
+     * 订阅单个节点的显示数量跨越阈值的变化，比如角标从无到有、从99变为“99+”
+     * @param thresholds 严格递增的阈值，参考{@link CountSubscription#DOT_THRESHOLDS}
+     * @return 订阅，节点不存在时返回null
+     */
+    @Nullable
+    public CountSubscription subscribe(@NonNull String id, @NonNull OnNodeUnreadCountChangeListener l,
+                                       @NonNull int[] thresholds) {
+        return subscribe(id, l, false, CountSubscription.checkThresholds(thresholds));
+    }
+
+    /**
+     * 订阅整棵子树的数量变化，子树中任意节点（包括该节点自身）变化时都会回调，回调的参数为变化的节点
+     * @return 订阅，节点不存在时返回null
+     */
+    @Nullable
+    public CountSubscription subscribeSubtree(@NonNull String id, @NonNull OnNodeUnreadCountChangeListener l) {
+        return subscribe(id, l, true, null);
+    }
+
+    private CountSubscription subscribe(String id, OnNodeUnreadCountChangeListener l, boolean subtree,
+                                        int[] thresholds) {
+        //noinspection ConstantConditions
+        if (l == null) {
+            throw new IllegalArgumentException("Argument 'l' should not be null!");
+        }
+        final CountNode countNode = mCountNodeMap.get(id);
+        if (countNode == null) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot find the node [id=" + id + "] to subscribe.");
+            return null;
+        }
+        final CountSubscription subscription = new CountSubscription(this, countNode, l, subtree, thresholds);
+        subscription.next = countNode.subscriptions;
+        if (subscription.next != null) {
+            subscription.next.prev = subscription;
+        }
+        countNode.subscriptions = subscription;
+        mSubscriptionCount++;
+        if (subtree) {
+            mSubtreeSubscriptionCount++;
+        }
+        return subscription;
+    }
+
+    void unsubscribe(@NonNull CountSubscription subscription) {
+        if (!subscription.active) {
+            return;
+        }
+        subscription.active = false;
+        if (subscription.prev != null) {
+            subscription.prev.next = subscription.next;
+        } else {
+            subscription.node.subscriptions = subscription.next;
+        }
+        if (subscription.next != null) {
+            subscription.next.prev = subscription.prev;
+        }
+        // 保留next，正在分发的回调中取消订阅时仍然可以继续遍历
+        subscription.prev = null;
+        mSubscriptionCount--;
+        if (subscription.subtree) {
+            mSubtreeSubscriptionCount--;
+        }
+    }
+
+    /**
+     * 设置数据源异步回调时执行更新的线程，为null时直接在回调的线程中更新
+     */
+    void setMutationExecutor(@Nullable Executor executor) {
+        this.mMutationExecutor = executor;
+    }
+
     public PreferenceHandler getPreferenceHandler() {
         return mPreferenceHandler;
     }
 
+    /**
+     * 设置预写日志，之后所有叶子节点数量值和旁路标志的变化都会先追加到日志中，
+     * 通常在{@link CountJournal#recover(TreeCounter)}之后调用
+     * @param journal 预写日志，为null时取消
+     */
+    public void setJournal(@Nullable CountJournal journal) {
+        this.mJournal = journal;
+        if (journal != null) {
+            journal.attach(this);
+        }
+    }
+
+    @Nullable
+    public CountJournal getJournal() {
+        return mJournal;
+    }
+
+    /**
+     * 开始录制调用轨迹，会先写入当前的节点树结构，之后所有修改操作都会按调用顺序写入，参考{@link CountTrace}
+     * @param writer 轨迹的写入者，为null时停止录制
+     */
+    public void setTraceWriter(@Nullable CountTrace.Writer writer) {
+        if (writer != null) {
+            writer.writeTree(this);
+        }
+        this.mTraceWriter = writer;
+    }
+
+
+    private final HashMap<String, Boolean> mBypassedCache = new HashMap<>();
+    private final LinkedHashMap<String, Boolean> mPendingBypassedWrites = new LinkedHashMap<>();
+
+    private int mBatchDepth = 0;
+    private final LinkedHashMap<CountNode, Boolean> mBatchChangedNodes = new LinkedHashMap<>();
+    /** 批量更新期间旁路标志变化的节点，父辈节点只需要重新计算，不触发碰触策略的回调 */
+    private final LinkedHashSet<CountNode> mBatchBypassedNodes = new LinkedHashSet<>();
 
     private static final String LOG_TAG = "TreeCounter";
     private boolean mDebuggable = false;
@@ -57,16 +230,31 @@ public class TreeCounter {
         }
         mRootNode = rootNode;
         mPreferenceHandler = preferenceHandler;
+        mCountNodeMap = new ConcurrentHashMap<>();
+        mEpoch = new CountNode.Epoch();
         buildNodeMap();
     }
 
+    /**
+     * 使用已经建好的节点索引构造，省去再次遍历整棵树，供{@link CountTreeBuilder}使用
+     */
+    TreeCounter(@NonNull CountNode rootNode, @Nullable PreferenceHandler preferenceHandler,
+                @NonNull ConcurrentHashMap<String, CountNode> nodeMap, @NonNull CountNode.Epoch epoch) {
+        mRootNode = rootNode;
+        mPreferenceHandler = preferenceHandler;
+        mCountNodeMap = nodeMap;
+        mEpoch = epoch;
+    }
+
     private void buildNodeMap() {
         mCountNodeMap.clear();
         mCountNodeMap.put(mRootNode.getId(), mRootNode);
+        mRootNode.attachEpoch(mEpoch);
         mRootNode.iterateDescendant(new CountNodeHandler() {
             @Override
             public boolean handleCountNode(@NonNull CountNode node) {
                 mCountNodeMap.put(node.getId(), node);
+                node.attachEpoch(mEpoch);
                 return false;
             }
         });
@@ -90,19 +278,22 @@ public class TreeCounter {
         }
 
         countNode.addNode(node);
-        mCountNodeMap.put(node.getId(), node);
+        if (mTraceWriter != null) mTraceWriter.writeSubtree(countNode, node, CountTrace.OP_ADD_NODE);
+        indexNode(node);
         if (!node.isLeaf()) {
             node.iterateDescendant(new CountNodeHandler() {
                 @Override
                 public boolean handleCountNode(@NonNull CountNode node) {
-                    mCountNodeMap.put(node.getId(), node);
+                    indexNode(node);
                     return false;
                 }
             });
         }
+        notifyNodeAdded(node);
 
         // TODO 改为局部刷新，提高性能
-        reload();
+        reloadAll();
+        checkMemoryBudget();
     }
 
     public void removeNode(@NonNull String id) {
@@ -124,10 +315,145 @@ public class TreeCounter {
             return;
         }
 
+        if (mTraceWriter != null) mTraceWriter.write(CountTrace.OP_REMOVE_NODE, id);
         countNode.getParent().removeNode(countNode);
+        detachNode(countNode);
+        countNode.iterateDescendant(new CountNodeHandler() {
+            @Override
+            public boolean handleCountNode(@NonNull CountNode node) {
+                detachNode(node);
+                return false;
+            }
+        });
+        notifyNodeRemoved(countNode);
 
         // TODO 改为局部刷新，提高性能
-        reload();
+        reloadAll();
+    }
+
+    /**
+     * <p>把节点连同它的子树移动到新的父节点下，比如把会话移动到另一个文件夹。</p>
+     * <p>与先{@link #removeNode(String)}再{@link #addNode(String, CountNode)}不同，移动不会重新加载数据源，
+     * 索引、句柄和订阅都保持不变，只会重新计算旧父节点和新父节点到根节点的两条路径，开销与树的深度成正比。
+     * 两条路径上的节点各通知一次，共同的父辈节点也只通知一次。</p>
+     * @param id 要移动的节点ID
+     * @param newParentId 新的父节点ID，不能是被移动的节点自己或者它的子孙节点
+     */
+    public void moveNode(@NonNull String id, @NonNull String newParentId) {
+        //noinspection ConstantConditions
+        if (id == null || newParentId == null) return;
+
+        final CountNode countNode = mCountNodeMap.get(id);
+        if (countNode == null || countNode.getParent() == null) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot find the non-root node [id=" + id + "] to move.");
+            return;
+        }
+        final CountNode newParent = mCountNodeMap.get(newParentId);
+        if (newParent == null) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot find the parent node [id=" + newParentId + "] to move to.");
+            return;
+        }
+        final CountNode oldParent = countNode.getParent();
+        if (oldParent == newParent) {
+            return;
+        }
+        for (CountNode node = newParent; node != null; node = node.getParent()) {
+            if (node == countNode) {
+                if (mDebuggable) Log.w(LOG_TAG, "Cannot move the node [id=" + id + "] into its own subtree.");
+                return;
+            }
+        }
+        if (newParent.isLeaf() && (newParent.getCount() != 0 || newParent.getCountFetcher() != null)) {
+            // 有自己的数量的叶子节点变为父节点之后数量会被子节点覆盖
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot move the node [id=" + id + "] under the leaf node ["
+                    + newParentId + "] that has its own count.");
+            return;
+        }
+
+        if (mTraceWriter != null) mTraceWriter.writeMove(id, newParentId);
+        oldParent.removeNode(countNode);
+        newParent.addNode(countNode);
+        notifyNodeMoved(countNode, oldParent);
+        if (countNode.getDisplayCount() == 0) {
+            // 子树没有显示的数量，两条路径上的数量值都不会变化
+            return;
+        }
+
+        if (mBatchDepth > 0) {
+            // 父辈节点推迟到批量更新结束时重新计算，旧父节点自身不会被收集，需要先重新计算
+            oldParent.computeCount();
+            triggerAfterNodeAfterCount(oldParent, false);
+            mBatchChangedNodes.put(oldParent, false);
+            mBatchChangedNodes.put(countNode, false);
+            return;
+        }
+
+        // 旧路径只需要重新计算到与新路径汇合之前，汇合处及以上由新路径统一计算
+        final HashSet<CountNode> newPath = new HashSet<>();
+        for (CountNode node = newParent; node != null; node = node.getParent()) {
+            newPath.add(node);
+        }
+        final List<CountNode> changedNodes = new ArrayList<>();
+        for (CountNode node = oldParent; !newPath.contains(node); node = node.getParent()) {
+            changedNodes.add(node);
+        }
+        for (CountNode node = newParent; node != null; node = node.getParent()) {
+            changedNodes.add(node);
+        }
+
+        for (CountNode node : changedNodes) {
+            node.computeCount();
+            triggerAfterNodeAfterCount(node, false);
+        }
+        notifyCountChanges(changedNodes);
+        flushPendingPreferences();
+        collapsePendingNodes();
+    }
+
+    private void notifyNodeAdded(CountNode countNode) {
+        for (OnTreeStructureChangeListener observer : mStructureObservers) {
+            observer.onNodeAdded(countNode);
+        }
+    }
+
+    private void notifyNodeRemoved(CountNode countNode) {
+        for (OnTreeStructureChangeListener observer : mStructureObservers) {
+            observer.onNodeRemoved(countNode);
+        }
+    }
+
+    private void notifyNodeMoved(CountNode countNode, CountNode oldParent) {
+        for (OnTreeStructureChangeListener observer : mStructureObservers) {
+            observer.onNodeMoved(countNode, oldParent);
+        }
+    }
+
+    /**
+     * 把新添加到树中的节点加入索引，并关联节点树的纪元
+     */
+    private void indexNode(CountNode countNode) {
+        mCountNodeMap.put(countNode.getId(), countNode);
+        countNode.attachEpoch(mEpoch);
+        if (mPathIndex != null) {
+            mPathIndex.put(countNode.getId(), countNode);
+        }
+    }
+
+    /**
+     * 从索引中移除已经被移除的节点，并使它的句柄失效
+     */
+    private void detachNode(CountNode countNode) {
+        mCountNodeMap.remove(countNode.getId(), countNode);
+        if (mPathIndex != null) {
+            mPathIndex.remove(countNode.getId(), countNode);
+        }
+        countNode.generation++;
+        if (!mDynamicParents.isEmpty()) {
+            mDynamicParents.remove(countNode);
+        }
+        if (!mBatchFetchers.isEmpty()) {
+            mBatchFetchers.remove(countNode);
+        }
     }
 
     public List<CountNode> generateCountNodeList() {
@@ -151,6 +477,45 @@ public class TreeCounter {
         return mCountNodeMap.get(id);
     }
 
+    /**
+     * 把节点ID解析为句柄，之后可以使用句柄调用各个操作，省去每次对ID字符串的哈希查找
+     * @return 节点的句柄，节点不存在时返回null
+     */
+    @Nullable
+    public CountNodeHandle resolve(@NonNull String id) {
+        //noinspection ConstantConditions
+        if (id == null) return null;
+
+        final CountNode countNode = mCountNodeMap.get(id);
+        if (countNode == null) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot find the node [id=" + id + "] to resolve.");
+            return null;
+        }
+        return new CountNodeHandle(this, countNode);
+    }
+
+    /**
+     * 获取节点树中保存的同一个ID字符串实例，用于替换调用者临时拼接的ID字符串，减少重复的字符串占用的内存
+     * @return 节点树中的ID实例，节点不存在时返回参数本身
+     */
+    @NonNull
+    public String internId(@NonNull String id) {
+        final CountNode countNode = mCountNodeMap.get(id);
+        return countNode != null ? countNode.getId() : id;
+    }
+
+    /**
+     * @return 句柄对应的节点，句柄不属于该统计器或者节点已经被移除时返回null
+     */
+    @Nullable
+    private CountNode nodeOf(@NonNull CountNodeHandle handle, String operation) {
+        if (handle.isValidFor(this)) {
+            return handle.node;
+        }
+        if (mDebuggable) Log.w(LOG_TAG, "Stale handle of node [id=" + handle.getId() + "] to " + operation + ".");
+        return null;
+    }
+
     public void touchNode(@NonNull String id) {
         //noinspection ConstantConditions
         if (id == null) return;
@@ -160,15 +525,175 @@ public class TreeCounter {
             if (mDebuggable) Log.w(LOG_TAG, "Cannot find the node [id=" + id + "] to touch.");
             return;
         }
+        touchNode(countNode);
+    }
 
+    public void touchNode(@NonNull CountNodeHandle handle) {
+        final CountNode countNode = nodeOf(handle, "touch");
+        if (countNode != null) {
+            touchNode(countNode);
+        }
+    }
+
+    private void touchNode(CountNode countNode) {
+        if (mTraceWriter != null) mTraceWriter.write(CountTrace.OP_TOUCH_NODE, countNode.getId());
         final TouchNodePolicy touchNodePolicy = countNode.getTouchNodePolicy();
         touchNodePolicy.touchNode(this, countNode);
+        flushPendingPreferences();
+    }
+
+    /**
+     * 依次碰触多个节点，所有节点的碰触会在同一次批量更新中完成，每个受影响的节点只会被重新计算和通知一次
+     * @param ids 节点ID
+     */
+    public void touchNodes(@NonNull Collection<String> ids) {
+        beginBatchUpdate();
+        try {
+            for (String id : ids) {
+                touchNode(id);
+            }
+        } finally {
+            endBatchUpdate();
+        }
+    }
+
+    /**
+     * <p>把节点及其所有子孙节点的数量值清零，相当于“全部标为已读”。</p>
+     * <p>整棵子树只会遍历一次，数量值已经为0的叶子节点不会写回数据源，
+     * 父辈节点只会重新计算一次，每个变化的节点也只会通知一次。</p>
+     * <p>负责叶子节点的批量数据源同时实现了{@link IBatchCountUpdater}时，这些叶子节点的写回会合并为一次
+     * {@link IBatchCountUpdater#updateCounts}调用，否则仍然对每个叶子节点调用一次{@link ICountFetcher#updateCount(int)}。</p>
+     * @param id 子树根节点的ID
+     */
+    public void clearSubtree(@NonNull String id) {
+        //noinspection ConstantConditions
+        if (id == null) return;
+
+        final CountNode countNode = mCountNodeMap.get(id);
+        if (countNode == null) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot find the node [id=" + id + "] to clear.");
+            return;
+        }
+        if (mTraceWriter != null) mTraceWriter.write(CountTrace.OP_CLEAR_SUBTREE, id);
+        clearSubtree(countNode);
+    }
+
+    private void clearSubtree(CountNode countNode) {
+        final IdentityHashMap<IBatchCountUpdater, List<CountNode>> batches = new IdentityHashMap<>();
+        startBatch();
+        try {
+            clearNode(countNode, batchUpdaterOf(countNode), batches);
+        } finally {
+            finishBatch();
+        }
+        for (Map.Entry<IBatchCountUpdater, List<CountNode>> entry : batches.entrySet()) {
+            final List<CountNode> leaves = entry.getValue();
+            final String[] ids = new String[leaves.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = leaves.get(i).getId();
+            }
+            entry.getKey().updateCounts(ids, new int[ids.length]);
+        }
+    }
+
+    /**
+     * 清零节点及其子孙节点，由批量数据源负责写回的叶子节点按照数据源分组，不逐个写回
+     */
+    private void clearNode(CountNode countNode, IBatchCountUpdater batchUpdater,
+                           IdentityHashMap<IBatchCountUpdater, List<CountNode>> batches) {
+        final IBatchCountFetcher nodeFetcher = mBatchFetchers.get(countNode);
+        if (nodeFetcher != null) {
+            batchUpdater = nodeFetcher instanceof IBatchCountUpdater ? (IBatchCountUpdater) nodeFetcher : null;
+        }
+        if (!countNode.isLeaf()) {
+            for (CountNode child : countNode.getChildren()) {
+                clearNode(child, batchUpdater, batches);
+            }
+            applyCount(countNode, 0, false);
+        } else if (batchUpdater != null && !countNode.isGenerated() && countNode.getCount() != 0) {
+            List<CountNode> leaves = batches.get(batchUpdater);
+            if (leaves == null) {
+                leaves = new ArrayList<>();
+                batches.put(batchUpdater, leaves);
+            }
+            leaves.add(countNode);
+            applyCount(countNode, 0, false, false);
+        } else {
+            applyCount(countNode, 0, false);
+        }
+    }
+
+    /**
+     * @return 负责节点写回的批量数据源，最近的批量数据源没有实现{@link IBatchCountUpdater}时返回null
+     */
+    private IBatchCountUpdater batchUpdaterOf(CountNode countNode) {
+        for (CountNode node = countNode; node != null; node = node.getParent()) {
+            final IBatchCountFetcher fetcher = mBatchFetchers.get(node);
+            if (fetcher != null) {
+                return fetcher instanceof IBatchCountUpdater ? (IBatchCountUpdater) fetcher : null;
+            }
+        }
+        return null;
     }
 
     public void reload() {
-        if (mRootNode.isLeaf()) {
+        if (mTraceWriter != null) mTraceWriter.write(CountTrace.OP_RELOAD);
+        reloadAll();
+    }
+
+    /**
+     * <p>设置子树的批量数据源，之后{@link #reload()}会把子树下的叶子节点的ID交给批量数据源一次获取，
+     * 而不再逐个调用叶子节点的{@link ICountFetcher#loadCount}，叶子节点的{@link ICountFetcher#updateCount}仍然用于写回，
+     * 批量数据源同时实现了{@link IBatchCountUpdater}时{@link #clearSubtree(String)}的写回会合并为一次调用。
+     * 只有添加到节点树中的叶子节点会交给批量数据源，动态子节点和按路径创建的节点由内存中的数量维护，
+     * 不会被加载，也不会因为批量数据源没有返回而被清零。</p>
+     * <p>子树中再设置了批量数据源的子树由更近的批量数据源负责；多个子树使用同一个批量数据源时会合并为一次调用。
+     * 每次回调的结果在一次批量更新中应用，父辈节点只会重新计算一次。</p>
+     * @param subtreeRootId 子树根节点的ID，可以是根节点
+     * @param fetcher 批量数据源，为null时取消
+     */
+    public void setBatchCountFetcher(@NonNull String subtreeRootId, @Nullable IBatchCountFetcher fetcher) {
+        final CountNode countNode = mCountNodeMap.get(subtreeRootId);
+        if (countNode == null) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot find the node [id=" + subtreeRootId + "] to set batch fetcher.");
+            return;
+        }
+        if (fetcher != null) {
+            mBatchFetchers.put(countNode, fetcher);
+        } else {
+            mBatchFetchers.remove(countNode);
+        }
+    }
+
+    /**
+     * <p>设置叶子节点加载的调度器，之后{@link #reload()}会把叶子节点交给调度器按优先级加载，
+     * 而不是按照前序遍历的顺序同时加载，参考{@link CountFetchScheduler}。</p>
+     * <p>替换或者取消调度器时，原调度器中尚未完成的加载会被取消。</p>
+     * @param scheduler 调度器，为null时取消
+     */
+    public void setFetchScheduler(@Nullable CountFetchScheduler scheduler) {
+        if (mFetchScheduler == scheduler) {
+            return;
+        }
+        if (scheduler != null) {
+            scheduler.attach(this);
+        }
+        if (mFetchScheduler != null) {
+            mFetchScheduler.detach();
+        }
+        mFetchScheduler = scheduler;
+    }
+
+    private void reloadAll() {
+        if (!mBatchFetchers.isEmpty()) {
+            final IdentityHashMap<IBatchCountFetcher, List<CountNode>> batches = new IdentityHashMap<>();
+            collectLeavesToLoad(mRootNode, null, batches);
+            for (Map.Entry<IBatchCountFetcher, List<CountNode>> entry : batches.entrySet()) {
+                fetchNodeCounts(entry.getKey(), entry.getValue());
+            }
+        } else if (mRootNode.isLeaf()) {
             // 根节点就是叶子，这是一种特殊情况，整个tree就只有一个节点，这个时候只需要加载这个节点就可以了。
-            fetchNodeCount(mRootNode);
+            loadNodeCount(mRootNode);
         } else {
             // 遍历根节点下的所有是叶子的节点，并执行加载。
             // 值得注意的是每次加载节点完成后，都会主动刷新该节点的所有父辈节点，所以一个父辈节点可能会被触发更新多次。
@@ -176,37 +701,603 @@ public class TreeCounter {
                 @Override
                 public boolean handleCountNode(@NonNull CountNode node) {
                     if (node.isLeaf()) {
-                        fetchNodeCount(node);
+                        loadNodeCount(node);
                     }
                     return false;
                 }
             });
         }
+        if (mFetchScheduler != null) {
+            mFetchScheduler.dispatch();
+        }
+    }
+
+    /**
+     * 把叶子节点按照负责的批量数据源分组，没有批量数据源的叶子节点直接逐个加载，
+     * 自动创建的节点不属于批量数据源，不能因为没有返回而被清零
+     */
+    private void collectLeavesToLoad(CountNode countNode, IBatchCountFetcher batchFetcher,
+                                     IdentityHashMap<IBatchCountFetcher, List<CountNode>> batches) {
+        final IBatchCountFetcher nodeFetcher = mBatchFetchers.get(countNode);
+        if (nodeFetcher != null) {
+            batchFetcher = nodeFetcher;
+        }
+        if (!countNode.isLeaf()) {
+            for (CountNode child : countNode.getChildren()) {
+                collectLeavesToLoad(child, batchFetcher, batches);
+            }
+        } else if (batchFetcher == null) {
+            loadNodeCount(countNode);
+        } else if (!countNode.isGenerated()) {
+            List<CountNode> leaves = batches.get(batchFetcher);
+            if (leaves == null) {
+                leaves = new ArrayList<>();
+                batches.put(batchFetcher, leaves);
+            }
+            leaves.add(countNode);
+        }
+    }
+
+    private void fetchNodeCounts(IBatchCountFetcher fetcher, List<CountNode> leaves) {
+        final CountNode[] nodes = leaves.toArray(new CountNode[leaves.size()]);
+        final String[] ids = new String[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            ids[i] = nodes[i].getId();
+        }
+        fetcher.loadCounts(ids, new IBatchCountFetcher.LoadCountsCallback() {
+            @Override
+            public void onLoadCounts(@NonNull final String[] resultIds, @NonNull final int[] counts) {
+                final Executor executor = mMutationExecutor;
+                if (executor == null) {
+                    applyNodeCounts(nodes, resultIds, counts);
+                } else {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            applyNodeCounts(nodes, resultIds, counts);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * 在一次批量更新中应用批量数据源的结果，请求之后已经被移除的节点会被忽略
+     */
+    private void applyNodeCounts(CountNode[] nodes, String[] resultIds, int[] counts) {
+        final HashMap<String, CountNode> requestedNodes = new HashMap<>(nodes.length * 2);
+        for (CountNode node : nodes) {
+            requestedNodes.put(node.getId(), node);
+        }
+        startBatch();
+        try {
+            for (int i = 0; i < resultIds.length && i < counts.length; i++) {
+                final CountNode node = requestedNodes.remove(resultIds[i]);
+                if (node != null && isLoadable(node)) {
+                    applyCount(node, counts[i], true);
+                }
+            }
+            // 没有返回的节点数量当做0
+            for (CountNode node : requestedNodes.values()) {
+                if (isLoadable(node)) {
+                    applyCount(node, 0, true);
+                }
+            }
+        } finally {
+            finishBatch();
+        }
+    }
+
+    private boolean isLoadable(CountNode countNode) {
+        return countNode.isLeaf() && mCountNodeMap.get(countNode.getId()) == countNode;
+    }
+
+    /**
+     * 加载一个叶子节点，设置了调度器时只放入调度器的队列
+     */
+    private void loadNodeCount(CountNode node) {
+        if (mFetchScheduler != null) {
+            mFetchScheduler.enqueue(node);
+        } else {
+            fetchNodeCount(node);
+        }
+    }
+
+    private void fetchNodeCount(final CountNode node) {
+        final ICountFetcher fetcher = node.getCountFetcher();
+        if (fetcher != null) {
+            fetcher.loadCount(new ICountFetcher.LoadCountCallback() {
+                @Override
+                public void onLoadCount(ICountFetcher fetcher, final int count) {
+                    deliverLoadedCount(node, count);
+                }
+            });
+        }
+    }
+
+    /**
+     * 应用数据源加载的数量值，可以在任意线程调用，设置了修改线程时转到修改线程执行
+     */
+    void deliverLoadedCount(@NonNull final CountNode node, final int count) {
+        final Executor executor = mMutationExecutor;
+        if (executor == null) {
+            applyCount(node, count, true);
+        } else {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    applyCount(node, count, true);
+                }
+            });
+        }
+    }
+
+    public int getCount() {
+        return mRootNode.getDisplayCount();
+    }
+
+    public int getCount(String id) {
+        final CountNode countNode = mCountNodeMap.get(id);
+        if (countNode == null) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot find the node [id=" + id + "] to attach.");
+            return 0;
+        }
+        return countNode.getDisplayCount();
+    }
+
+    public int getCount(@NonNull CountNodeHandle handle) {
+        final CountNode countNode = nodeOf(handle, "getCount");
+        return countNode != null ? countNode.getDisplayCount() : 0;
+    }
+
+    /**
+     * 获取整棵树的哈希值，两棵树的哈希值相同时可以认为所有节点的数量值都一致，参考{@link CountTreeDigest}
+     */
+    public long getSubtreeHash() {
+        return mRootNode.getSubtreeHash();
+    }
+
+    /**
+     * 获取以指定节点为根的子树的哈希值，只会重新计算上次获取之后发生变化的节点
+     * @return 哈希值，节点不存在时返回0
+     */
+    public long getSubtreeHash(String id) {
+        final CountNode countNode = mCountNodeMap.get(id);
+        if (countNode == null) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot find the node [id=" + id + "] to hash.");
+            return 0;
+        }
+        return countNode.getSubtreeHash();
+    }
+
+    /**
+     * 估算整棵树占用的内存，需要遍历所有节点，不适合频繁调用
+     */
+    @NonNull
+    public CountMemoryFootprint estimateMemoryFootprint() {
+        return CountMemoryFootprint.of(mRootNode, mCountNodeMap.size(), mPathIndex);
+    }
+
+    /**
+     * 估算以指定节点为根的子树占用的内存，包括这些节点的索引条目，但不包括索引的哈希表本身
+     * @return 估算结果，节点不存在时返回null
+     */
+    @Nullable
+    public CountMemoryFootprint estimateMemoryFootprint(String id) {
+        final CountNode countNode = mCountNodeMap.get(id);
+        if (countNode == null) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot find the node [id=" + id + "] to estimate.");
+            return null;
+        }
+        return CountMemoryFootprint.of(countNode, -1, null);
+    }
+
+    /**
+     * <p>设置内存预算，每次添加节点之后都会检查估算的总大小（不包括数据源）是否超出预算。</p>
+     * <p>超出预算时回调监听器，由使用者决定如何处理，比如调用{@link #trimMemory(boolean)}或者上报；
+     * 没有设置监听器时只压缩索引，并删除自动创建的空闲节点（动态子节点和按路径创建的节点），
+     * 使用者添加的节点不会被删除。</p>
+     * @param maxBytes 预算的字节数，不大于0时取消预算
+     * @param l 超出预算时的监听器
+     */
+    public void setMemoryBudget(long maxBytes, @Nullable OnMemoryBudgetExceededListener l) {
+        this.mMemoryBudget = maxBytes;
+        this.mMemoryBudgetListener = l;
+        checkMemoryBudget();
+    }
+
+    private void checkMemoryBudget() {
+        if (mMemoryBudget <= 0 || mCheckingMemoryBudget) {
+            return;
+        }
+        final CountMemoryFootprint footprint = estimateMemoryFootprint();
+        if (footprint.getTotalBytes() <= mMemoryBudget) {
+            return;
+        }
+        // 监听器中可能再次添加节点，避免重复回调
+        mCheckingMemoryBudget = true;
+        try {
+            if (mMemoryBudgetListener != null) {
+                mMemoryBudgetListener.onMemoryBudgetExceeded(this, footprint);
+            } else {
+                trimMemory(true, true);
+                if (mDebuggable && estimateMemoryFootprint().getTotalBytes() > mMemoryBudget) {
+                    Log.w(LOG_TAG, "The tree is still over the memory budget after trimming: " + footprint);
+                }
+            }
+        } finally {
+            mCheckingMemoryBudget = false;
+        }
+    }
+
+    /**
+     * <p>压缩节点树占用的内存：清除已经被移除的节点的旁路配置缓存。
+     * 节点索引可能在其他线程被无锁读取，不会被替换，被删除的节点在删除时已经从索引中移除。</p>
+     * <p>还可以删除空闲的叶子节点，即数量为0、没有旁路标志、没有数据源、也没有订阅的叶子节点，
+     * 这些节点通常是动态添加的、只在内存中计数的节点，删除之后对它们的操作都会被忽略，句柄也会失效。
+     * 为了不改变节点树的层级，父节点的最后一个子节点不会被删除。批量更新期间不会删除节点。</p>
+     * @param dropIdleNodes 是否删除空闲的叶子节点
+     * @return 估算释放的字节数
+     */
+    public long trimMemory(boolean dropIdleNodes) {
+        return trimMemory(dropIdleNodes, false);
+    }
+
+    /**
+     * @param generatedOnly 是否只删除自动创建的空闲节点
+     */
+    private long trimMemory(boolean dropIdleNodes, boolean generatedOnly) {
+        final long bytesBefore = estimateMemoryFootprint().getTotalBytes();
+
+        if (dropIdleNodes && mBatchDepth == 0) {
+            final List<CountNode> parents = new ArrayList<>();
+            mRootNode.iterateDescendant(new CountNodeHandler() {
+                @Override
+                public boolean handleCountNode(@NonNull CountNode node) {
+                    if (!node.isLeaf()) {
+                        parents.add(node);
+                    }
+                    return false;
+                }
+            });
+            if (!mRootNode.isLeaf()) {
+                parents.add(mRootNode);
+            }
+            for (CountNode parent : parents) {
+                dropIdleChildren(parent, generatedOnly);
+            }
+        } else if (dropIdleNodes) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot drop idle nodes during a batch update.");
+        }
+
+        final Iterator<String> bypassedIds = mBypassedCache.keySet().iterator();
+        while (bypassedIds.hasNext()) {
+            final String id = bypassedIds.next();
+            if (!mCountNodeMap.containsKey(id) && !mPendingBypassedWrites.containsKey(id)) {
+                bypassedIds.remove();
+            }
+        }
+
+        return bytesBefore - estimateMemoryFootprint().getTotalBytes();
+    }
+
+    private void dropIdleChildren(CountNode parent, boolean generatedOnly) {
+        final CountNode[] children = parent.getChildren();
+        int keptCount = 0;
+        for (CountNode child : children) {
+            if (!isDroppableNode(child, generatedOnly)) {
+                keptCount++;
+            }
+        }
+        if (keptCount == children.length) {
+            return;
+        }
+        // 至少保留一个子节点，父节点才不会变为叶子节点
+        final CountNode[] keptChildren = new CountNode[Math.max(keptCount, 1)];
+        final List<CountNode> droppedChildren = new ArrayList<>(children.length - keptChildren.length);
+        int index = 0;
+        for (CountNode child : children) {
+            if (!isDroppableNode(child, generatedOnly) || (keptCount == 0 && index == 0)) {
+                keptChildren[index++] = child;
+            } else {
+                if (mTraceWriter != null) mTraceWriter.write(CountTrace.OP_REMOVE_NODE, child.getId());
+                detachNode(child);
+                droppedChildren.add(child);
+            }
+        }
+        // 被删除的节点的显示数量都是0，父辈节点的数量值不需要重新计算
+        parent.attachChildren(keptChildren);
+        for (CountNode child : droppedChildren) {
+            notifyNodeRemoved(child);
+        }
+    }
+
+    private static boolean isDroppableNode(CountNode countNode, boolean generatedOnly) {
+        return isIdleNode(countNode) && (!generatedOnly || countNode.isGenerated());
+    }
+
+    private static boolean isIdleNode(CountNode countNode) {
+        return countNode.isLeaf()
+                && countNode.getCount() == 0
+                && !countNode.isBypassed()
+                && countNode.getCountFetcher() == null
+                && countNode.subscriptions == null;
+    }
+
+    /**
+     * <p>开启节点的动态子节点模式：可以用任意的子节点ID更新该节点下的数量，而不需要预先创建子节点。
+     * 子节点在数量变为非0时才被创建，数量回到0并且空闲时（参考{@link #trimMemory(boolean)}）又会被删除，
+     * 父辈节点的数量值始终是准确的。适合为每个会话计数，但任何时刻只有少数会话有未读数量的场景。</p>
+     * <p>动态子节点没有数据源，被删除之后句柄会失效，其他组件也只能在它存在时找到它。
+     * 开启时已经存在的空闲子节点也会被删除。</p>
+     * @param parentId 父节点ID
+     * @param childPolicy 动态子节点的碰触策略，为null时使用{@link #DoNothingPolicy}
+     */
+    public void enableDynamicChildren(@NonNull String parentId, @Nullable TouchNodePolicy childPolicy) {
+        final CountNode parent = mCountNodeMap.get(parentId);
+        if (parent == null) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot find the node [id=" + parentId + "] to enable dynamic children.");
+            return;
+        }
+        if (parent.isLeaf() && (parent.getCount() != 0 || parent.getCountFetcher() != null)) {
+            // 有自己的数量的叶子节点变为父节点之后数量会被子节点覆盖
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot enable dynamic children on the leaf node [id=" + parentId
+                    + "] that has its own count.");
+            return;
+        }
+        // 所有动态子节点都被删除之后仍然是分支节点，不能被当做叶子节点直接修改数量
+        parent.setBranch(true);
+        mDynamicParents.put(parent, childPolicy != null ? childPolicy : DoNothingPolicy);
+        scheduleIdleChildrenCollapse(parent);
+        if (mBatchDepth == 0) {
+            collapsePendingNodes();
+        }
+    }
+
+    /**
+     * 关闭节点的动态子节点模式，已经存在的子节点会保留，之后不再自动创建或删除
+     */
+    public void disableDynamicChildren(@NonNull String parentId) {
+        final CountNode parent = mCountNodeMap.get(parentId);
+        if (parent != null && mDynamicParents.remove(parent) != null) {
+            parent.setBranch(false);
+        }
+    }
+
+    /**
+     * 增加动态子节点的数量，子节点不存在时会被创建，参考{@link #enableDynamicChildren(String, TouchNodePolicy)}
+     */
+    public void addChildCount(@NonNull String parentId, @NonNull String childId, int delta) {
+        final CountNode countNode = findDynamicChild(parentId, childId, delta > 0);
+        if (countNode != null) {
+            addCount(countNode, delta);
+        }
+    }
+
+    /**
+     * 减少动态子节点的数量，子节点不存在时数量已经是0，不做任何处理
+     */
+    public void reduceChildCount(@NonNull String parentId, @NonNull String childId, int delta) {
+        final CountNode countNode = findDynamicChild(parentId, childId, false);
+        if (countNode != null) {
+            reduceCount(countNode, delta);
+        }
+    }
+
+    /**
+     * 设置动态子节点的数量，数量大于0且子节点不存在时会被创建
+     */
+    public void applyChildCount(@NonNull String parentId, @NonNull String childId, int count) {
+        final CountNode countNode = findDynamicChild(parentId, childId, count > 0);
+        if (countNode != null) {
+            applyLeafCount(countNode, count);
+        }
+    }
+
+    private CountNode findDynamicChild(String parentId, String childId, boolean materialize) {
+        final CountNode parent = mCountNodeMap.get(parentId);
+        final TouchNodePolicy childPolicy = parent != null ? mDynamicParents.get(parent) : null;
+        if (childPolicy == null) {
+            if (mDebuggable) Log.w(LOG_TAG, "The node [id=" + parentId + "] does not have dynamic children.");
+            return null;
+        }
+
+        CountNode child = mCountNodeMap.get(childId);
+        if (child != null) {
+            if (child.getParent() != parent) {
+                if (mDebuggable) Log.w(LOG_TAG, "The node [id=" + childId + "] is not a child of [id=" + parentId + "].");
+                return null;
+            }
+            return child;
+        }
+        if (!materialize) {
+            return null;
+        }
+
+        // 新的叶子节点数量为0，父辈节点不需要重新计算
+        child = new CountNode(childId, (ICountFetcher) null, childPolicy);
+        child.setGenerated();
+        parent.addNode(child);
+        if (mTraceWriter != null) mTraceWriter.writeSubtree(parent, child, CountTrace.OP_ADD_NODE);
+        indexNode(child);
+        notifyNodeAdded(child);
+        return child;
+    }
+
+    private void scheduleIdleChildrenCollapse(CountNode parent) {
+        for (CountNode child : parent.getChildren()) {
+            if (isIdleNode(child)) {
+                mPendingCollapses.add(child);
+            }
+        }
+    }
+
+    private void scheduleCollapse(CountNode countNode) {
+        final CountNode parent = countNode.getParent();
+        if (parent != null && countNode.isLeaf() && mDynamicParents.containsKey(parent)) {
+            mPendingCollapses.add(countNode);
+        }
+    }
+
+    /**
+     * 删除数量已经回到0的动态子节点，在通知监听器之后进行，批量更新期间会推迟到批量更新结束
+     */
+    private void collapsePendingNodes() {
+        if (mPendingCollapses.isEmpty()) {
+            return;
+        }
+        final List<CountNode> countNodes = new ArrayList<>(mPendingCollapses);
+        mPendingCollapses.clear();
+        for (CountNode countNode : countNodes) {
+            final CountNode parent = countNode.getParent();
+            // 期间可能又被增加了数量、设置了旁路或者被订阅
+            if (parent == null || !isIdleNode(countNode) || !mDynamicParents.containsKey(parent)
+                    || mCountNodeMap.get(countNode.getId()) != countNode) {
+                continue;
+            }
+            // 被删除的节点的显示数量是0，父辈节点的数量值不需要重新计算
+            if (mTraceWriter != null) mTraceWriter.write(CountTrace.OP_REMOVE_NODE, countNode.getId());
+            parent.removeNode(countNode);
+            detachNode(countNode);
+            notifyNodeRemoved(countNode);
+        }
+    }
+
+    /**
+     * <p>开启路径索引。节点ID被当做以分隔符分隔的路径，比如“im/group/123”，
+     * 之后可以按路径自动创建节点，也可以按前缀查询数量或遍历节点，参考{@link #addPathCount(String, int)}。</p>
+     * <p>索引是一棵压缩前缀树，开启时会索引当前所有的节点，之后随节点的添加和移除更新。
+     * 索引只引用节点的ID而不复制，额外占用的内存计入{@link #estimateMemoryFootprint()}。</p>
+     * @param separator 路径分隔符
+     * @param leafPolicy 按路径自动创建的叶子节点的碰触策略，为null时使用{@link #DoNothingPolicy}，
+     *                   自动创建的中间节点总是使用{@link #DoNothingPolicy}
+     */
+    public void enablePathIndex(char separator, @Nullable TouchNodePolicy leafPolicy) {
+        final CountPathTrie pathIndex = new CountPathTrie();
+        for (CountNode countNode : mCountNodeMap.values()) {
+            pathIndex.put(countNode.getId(), countNode);
+        }
+        mPathSeparator = separator;
+        mPathLeafPolicy = leafPolicy != null ? leafPolicy : DoNothingPolicy;
+        mPathIndex = pathIndex;
+    }
+
+    /**
+     * 增加路径对应的叶子节点的数量，节点不存在时会按路径逐级创建，
+     * 第一级路径的父节点是根节点，比如“im/group/123”会依次创建“im”、“im/group”和“im/group/123”
+     * @param path 节点路径，不能以分隔符开头或结尾，也不能含有空的一级
+     * @param delta 增加的数量
+     */
+    public void addPathCount(@NonNull String path, int delta) {
+        final CountNode countNode = findPathNode(path, delta > 0);
+        if (countNode != null) {
+            addCount(countNode, delta);
+        }
+    }
+
+    /**
+     * 设置路径对应的叶子节点的数量，数量大于0且节点不存在时会按路径逐级创建，参考{@link #addPathCount(String, int)}
+     */
+    public void applyPathCount(@NonNull String path, int count) {
+        final CountNode countNode = findPathNode(path, count > 0);
+        if (countNode != null) {
+            applyLeafCount(countNode, count);
+        }
     }
 
-    private void fetchNodeCount(final CountNode node) {
-        final ICountFetcher fetcher = node.getCountFetcher();
-        if (fetcher != null) {
-            fetcher.loadCount(new ICountFetcher.LoadCountCallback() {
-                @Override
-                public void onLoadCount(ICountFetcher fetcher, int count) {
-                    applyCount(node, count, true);
-                }
-            });
+    /**
+     * 获取ID以指定前缀开头的所有节点的显示数量合计，父辈节点也匹配前缀时子节点不会被重复计算。
+     * 按路径查询时，前缀应以分隔符结尾，比如“im/group/”，否则“im/group”也会匹配“im/groups”
+     * @return 数量合计，没有开启路径索引时返回0
+     */
+    public int getPrefixCount(@NonNull final String prefix) {
+        if (mPathIndex == null) {
+            if (mDebuggable) Log.w(LOG_TAG, "The path index is not enabled.");
+            return 0;
         }
+        final int[] totalCount = {0};
+        mPathIndex.iteratePrefix(prefix, new CountNodeHandler() {
+            @Override
+            public boolean handleCountNode(@NonNull CountNode node) {
+                // 中间的父辈节点可能不匹配前缀，需要一直检查到根节点
+                for (CountNode n = node.getParent(); n != null; n = n.getParent()) {
+                    if (n.getId().startsWith(prefix)) {
+                        return false;
+                    }
+                }
+                totalCount[0] += node.getDisplayCount();
+                return false;
+            }
+        });
+        return totalCount[0];
     }
 
-    public int getCount() {
-        return mRootNode.getDisplayCount();
+    /**
+     * 按ID的字典序遍历ID以指定前缀开头的所有节点，遍历期间不能添加或移除节点
+     * @param prefix ID前缀
+     * @param handler 节点处理器
+     * @return 是否被处理器终止，没有开启路径索引时返回false
+     */
+    public boolean iteratePrefix(@NonNull String prefix, @NonNull CountNodeHandler handler) {
+        if (mPathIndex == null) {
+            if (mDebuggable) Log.w(LOG_TAG, "The path index is not enabled.");
+            return false;
+        }
+        return mPathIndex.iteratePrefix(prefix, handler);
     }
 
-    public int getCount(String id) {
-        final CountNode countNode = mCountNodeMap.get(id);
-        if (countNode == null) {
-            if (mDebuggable) Log.w(LOG_TAG, "Cannot find the node [id=" + id + "] to attach.");
-            return 0;
+    private CountNode findPathNode(String path, boolean create) {
+        if (mPathIndex == null) {
+            if (mDebuggable) Log.w(LOG_TAG, "The path index is not enabled.");
+            return null;
+        }
+        final CountNode countNode = mCountNodeMap.get(path);
+        if (countNode != null || !create) {
+            return countNode;
+        }
+        if (path.isEmpty() || path.charAt(0) == mPathSeparator
+                || path.charAt(path.length() - 1) == mPathSeparator
+                || path.indexOf(String.valueOf(mPathSeparator) + mPathSeparator) >= 0) {
+            if (mDebuggable) Log.w(LOG_TAG, "Invalid node path: " + path);
+            return null;
+        }
+
+        // 从最长的前缀开始找到已经存在的最深的父节点
+        CountNode parent = mRootNode;
+        int start = 0;
+        for (int end = path.lastIndexOf(mPathSeparator); end > 0; end = path.lastIndexOf(mPathSeparator, end - 1)) {
+            final CountNode prefixNode = mCountNodeMap.get(path.substring(0, end));
+            if (prefixNode != null) {
+                parent = prefixNode;
+                start = end + 1;
+                break;
+            }
+        }
+        if (parent.isLeaf() && (parent.getCount() != 0 || parent.getCountFetcher() != null)) {
+            // 有自己的数量的叶子节点变为父节点之后数量会被子节点覆盖
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot create the path [" + path + "] under the leaf node ["
+                    + parent.getId() + "] that has its own count.");
+            return null;
+        }
+
+        // 新的节点数量都为0，父辈节点不需要重新计算
+        while (true) {
+            final int end = path.indexOf(mPathSeparator, start);
+            final boolean isLeaf = end < 0;
+            final CountNode child = new CountNode(isLeaf ? path : path.substring(0, end), (ICountFetcher) null,
+                    isLeaf ? mPathLeafPolicy : DoNothingPolicy);
+            child.setGenerated();
+            parent.addNode(child);
+            if (mTraceWriter != null) mTraceWriter.writeSubtree(parent, child, CountTrace.OP_ADD_NODE);
+            indexNode(child);
+            notifyNodeAdded(child);
+            if (isLeaf) {
+                return child;
+            }
+            parent = child;
+            start = end + 1;
         }
-        return countNode.getDisplayCount();
     }
 
     public void addCount(String id, final int delta) {
@@ -215,11 +1306,22 @@ public class TreeCounter {
             if (mDebuggable) Log.w(LOG_TAG, "Cannot find the node [id=" + id + "] to addCount.");
             return;
         }
+        addCount(countNode, delta);
+    }
+
+    public void addCount(@NonNull CountNodeHandle handle, int delta) {
+        final CountNode countNode = nodeOf(handle, "addCount");
+        if (countNode != null) {
+            addCount(countNode, delta);
+        }
+    }
 
+    private void addCount(CountNode countNode, int delta) {
         if (!countNode.isLeaf()) {
             if (mDebuggable) Log.w(LOG_TAG, "Cannot add count to a CountNode that is not a leaf in node tree.");
             return;
         }
+        if (mTraceWriter != null) mTraceWriter.write(CountTrace.OP_ADD_COUNT, countNode.getId(), delta);
 
         if (delta == 0) {
             return;
@@ -234,11 +1336,22 @@ public class TreeCounter {
             if (mDebuggable) Log.w(LOG_TAG, "Cannot find the node [id=" + id + "] to reduceCount.");
             return;
         }
+        reduceCount(countNode, delta);
+    }
+
+    public void reduceCount(@NonNull CountNodeHandle handle, int delta) {
+        final CountNode countNode = nodeOf(handle, "reduceCount");
+        if (countNode != null) {
+            reduceCount(countNode, delta);
+        }
+    }
 
+    private void reduceCount(CountNode countNode, int delta) {
         if (!countNode.isLeaf()) {
             if (mDebuggable) Log.w(LOG_TAG, "Cannot remove count to a CountNode that is not a leaf in node tree.");
             return;
         }
+        if (mTraceWriter != null) mTraceWriter.write(CountTrace.OP_REDUCE_COUNT, countNode.getId(), delta);
 
         if (delta == 0) {
             return;
@@ -254,12 +1367,28 @@ public class TreeCounter {
             return;
         }
 
+        if (mTraceWriter != null) mTraceWriter.write(CountTrace.OP_SET_BYPASS, id, bypassed ? 1 : 0);
         setBypass(countNode, bypassed);
     }
 
+    public void setBypass(@NonNull CountNodeHandle handle, boolean bypassed) {
+        final CountNode countNode = nodeOf(handle, "setBypass");
+        if (countNode != null) {
+            if (mTraceWriter != null) mTraceWriter.write(CountTrace.OP_SET_BYPASS, countNode.getId(), bypassed ? 1 : 0);
+            setBypass(countNode, bypassed);
+        }
+    }
+
     private void setBypass(CountNode countNode, boolean bypassed) {
         if (countNode.isBypassed() != bypassed) {
-            countNode.setBypassed(bypassed);
+            applyNodeBypassed(countNode, bypassed);
+            if (mBatchDepth > 0) {
+                mBatchBypassedNodes.add(countNode);
+                if (!bypassed && !mDynamicParents.isEmpty() && countNode.getCount() == 0) {
+                    scheduleCollapse(countNode);
+                }
+                return;
+            }
             countNode.iterateAscendant(new CountNodeHandler() {
                 @Override
                 public boolean handleCountNode(@NonNull CountNode node) {
@@ -268,6 +1397,12 @@ public class TreeCounter {
                 }
             });
             notifyCountChange(countNode);
+            if (!bypassed && !mDynamicParents.isEmpty() && countNode.getCount() == 0) {
+                scheduleCollapse(countNode);
+                if (mBatchDepth == 0) {
+                    collapsePendingNodes();
+                }
+            }
         }
     }
 
@@ -277,21 +1412,167 @@ public class TreeCounter {
             if (mDebuggable) Log.w(LOG_TAG, "Cannot find the node [id=" + id + "] to reduceCount.");
             return;
         }
+        applyLeafCount(countNode, count);
+    }
+
+    public void applyCount(@NonNull CountNodeHandle handle, int count) {
+        final CountNode countNode = nodeOf(handle, "applyCount");
+        if (countNode != null) {
+            applyLeafCount(countNode, count);
+        }
+    }
 
+    private void applyLeafCount(CountNode countNode, int count) {
         if (!countNode.isLeaf()) {
             if (mDebuggable) Log.w(LOG_TAG, "Cannot remove count to a CountNode that is not a leaf in node tree.");
             return;
         }
+        if (mTraceWriter != null) mTraceWriter.write(CountTrace.OP_APPLY_COUNT, countNode.getId(), count);
+
+        applyCount(countNode, count, false);
+    }
+
+    /**
+     * <p>开始批量更新。在调用对应的{@link #endBatchUpdate()}之前，叶子节点的数量值会立即更新，
+     * 但父辈节点的重新计算、碰触策略的回调以及监听器的通知都会推迟到批量更新结束时统一进行，
+     * 每个受影响的父辈节点只会被重新计算一次，每个变化的节点也只会通知一次。</p>
+     * <p>批量更新可以嵌套，以最外层的结束为准。批量更新期间读取到的父辈节点数量值是旧的。</p>
+     */
+    public void beginBatchUpdate() {
+        if (mTraceWriter != null) mTraceWriter.write(CountTrace.OP_BEGIN_BATCH);
+        startBatch();
+    }
+
+    private void startBatch() {
+        mBatchDepth++;
+    }
+
+    /**
+     * 结束批量更新，参考{@link #beginBatchUpdate()}
+     */
+    public void endBatchUpdate() {
+        if (mTraceWriter != null && mBatchDepth > 0) mTraceWriter.write(CountTrace.OP_END_BATCH);
+        finishBatch();
+    }
+
+    private void finishBatch() {
+        if (mBatchDepth == 0) {
+            if (mDebuggable) Log.w(LOG_TAG, "endBatchUpdate() is called without beginBatchUpdate().");
+            return;
+        }
+        mBatchDepth--;
+        if (mBatchDepth == 0) {
+            flushBatchUpdate();
+            flushPendingPreferences();
+            collapsePendingNodes();
+        }
+    }
+
+    public boolean isInBatchUpdate() {
+        return mBatchDepth > 0;
+    }
+
+    private void flushBatchUpdate() {
+        if (mBatchChangedNodes.isEmpty() && mBatchBypassedNodes.isEmpty()) {
+            return;
+        }
+        final List<CountNode> changedNodes = new ArrayList<>(mBatchChangedNodes.keySet());
+        for (CountNode node : mBatchBypassedNodes) {
+            if (!mBatchChangedNodes.containsKey(node)) {
+                changedNodes.add(node);
+            }
+        }
+
+        // 收集所有受影响的父辈节点，只有全部来自重加载操作的变化才当做重加载
+        final HashMap<CountNode, Boolean> ancestors = new HashMap<>();
+        for (Map.Entry<CountNode, Boolean> entry : mBatchChangedNodes.entrySet()) {
+            final boolean isReloadOperation = entry.getValue();
+            CountNode parent = entry.getKey().getParent();
+            while (parent != null) {
+                final Boolean existing = ancestors.get(parent);
+                if (existing != null && (!existing || isReloadOperation)) {
+                    // 更上层的父辈节点已经按照相同或更严格的标志收集过了
+                    break;
+                }
+                ancestors.put(parent, isReloadOperation);
+                parent = parent.getParent();
+            }
+        }
+        mBatchChangedNodes.clear();
+
+        // 只有旁路标志变化的节点，父辈节点只重新计算，与非批量的setBypass一样不触发碰触策略的回调
+        final HashSet<CountNode> recomputeOnly = new HashSet<>();
+        for (CountNode node : mBatchBypassedNodes) {
+            for (CountNode parent = node.getParent(); parent != null; parent = parent.getParent()) {
+                if (ancestors.containsKey(parent) || !recomputeOnly.add(parent)) {
+                    break;
+                }
+            }
+        }
+        mBatchBypassedNodes.clear();
+
+        // 按深度从深到浅重新计算，保证子节点先于父节点
+        final List<CountNode> sortedAncestors = new ArrayList<>(ancestors.keySet());
+        sortedAncestors.addAll(recomputeOnly);
+        final HashMap<CountNode, Integer> depths = new HashMap<>(ancestors.size() * 2);
+        for (CountNode node : sortedAncestors) {
+            depths.put(node, node.getDepth());
+        }
+        Collections.sort(sortedAncestors, new Comparator<CountNode>() {
+            @Override
+            public int compare(CountNode lhs, CountNode rhs) {
+                return depths.get(rhs) - depths.get(lhs);
+            }
+        });
+        for (CountNode node : sortedAncestors) {
+            node.computeCount();
+            final Boolean isReloadOperation = ancestors.get(node);
+            if (isReloadOperation != null) {
+                triggerAfterNodeAfterCount(node, isReloadOperation);
+            }
+        }
+
+        final HashSet<CountNode> notifiedNodes = new HashSet<>(changedNodes);
+        for (CountNode node : sortedAncestors) {
+            if (notifiedNodes.add(node)) {
+                changedNodes.add(node);
+            }
+        }
+        notifyCountChanges(changedNodes);
+    }
 
+    /**
+     * 供同一个包内的组件直接以节点更新数量值，调用者需保证节点属于这棵树
+     */
+    void applyCount(@NonNull CountNode countNode, int count) {
         applyCount(countNode, count, false);
     }
 
-    private void applyCount(CountNode countNode, final int count, final boolean isReloadOperation) {
+    private void applyCount(CountNode countNode, int count, boolean isReloadOperation) {
+        applyCount(countNode, count, isReloadOperation, true);
+    }
+
+    /**
+     * @param writeBack 是否写回叶子节点的数据源，为false时由调用者负责批量写回
+     */
+    private void applyCount(CountNode countNode, final int count, final boolean isReloadOperation,
+                            boolean writeBack) {
+        if (isReloadOperation) {
+            notifyCountLoaded(countNode, count);
+        }
         if (countNode.getCount() == count) {
             return;
         }
 
-        countNode.applyCount(count);
+        applyNodeCount(countNode, count, writeBack);
+        if (!mDynamicParents.isEmpty() && countNode.getCount() == 0) {
+            scheduleCollapse(countNode);
+        }
+        if (mBatchDepth > 0) {
+            final Boolean existing = mBatchChangedNodes.get(countNode);
+            mBatchChangedNodes.put(countNode, (existing == null || existing) && isReloadOperation);
+            return;
+        }
         countNode.iterateAscendant(new CountNodeHandler() {
             @Override
             public boolean handleCountNode(@NonNull CountNode node) {
@@ -301,9 +1582,15 @@ public class TreeCounter {
             }
         });
         notifyCountChange(countNode);
+        flushPendingPreferences();
+        collapsePendingNodes();
     }
 
     private void triggerAfterNodeAfterCount(@NonNull CountNode node, boolean isReloadOperation) {
+        if (!node.hasApplyCountHook()) {
+            // 内置的不处理、自身清零、子节点清零策略都不需要回调，省去每个父辈节点上的虚方法调用
+            return;
+        }
         final TouchNodePolicy touchNodePolicy = node.getTouchNodePolicy();
         if (touchNodePolicy != null) {
             touchNodePolicy.afterNodeApplyCount(TreeCounter.this, node, isReloadOperation);
@@ -311,54 +1598,260 @@ public class TreeCounter {
     }
 
     private void notifyCountChange(CountNode countNode) {
+        if (hasListeners()) {
+            for (CountNode node = countNode; node != null; node = node.getParent()) {
+                dispatchCountChange(node);
+            }
+        }
+    }
+
+    private boolean hasListeners() {
+        return mListener != null || !mObservers.isEmpty() || mSubscriptionCount > 0;
+    }
+
+    private void dispatchCountChange(CountNode countNode) {
         if (mListener != null) {
             mListener.onNodeUnreadCountChanged(countNode);
-            if (countNode.getParent() != null) {
-                notifyCountChange(countNode.getParent());
+        }
+        for (OnNodeUnreadCountChangeListener observer : mObservers) {
+            observer.onNodeUnreadCountChanged(countNode);
+        }
+        dispatchSubscriptions(countNode);
+    }
+
+    /**
+     * 通知节点自身的订阅者，以及父辈节点上的子树订阅者
+     */
+    private void dispatchSubscriptions(CountNode countNode) {
+        if (mSubscriptionCount == 0) {
+            return;
+        }
+        dispatchSubscriptions(countNode, countNode, false);
+        if (mSubtreeSubscriptionCount > 0) {
+            for (CountNode node = countNode.getParent(); node != null; node = node.getParent()) {
+                dispatchSubscriptions(node, countNode, true);
+            }
+        }
+    }
+
+    private static void dispatchSubscriptions(CountNode subscribedNode, CountNode changedNode, boolean subtreeOnly) {
+        for (CountSubscription s = subscribedNode.subscriptions; s != null; s = s.next) {
+            if (s.active && (s.subtree || !subtreeOnly) && s.updateBucket(changedNode.getDisplayCount())) {
+                s.listener.onNodeUnreadCountChanged(changedNode);
+            }
+        }
+    }
+
+    /**
+     * 更新节点自身的数量值并写入预写日志，不会重新计算父辈节点
+     */
+    private void applyNodeCount(CountNode countNode, int count, boolean writeBack) {
+        if (writeBack) {
+            countNode.applyCount(count);
+        } else {
+            countNode.restoreCount(count);
+        }
+        if (mJournal != null && countNode.isLeaf()) {
+            mJournal.appendCount(countNode.getId(), countNode.getCount());
+        }
+    }
+
+    /**
+     * 更新节点的旁路标志并写入预写日志，不会重新计算父辈节点
+     */
+    private void applyNodeBypassed(CountNode countNode, boolean bypassed) {
+        countNode.setBypassed(bypassed);
+        if (mJournal != null) {
+            mJournal.appendBypassed(countNode.getId(), bypassed);
+        }
+    }
+
+    /**
+     * 按照各叶子节点当前的数量值自底向上重新汇总整棵树，不会写回数据源也不会触发策略，
+     * 用于直接恢复了叶子节点数量值之后
+     */
+    void recomputeAll() {
+        recomputeSubtree(mRootNode);
+    }
+
+    private void recomputeSubtree(CountNode countNode) {
+        if (!countNode.isLeaf()) {
+            int totalCount = 0;
+            for (CountNode child : countNode.getChildren()) {
+                recomputeSubtree(child);
+                totalCount += child.getDisplayCount();
+            }
+            countNode.restoreCount(totalCount);
+        }
+    }
+
+    /**
+     * 通知整棵树的每个节点，根节点最后通知
+     */
+    void notifyAllCountChanged() {
+        if (hasListeners()) {
+            final List<CountNode> countNodes = generateCountNodeList();
+            countNodes.remove(0);
+            countNodes.add(mRootNode);
+            notifyCountChanges(countNodes);
+        }
+    }
+
+    /**
+     * 逐个通知节点的变化，与{@link #notifyCountChange(CountNode)}不同的是不会再通知父辈节点
+     */
+    private void notifyCountChanges(Collection<CountNode> countNodes) {
+        if (hasListeners()) {
+            for (CountNode countNode : countNodes) {
+                dispatchCountChange(countNode);
             }
         }
     }
 
+    /**
+     * 更新旁路配置，先写入内存缓存，在当前操作结束时再统一写入{@link PreferenceHandler}
+     */
     private void updateNodeBypassed(String id, boolean bypassed) {
         if (mPreferenceHandler != null) {
-            mPreferenceHandler.setConfigValue(id, bypassed);
+            mBypassedCache.put(id, bypassed);
+            mPendingBypassedWrites.put(id, bypassed);
         }
     }
 
+    /**
+     * 读取旁路配置，每个节点只会从{@link PreferenceHandler}读取一次
+     */
     private boolean loadNodeBypassed(String id) {
         if (mPreferenceHandler != null) {
-            return mPreferenceHandler.getBooleanConfigValue(id);
+            Boolean bypassed = mBypassedCache.get(id);
+            if (bypassed == null) {
+                bypassed = mPreferenceHandler.getBooleanConfigValue(id);
+                mBypassedCache.put(id, bypassed);
+            }
+            return bypassed;
         }
         return false;
     }
 
+    /**
+     * 把缓存的旁路配置写入{@link PreferenceHandler}，批量更新期间会推迟到批量更新结束
+     */
+    private void flushPendingPreferences() {
+        if (mBatchDepth > 0 || mPendingBypassedWrites.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, Boolean> entry : mPendingBypassedWrites.entrySet()) {
+            mPreferenceHandler.setConfigValue(entry.getKey(), entry.getValue());
+        }
+        mPendingBypassedWrites.clear();
+    }
+
+    /**
+     * 设置重置操作的批量持久化处理器，参考{@link #reset()}
+     */
+    public void setResetHandler(@Nullable ResetHandler resetHandler) {
+        this.mResetHandler = resetHandler;
+    }
+
+    /**
+     * <p>把整棵树的所有节点的数量值清零，并清除所有的旁路标志。</p>
+     * <p>内存中的重置是常数时间的：节点树的纪元会增加，此前的节点都会被当做0，在下次更新时才真正清零。
+     * 如果设置了{@link ResetHandler}，数据源的持久化也只会执行一次批量操作；
+     * 否则会对每个数量值不为0的叶子节点调用一次{@link ICountFetcher#updateCount(int)}，但不会再重新计算父辈节点。</p>
+     * <p>实现了{@link OnTreeResetListener}的监听器只会收到一次回调，其它监听器会收到每个节点的回调。</p>
+     */
     public void reset() {
-        OnNodeUnreadCountChangeListener listener = mListener;
-        mListener = null;
-        mRootNode.iterateDescendant(new CountNodeHandler() {
-            @Override
-            public boolean handleCountNode(@NonNull CountNode node) {
-                if (node.isLeaf()) {
-                    applyCount(node, 0, false);
+        if (mTraceWriter != null) mTraceWriter.write(CountTrace.OP_RESET);
+        if (mResetHandler != null) {
+            mResetHandler.onReset(this);
+        } else {
+            final CountNodeHandler persistHandler = new CountNodeHandler() {
+                @Override
+                public boolean handleCountNode(@NonNull CountNode node) {
+                    if (node.isLeaf() && node.getCountFetcher() != null && node.getCount() != 0) {
+                        node.getCountFetcher().updateCount(0);
+                    }
+                    return false;
                 }
-                return false;
-            }
-        });
-        mListener = listener;
-        mRootNode.iterateDescendant(new CountNodeHandler() {
-            @Override
-            public boolean handleCountNode(@NonNull CountNode node) {
-                if (mListener != null) {
-                    mListener.onNodeUnreadCountChanged(node);
+            };
+            persistHandler.handleCountNode(mRootNode);
+            mRootNode.iterateDescendant(persistHandler);
+        }
+
+        if (mPreferenceHandler != null) {
+            final List<String> bypassedIds = new ArrayList<>();
+            for (Map.Entry<String, Boolean> entry : mBypassedCache.entrySet()) {
+                if (entry.getValue()) {
+                    bypassedIds.add(entry.getKey());
                 }
-                return false;
             }
-        });
+            for (String id : bypassedIds) {
+                updateNodeBypassed(id, false);
+            }
+            flushPendingPreferences();
+        }
+        if (mJournal != null) {
+            mJournal.appendReset();
+        }
+
+        mEpoch.value++;
+        notifyTreeReset();
+
+        // 重置之后所有动态子节点都是空闲的
+        for (CountNode parent : new ArrayList<>(mDynamicParents.keySet())) {
+            scheduleIdleChildrenCollapse(parent);
+        }
+        if (mBatchDepth == 0) {
+            collapsePendingNodes();
+        }
+    }
+
+    private void notifyTreeReset() {
+        List<CountNode> countNodes = null;
+        final List<OnNodeUnreadCountChangeListener> listeners = new ArrayList<>(mObservers);
         if (mListener != null) {
-            mListener.onNodeUnreadCountChanged(mRootNode);
+            listeners.add(mListener);
+        }
+        for (OnNodeUnreadCountChangeListener listener : listeners) {
+            if (listener instanceof OnTreeResetListener) {
+                ((OnTreeResetListener) listener).onTreeReset(this);
+            } else {
+                if (countNodes == null) {
+                    countNodes = generateCountNodeList();
+                    countNodes.remove(0);
+                    countNodes.add(mRootNode);
+                }
+                for (CountNode countNode : countNodes) {
+                    listener.onNodeUnreadCountChanged(countNode);
+                }
+            }
+        }
+        if (mSubscriptionCount > 0) {
+            // 订阅者按照普通的数量变化处理，每个节点都会通知一次，根节点最后通知
+            if (countNodes == null) {
+                countNodes = generateCountNodeList();
+                countNodes.remove(0);
+                countNodes.add(mRootNode);
+            }
+            for (CountNode countNode : countNodes) {
+                dispatchSubscriptions(countNode);
+            }
         }
     }
 
+    /**
+     * 数据源加载的数量值在应用之前通知实现了{@link OnNodeCountLoadedListener}的监听器
+     */
+    private void notifyCountLoaded(CountNode countNode, int count) {
+        if (mListener instanceof OnNodeCountLoadedListener) {
+            ((OnNodeCountLoadedListener) mListener).onNodeCountLoaded(countNode, count);
+        }
+        for (OnNodeUnreadCountChangeListener observer : mObservers) {
+            if (observer instanceof OnNodeCountLoadedListener) {
+                ((OnNodeCountLoadedListener) observer).onNodeCountLoaded(countNode, count);
+            }
+        }
+    }
 
     /**
      * 监听节点的未读数量变化的监听器接口
@@ -367,6 +1860,51 @@ public class TreeCounter {
         void onNodeUnreadCountChanged(CountNode node);
     }
 
+    /**
+     * 监听整棵树被重置的监听器接口，{@link OnNodeUnreadCountChangeListener}同时实现该接口时，
+     * {@link #reset()}只会回调一次{@link #onTreeReset(TreeCounter)}，而不会逐个回调每个节点
+     */
+    public interface OnTreeResetListener {
+        void onTreeReset(TreeCounter counter);
+    }
+
+    /**
+     * 监听数据源加载结果的监听器接口，{@link OnNodeUnreadCountChangeListener}同时实现该接口时，
+     * 叶子节点从数据源加载的数量值会在应用之前回调，之后仍然会收到数量变化的回调，
+     * 用于区分加载的数量和本地的修改
+     */
+    public interface OnNodeCountLoadedListener {
+        void onNodeCountLoaded(CountNode node, int count);
+    }
+
+    /**
+     * 监听节点树结构变化的内部接口，参考{@link #addStructureObserver(OnTreeStructureChangeListener)}
+     */
+    interface OnTreeStructureChangeListener {
+        /** 节点连同它的子树被添加到树中 */
+        void onNodeAdded(CountNode node);
+
+        /** 节点连同它的子树被移除，包括动态子节点和空闲节点的回收 */
+        void onNodeRemoved(CountNode node);
+
+        /** 节点连同它的子树被移动到新的父节点下 */
+        void onNodeMoved(CountNode node, CountNode oldParent);
+    }
+
+    /**
+     * 节点树估算的内存超出预算时的监听器接口，参考{@link #setMemoryBudget(long, OnMemoryBudgetExceededListener)}
+     */
+    public interface OnMemoryBudgetExceededListener {
+        void onMemoryBudgetExceeded(TreeCounter counter, CountMemoryFootprint footprint);
+    }
+
+    /**
+     * 用于批量持久化重置操作的接口，比如执行一次“UPDATE ... SET count = 0”
+     */
+    public interface ResetHandler {
+        void onReset(TreeCounter counter);
+    }
+
     /**
      * 用于进行配置获取和更新的接口
      */
@@ -400,11 +1938,11 @@ public class TreeCounter {
             if (isReloadOperation) {
                 final boolean bypassed = counter.loadNodeBypassed(node.getId());
                 if (node.isBypassed() != bypassed) {
-                    node.setBypassed(true);
+                    counter.applyNodeBypassed(node, bypassed);
                 }
             } else {
                 if (node.isBypassed()) {
-                    node.setBypassed(false);
+                    counter.applyNodeBypassed(node, false);
                     counter.updateNodeBypassed(node.getId(), false);
                 }
             }
@@ -453,16 +1991,8 @@ public class TreeCounter {
      */
     public static final TouchNodePolicy ZeroDescendantPolicy = new TouchNodePolicy() {
         @Override
-        public void touchNode(final TreeCounter counter, CountNode node) {
-            node.iterateDescendant(new CountNodeHandler() {
-                @Override
-                public boolean handleCountNode(@NonNull CountNode node) {
-                    node.applyCount(0);
-                    counter.notifyCountChange(node);
-                    return false;
-                }
-            });
-            counter.applyCount(node, 0, false);
+        public void touchNode(TreeCounter counter, CountNode node) {
+            counter.clearSubtree(node);
         }
 
         @Override
@@ -0,0 +1,405 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>多租户的节点树数量统计，比如服务端为每个用户维护一棵未读数量树。</p>
+ * <p>所有租户共享同一个不可变的{@link CountTreeSchema}（节点ID、拓扑结构和碰触策略），
+ * 每个租户只保存一个int数组的数量值和一个位图的旁路标志。数量值的汇总、碰触策略的行为与{@link TreeCounter}一致。</p>
+ * <p>常驻内存的租户按照最近最少使用的顺序淘汰，淘汰时写入快照目录下的文件，再次访问时会透明地重新加载。
+ * 数量值全为0的租户不会占用快照文件。</p>
+ * <p>该类的所有方法都是线程安全的。</p>
+ */
+@SuppressWarnings("unused")
+public class TreeCounterRegistry {
+
+    private static final String LOG_TAG = "TreeCounterRegistry";
+    private static final String SNAPSHOT_SUFFIX = ".tenant";
+    private static final int SNAPSHOT_MAGIC = 0x54434E54;
+
+    /** 每个常驻租户的固定开销的估算值，包括数组头、对象头和LRU表中的节点 */
+    private static final int TENANT_OVERHEAD_BYTES = 96;
+
+    private final CountTreeSchema mSchema;
+    private final File mSnapshotDirectory;
+    private final LinkedHashMap<String, TenantCounts> mResidentTenants = new LinkedHashMap<>(16, 0.75f, true);
+    private int mMaxResidentTenants = Integer.MAX_VALUE;
+    private long mMaxResidentBytes = Long.MAX_VALUE;
+    private final long mTenantBytes;
+    private boolean mDebuggable = false;
+
+    /**
+     * @param schema 所有租户共享的节点树结构
+     * @param snapshotDirectory 存放被淘汰租户快照的目录
+     */
+    public TreeCounterRegistry(@NonNull CountTreeSchema schema, @NonNull File snapshotDirectory) throws IOException {
+        //noinspection ConstantConditions
+        if (schema == null) {
+            throw new IllegalArgumentException("Argument 'schema' should not be null!");
+        }
+        if (!snapshotDirectory.isDirectory() && !snapshotDirectory.mkdirs()) {
+            throw new IOException("Cannot create snapshot directory: " + snapshotDirectory);
+        }
+        mSchema = schema;
+        mSnapshotDirectory = snapshotDirectory;
+        mTenantBytes = TENANT_OVERHEAD_BYTES + 4L * schema.size() + 8L * bitWords(schema.size());
+    }
+
+    public void setDebuggable(boolean debuggable) {
+        this.mDebuggable = debuggable;
+    }
+
+    @NonNull
+    public CountTreeSchema getSchema() {
+        return mSchema;
+    }
+
+    /**
+     * 设置常驻内存的租户数量上限
+     */
+    public synchronized void setMaxResidentTenants(int maxResidentTenants) {
+        this.mMaxResidentTenants = maxResidentTenants > 0 ? maxResidentTenants : 1;
+        evictIfNeeded(null);
+    }
+
+    /**
+     * 设置常驻内存的租户所占用的内存上限（估算值）
+     */
+    public synchronized void setMaxResidentBytes(long maxResidentBytes) {
+        this.mMaxResidentBytes = maxResidentBytes > 0 ? maxResidentBytes : 1;
+        evictIfNeeded(null);
+    }
+
+    public synchronized int getResidentTenantCount() {
+        return mResidentTenants.size();
+    }
+
+    /**
+     * @return 常驻内存的租户所占用的内存的估算值，不包括共享的结构
+     */
+    public synchronized long getResidentBytes() {
+        return mResidentTenants.size() * mTenantBytes;
+    }
+
+    public synchronized int getCount(@NonNull String tenantId) {
+        return getCount(tenantId, mSchema.getId(0));
+    }
+
+    public synchronized int getCount(@NonNull String tenantId, @NonNull String id) {
+        final int index = mSchema.indexOf(id);
+        if (index < 0) {
+            return 0;
+        }
+        return acquire(tenantId).getDisplayCount(index);
+    }
+
+    public synchronized boolean isBypassed(@NonNull String tenantId, @NonNull String id) {
+        final int index = mSchema.indexOf(id);
+        return index >= 0 && acquire(tenantId).isBypassed(index);
+    }
+
+    public synchronized void addCount(@NonNull String tenantId, @NonNull String id, int delta) {
+        final int index = leafIndexOf(id);
+        if (index >= 0 && delta != 0) {
+            final TenantCounts tenant = acquire(tenantId);
+            applyCount(tenant, index, tenant.counts[index] + delta);
+        }
+    }
+
+    public synchronized void reduceCount(@NonNull String tenantId, @NonNull String id, int delta) {
+        addCount(tenantId, id, -delta);
+    }
+
+    public synchronized void applyCount(@NonNull String tenantId, @NonNull String id, int count) {
+        final int index = leafIndexOf(id);
+        if (index >= 0) {
+            applyCount(acquire(tenantId), index, count);
+        }
+    }
+
+    /**
+     * 按照节点的碰触策略碰触节点，参考{@link TreeCounter#touchNode(String)}
+     */
+    public synchronized void touchNode(@NonNull String tenantId, @NonNull String id) {
+        final int index = mSchema.indexOf(id);
+        if (index < 0) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot find the node [id=" + id + "] to touch.");
+            return;
+        }
+        final TenantCounts tenant = acquire(tenantId);
+        switch (mSchema.getPolicy(index)) {
+            case CountTreeSchema.POLICY_ZERO_SELF:
+                applyCount(tenant, index, 0);
+                break;
+            case CountTreeSchema.POLICY_ZERO_DESCENDANT:
+                for (int i = index + 1; i < mSchema.getSubtreeEnd(index); i++) {
+                    if (tenant.counts[i] != 0 && mSchema.getPolicy(i) == CountTreeSchema.POLICY_BYPASS) {
+                        tenant.setBypassed(i, false);
+                    }
+                    tenant.counts[i] = 0;
+                }
+                applyCount(tenant, index, 0);
+                break;
+            case CountTreeSchema.POLICY_BYPASS:
+                setBypass(tenant, index, true);
+                break;
+            default:
+                break;
+        }
+    }
+
+    public synchronized void setBypass(@NonNull String tenantId, @NonNull String id, boolean bypassed) {
+        final int index = mSchema.indexOf(id);
+        if (index >= 0) {
+            setBypass(acquire(tenantId), index, bypassed);
+        }
+    }
+
+    /**
+     * 清空租户的所有数量值和旁路标志
+     */
+    public synchronized void reset(@NonNull String tenantId) {
+        mResidentTenants.put(tenantId, new TenantCounts(mSchema.size()));
+        deleteSnapshot(tenantId);
+    }
+
+    /**
+     * 移除租户，包括快照文件
+     */
+    public synchronized void remove(@NonNull String tenantId) {
+        mResidentTenants.remove(tenantId);
+        deleteSnapshot(tenantId);
+    }
+
+    /**
+     * 把所有常驻的租户写入快照，但不会淘汰它们，通常在关闭服务前调用
+     */
+    public synchronized void flush() throws IOException {
+        for (Map.Entry<String, TenantCounts> entry : mResidentTenants.entrySet()) {
+            writeSnapshot(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private int leafIndexOf(String id) {
+        final int index = mSchema.indexOf(id);
+        if (index < 0) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot find the node [id=" + id + "] to update.");
+            return -1;
+        }
+        if (!mSchema.isLeaf(index)) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot update count of a node that is not a leaf in node tree.");
+            return -1;
+        }
+        return index;
+    }
+
+    /**
+     * 更新节点的数量值，并沿父辈路径传播显示数量的差值，父辈节点上的旁路策略与{@link TreeCounter#BypassPolicy}一致
+     */
+    private void applyCount(TenantCounts tenant, int index, int count) {
+        if (tenant.counts[index] == count) {
+            return;
+        }
+        final int oldDisplayCount = tenant.getDisplayCount(index);
+        tenant.counts[index] = count >= 0 ? count : 0;
+        propagate(tenant, index, tenant.getDisplayCount(index) - oldDisplayCount, true);
+    }
+
+    private void setBypass(TenantCounts tenant, int index, boolean bypassed) {
+        if (tenant.isBypassed(index) == bypassed) {
+            return;
+        }
+        final int oldDisplayCount = tenant.getDisplayCount(index);
+        tenant.setBypassed(index, bypassed);
+        propagate(tenant, index, tenant.getDisplayCount(index) - oldDisplayCount, false);
+    }
+
+    private void propagate(TenantCounts tenant, int index, int delta, boolean isCountChange) {
+        for (int parent = mSchema.getParent(index); parent >= 0; parent = mSchema.getParent(parent)) {
+            if (delta == 0 && !isCountChange) {
+                break;
+            }
+            final int oldDisplayCount = tenant.getDisplayCount(parent);
+            tenant.counts[parent] += delta;
+            if (isCountChange && mSchema.getPolicy(parent) == CountTreeSchema.POLICY_BYPASS) {
+                // 与TreeCounter一致，更新数量时所有父辈节点的旁路标志都会被清除
+                tenant.setBypassed(parent, false);
+            }
+            delta = tenant.getDisplayCount(parent) - oldDisplayCount;
+        }
+    }
+
+    private TenantCounts acquire(String tenantId) {
+        TenantCounts tenant = mResidentTenants.get(tenantId);
+        if (tenant == null) {
+            try {
+                tenant = readSnapshot(tenantId);
+            } catch (IOException e) {
+                // 快照损坏或者不完整时当作没有快照，按照结构描述重新建立
+                if (mDebuggable) Log.w(LOG_TAG, "Cannot read snapshot of tenant: " + tenantId, e);
+                tenant = new TenantCounts(mSchema.size());
+            }
+            mResidentTenants.put(tenantId, tenant);
+            evictIfNeeded(tenantId);
+        }
+        return tenant;
+    }
+
+    private void evictIfNeeded(String activeTenantId) {
+        final Iterator<Map.Entry<String, TenantCounts>> iterator = mResidentTenants.entrySet().iterator();
+        List<String> failedTenantIds = null;
+        while ((mResidentTenants.size() > mMaxResidentTenants
+                || mResidentTenants.size() * mTenantBytes > mMaxResidentBytes) && iterator.hasNext()) {
+            final Map.Entry<String, TenantCounts> eldest = iterator.next();
+            if (eldest.getKey().equals(activeTenantId)) {
+                continue;
+            }
+            try {
+                writeSnapshot(eldest.getKey(), eldest.getValue());
+                iterator.remove();
+            } catch (IOException e) {
+                // 写入失败时继续常驻，避免丢失数据
+                if (mDebuggable) Log.e(LOG_TAG, "Failed to evict tenant: " + eldest.getKey(), e);
+                if (failedTenantIds == null) {
+                    failedTenantIds = new ArrayList<>();
+                }
+                failedTenantIds.add(eldest.getKey());
+            }
+        }
+        if (failedTenantIds != null) {
+            if (mDebuggable) Log.w(LOG_TAG, failedTenantIds.size() + " tenants exceed the resident limits.");
+        }
+    }
+
+    private File snapshotFileOf(String tenantId) {
+        // 使用十六进制编码租户ID，避免文件名中出现非法字符
+        final StringBuilder name = new StringBuilder(tenantId.length() * 2 + SNAPSHOT_SUFFIX.length());
+        final byte[] bytes;
+        try {
+            bytes = tenantId.getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        for (byte b : bytes) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return new File(mSnapshotDirectory, name.append(SNAPSHOT_SUFFIX).toString());
+    }
+
+    private void deleteSnapshot(String tenantId) {
+        final File file = snapshotFileOf(tenantId);
+        if (file.exists() && !file.delete()) {
+            if (mDebuggable) Log.w(LOG_TAG, "Cannot delete tenant snapshot: " + file);
+        }
+    }
+
+    private void writeSnapshot(String tenantId, TenantCounts tenant) throws IOException {
+        if (tenant.isEmpty()) {
+            deleteSnapshot(tenantId);
+            return;
+        }
+        final File file = snapshotFileOf(tenantId);
+        final File tempFile = new File(file.getPath() + ".tmp");
+        final FileOutputStream fileOutput = new FileOutputStream(tempFile);
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+        try {
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.writeInt(tenant.counts.length);
+            for (int count : tenant.counts) {
+                output.writeInt(count);
+            }
+            for (long word : tenant.bypassedBits) {
+                output.writeLong(word);
+            }
+            // 替换之前先把临时文件写入磁盘，避免掉电后留下不完整的快照
+            output.flush();
+            fileOutput.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Cannot replace tenant snapshot: " + file);
+        }
+    }
+
+    private TenantCounts readSnapshot(String tenantId) throws IOException {
+        final TenantCounts tenant = new TenantCounts(mSchema.size());
+        final File file = snapshotFileOf(tenantId);
+        if (!file.isFile()) {
+            return tenant;
+        }
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != SNAPSHOT_MAGIC || input.readInt() != mSchema.size()) {
+                throw new IOException("Tenant snapshot does not match the schema: " + file);
+            }
+            for (int i = 0; i < tenant.counts.length; i++) {
+                tenant.counts[i] = input.readInt();
+            }
+            for (int i = 0; i < tenant.bypassedBits.length; i++) {
+                tenant.bypassedBits[i] = input.readLong();
+            }
+        } finally {
+            input.close();
+        }
+        return tenant;
+    }
+
+    private static int bitWords(int size) {
+        return (size + 63) >>> 6;
+    }
+
+    /**
+     * 单个租户的数量值，按照{@link CountTreeSchema}的编号保存
+     */
+    private static final class TenantCounts {
+        final int[] counts;
+        final long[] bypassedBits;
+
+        TenantCounts(int size) {
+            counts = new int[size];
+            bypassedBits = new long[bitWords(size)];
+        }
+
+        boolean isBypassed(int index) {
+            return (bypassedBits[index >>> 6] & (1L << index)) != 0;
+        }
+
+        void setBypassed(int index, boolean bypassed) {
+            if (bypassed) {
+                bypassedBits[index >>> 6] |= (1L << index);
+            } else {
+                bypassedBits[index >>> 6] &= ~(1L << index);
+            }
+        }
+
+        int getDisplayCount(int index) {
+            return isBypassed(index) ? 0 : counts[index];
+        }
+
+        boolean isEmpty() {
+            for (long word : bypassedBits) {
+                if (word != 0) return false;
+            }
+            for (int count : counts) {
+                if (count != 0) return false;
+            }
+            return true;
+        }
+    }
+}
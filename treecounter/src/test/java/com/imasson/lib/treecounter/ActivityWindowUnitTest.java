@@ -0,0 +1,147 @@
+package com.imasson.lib.treecounter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link ActivityWindow}的测试，使用手动控制的时钟
+ */
+public class ActivityWindowUnitTest {
+
+    /*
+     * Test tree graph:
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     ├─ IdTestParentNode
+     *     │   ├─ IdTestLeafNode_1
+     *     │   └─ IdTestLeafNode_2
+     *     └─ IdTestLeafNode_3
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot      = "testNodeRoot";
+    private static final String IdTestParentNode    = "testParentNode";
+    private static final String IdTestLeafNode_1    = "testLeafNode_1";
+    private static final String IdTestLeafNode_2    = "testLeafNode_2";
+    private static final String IdTestLeafNode_3    = "testLeafNode_3";
+
+    private static final long WINDOW_MILLIS = 60 * 60 * 1000;
+    private static final long BUCKET_MILLIS = WINDOW_MILLIS / 60;
+
+    private long now = 1000000;
+    private TreeCounter treeCounter;
+    private ActivityWindow activityWindow;
+
+    @Before
+    public void setUp() throws Exception {
+        treeCounter = new CountTreeBuilder()
+                .addNode(IdTestNodeRoot, null)
+                .addNode(IdTestParentNode, IdTestNodeRoot)
+                .addNode(IdTestLeafNode_1, IdTestParentNode)
+                .addNode(IdTestLeafNode_2, IdTestParentNode)
+                .addNode(IdTestLeafNode_3, IdTestNodeRoot)
+                .build();
+        activityWindow = new ActivityWindow(treeCounter, WINDOW_MILLIS, 60, new CountClock() {
+            @Override
+            public long currentTimeMillis() {
+                return now;
+            }
+        });
+    }
+
+    @Test
+    public void recordAndRollUp_isCorrect() throws Exception {
+        activityWindow.record(IdTestLeafNode_1);
+        activityWindow.record(IdTestLeafNode_2, 2);
+        activityWindow.record(IdTestLeafNode_3, 4);
+        activityWindow.record(IdTestParentNode, 100);
+
+        assertEquals(1, activityWindow.getCount(IdTestLeafNode_1));
+        assertEquals(3, activityWindow.getCount(IdTestParentNode));
+        assertEquals(7, activityWindow.getCount());
+    }
+
+    @Test
+    public void slidingExpiry_isCorrect() throws Exception {
+        activityWindow.record(IdTestLeafNode_1, 1);
+        now += 30 * BUCKET_MILLIS;
+        activityWindow.record(IdTestLeafNode_2, 2);
+        now += 20 * BUCKET_MILLIS;
+        activityWindow.record(IdTestLeafNode_3, 4);
+        assertEquals(7, activityWindow.getCount());
+
+        // 第一条记录在一小时后过期
+        now += 10 * BUCKET_MILLIS;
+        assertEquals(6, activityWindow.getCount());
+        assertEquals(0, activityWindow.getCount(IdTestLeafNode_1));
+        assertEquals(2, activityWindow.getCount(IdTestParentNode));
+
+        now += 30 * BUCKET_MILLIS;
+        assertEquals(4, activityWindow.getCount());
+        assertEquals(0, activityWindow.getCount(IdTestParentNode));
+
+        // 超过整个窗口之后全部过期
+        now += 2 * WINDOW_MILLIS;
+        assertEquals(0, activityWindow.getCount());
+        activityWindow.record(IdTestLeafNode_1, 5);
+        assertEquals(5, activityWindow.getCount());
+    }
+
+    @Test
+    public void movedNode_rollsUpToNewAncestors() throws Exception {
+        activityWindow.record(IdTestLeafNode_1);
+        activityWindow.record(IdTestLeafNode_2, 2);
+        treeCounter.moveNode(IdTestLeafNode_1, IdTestNodeRoot);
+        assertEquals(2, activityWindow.getCount(IdTestParentNode));
+        assertEquals(3, activityWindow.getCount());
+
+        now += 30 * BUCKET_MILLIS;
+        activityWindow.record(IdTestLeafNode_1);
+        assertEquals(2, activityWindow.getCount(IdTestLeafNode_1));
+
+        // 移动之前的记录过期时从新的父辈节点中减去
+        now += 31 * BUCKET_MILLIS;
+        assertEquals(0, activityWindow.getCount(IdTestParentNode));
+        assertEquals(1, activityWindow.getCount(IdTestLeafNode_1));
+        assertEquals(1, activityWindow.getCount());
+    }
+
+    @Test
+    public void removedNode_isDroppedFromAncestors() throws Exception {
+        activityWindow.record(IdTestLeafNode_1, 1);
+        activityWindow.record(IdTestLeafNode_2, 2);
+        activityWindow.record(IdTestLeafNode_3, 4);
+
+        treeCounter.removeNode(IdTestLeafNode_2);
+        assertEquals(1, activityWindow.getCount(IdTestParentNode));
+        assertEquals(5, activityWindow.getCount());
+
+        // 同一个ID重新添加之后是新的节点，不继承原来的记录
+        treeCounter.addNode(IdTestParentNode, new CountNode(IdTestLeafNode_2));
+        assertEquals(0, activityWindow.getCount(IdTestLeafNode_2));
+        now += WINDOW_MILLIS - BUCKET_MILLIS;
+        activityWindow.record(IdTestLeafNode_2, 8);
+        assertEquals(9, activityWindow.getCount(IdTestParentNode));
+        now += BUCKET_MILLIS;
+        assertEquals(8, activityWindow.getCount());
+    }
+
+    @Test
+    public void collapsedDynamicChild_isDroppedFromAncestors() throws Exception {
+        final String dynamicChildId = "testDynamicChild";
+        treeCounter.enableDynamicChildren(IdTestParentNode, null);
+        treeCounter.applyChildCount(IdTestParentNode, dynamicChildId, 1);
+        activityWindow.record(dynamicChildId, 3);
+        activityWindow.record(IdTestLeafNode_3, 1);
+        assertEquals(3, activityWindow.getCount(IdTestParentNode));
+        assertEquals(4, activityWindow.getCount());
+
+        // 数量回到0之后动态子节点被回收
+        treeCounter.applyChildCount(IdTestParentNode, dynamicChildId, 0);
+        assertNull(treeCounter.findNode(dynamicChildId));
+        assertEquals(0, activityWindow.getCount(IdTestParentNode));
+        assertEquals(1, activityWindow.getCount());
+    }
+}
@@ -0,0 +1,127 @@
+package com.imasson.lib.treecounter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link AsyncTreeCounter}的测试，包括多线程提交、发布的数量值以及监听器的回调线程
+ */
+public class AsyncTreeCounterUnitTest {
+
+    /*
+     * Test tree graph:
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     ├─ IdTestParentNode
+     *     │   ├─ IdTestLeafNode_1
+     *     │   └─ IdTestLeafNode_2
+     *     └─ IdTestLeafNode_3 [ZeroSelf]
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot      = "testNodeRoot";
+    private static final String IdTestParentNode    = "testParentNode";
+    private static final String IdTestLeafNode_1    = "testLeafNode_1";
+    private static final String IdTestLeafNode_2    = "testLeafNode_2";
+    private static final String IdTestLeafNode_3    = "testLeafNode_3";
+
+    private final AtomicInteger listenerCalls = new AtomicInteger();
+    private volatile boolean listenerThrows;
+    private volatile Thread listenerThread;
+    private AsyncTreeCounter asyncTreeCounter;
+
+    @Before
+    public void setup() throws Exception {
+        final TreeCounter treeCounter = new TreeCounter(
+                new CountNode(IdTestNodeRoot, new CountNode[] {
+                        new CountNode(IdTestParentNode, new CountNode[] {
+                                new CountNode(IdTestLeafNode_1),
+                                new CountNode(IdTestLeafNode_2)
+                        }),
+                        new CountNode(IdTestLeafNode_3, (ICountFetcher) null, TreeCounter.ZeroSelfPolicy)
+                }));
+        asyncTreeCounter = new AsyncTreeCounter(treeCounter, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        asyncTreeCounter.setListener(new TreeCounter.OnNodeUnreadCountChangeListener() {
+            @Override
+            public void onNodeUnreadCountChanged(CountNode node) {
+                listenerThread = Thread.currentThread();
+                listenerCalls.incrementAndGet();
+                if (listenerThrows) {
+                    throw new IllegalStateException("Listener failure");
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        asyncTreeCounter.shutdown();
+    }
+
+    @Test
+    public void concurrentProducers_isCorrect() throws Exception {
+        final int producerCount = 4;
+        final int opsPerProducer = 2000;
+        final Thread[] producers = new Thread[producerCount];
+        for (int i = 0; i < producerCount; i++) {
+            final String id = (i % 2 == 0) ? IdTestLeafNode_1 : IdTestLeafNode_2;
+            producers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < opsPerProducer; j++) {
+                        asyncTreeCounter.addCount(id, 1);
+                    }
+                }
+            });
+            producers[i].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        asyncTreeCounter.flush();
+
+        assertEquals(producerCount / 2 * opsPerProducer, asyncTreeCounter.getCount(IdTestLeafNode_1));
+        assertEquals(producerCount / 2 * opsPerProducer, asyncTreeCounter.getCount(IdTestLeafNode_2));
+        assertEquals(producerCount * opsPerProducer, asyncTreeCounter.getCount(IdTestParentNode));
+        assertEquals(producerCount * opsPerProducer, asyncTreeCounter.getCount());
+
+        assertTrue(listenerCalls.get() > 0);
+        assertNotSame(Thread.currentThread(), listenerThread);
+    }
+
+    @Test
+    public void orderedMutations_isCorrect() throws Exception {
+        asyncTreeCounter.applyCount(IdTestLeafNode_3, 5);
+        asyncTreeCounter.touchNode(IdTestLeafNode_3);
+        asyncTreeCounter.addCount(IdTestLeafNode_3, 2);
+        asyncTreeCounter.flush();
+
+        assertEquals(2, asyncTreeCounter.getCount(IdTestLeafNode_3));
+        assertEquals(2, asyncTreeCounter.getCount());
+    }
+
+    @Test(timeout = 5000)
+    public void failingListener_keepsWriterAlive() throws Exception {
+        // 同步回调的监听器在批量更新结束时抛出异常
+        listenerThrows = true;
+        asyncTreeCounter.addCount(IdTestLeafNode_1, 1);
+        asyncTreeCounter.flush();
+        listenerThrows = false;
+
+        asyncTreeCounter.addCount(IdTestLeafNode_2, 2);
+        asyncTreeCounter.flush();
+        assertEquals(2, asyncTreeCounter.getCount(IdTestLeafNode_2));
+        assertEquals(3, asyncTreeCounter.getCount());
+    }
+}
@@ -0,0 +1,219 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * 批量数据源的测试，参考{@link IBatchCountFetcher}
+ */
+public class BatchCountFetcherUnitTest {
+
+    /*
+     * Test tree graph:
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     ├─ IdTestParentNode_1 [Batch fetcher 1, Batch updater]
+     *     │   ├─ IdTestLeafNode_1
+     *     │   └─ IdTestParentNode_2 [Batch fetcher 2]
+     *     │       └─ IdTestLeafNode_2
+     *     ├─ IdTestParentNode_3 [Batch fetcher 1, Batch updater]
+     *     │   └─ IdTestLeafNode_3
+     *     └─ IdTestLeafNode_4 [Fetcher]
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot      = "testNodeRoot";
+    private static final String IdTestParentNode_1  = "testParentNode_1";
+    private static final String IdTestParentNode_2  = "testParentNode_2";
+    private static final String IdTestParentNode_3  = "testParentNode_3";
+    private static final String IdTestLeafNode_1    = "testLeafNode_1";
+    private static final String IdTestLeafNode_2    = "testLeafNode_2";
+    private static final String IdTestLeafNode_3    = "testLeafNode_3";
+    private static final String IdTestLeafNode_4    = "testLeafNode_4";
+
+    private TreeCounter treeCounter;
+    private final Map<String, Integer> persistingCounts = new HashMap<>();
+    private final List<Integer> leafUpdates = new ArrayList<>();
+
+    /**
+     * 按照持久化的数量返回结果的批量数据源，只返回数量不为0的节点，并记录每次调用的节点ID
+     */
+    private class FakeBatchFetcher implements IBatchCountFetcher {
+        final List<List<String>> requests = new ArrayList<>();
+        LoadCountsCallback pendingCallback;
+        boolean async;
+
+        @Override
+        public void loadCounts(@NonNull String[] ids, @NonNull LoadCountsCallback callback) {
+            requests.add(Arrays.asList(ids));
+            final List<String> resultIds = new ArrayList<>();
+            for (String id : ids) {
+                if (persistingCounts.containsKey(id)) {
+                    resultIds.add(id);
+                }
+            }
+            if (async) {
+                pendingCallback = callback;
+                return;
+            }
+            respond(callback, resultIds);
+        }
+
+        void respond(LoadCountsCallback callback, List<String> resultIds) {
+            final int[] counts = new int[resultIds.size()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = persistingCounts.get(resultIds.get(i));
+            }
+            callback.onLoadCounts(resultIds.toArray(new String[resultIds.size()]), counts);
+        }
+    }
+
+    /**
+     * 同时支持批量写回的数据源，记录每次写回的节点ID
+     */
+    private class FakeBatchUpdater extends FakeBatchFetcher implements IBatchCountUpdater {
+        final List<List<String>> updates = new ArrayList<>();
+
+        @Override
+        public void updateCounts(@NonNull String[] ids, @NonNull int[] counts) {
+            updates.add(Arrays.asList(ids));
+            for (int i = 0; i < ids.length; i++) {
+                persistingCounts.put(ids[i], counts[i]);
+            }
+        }
+    }
+
+    private final FakeBatchUpdater batchFetcher_1 = new FakeBatchUpdater();
+    private final FakeBatchFetcher batchFetcher_2 = new FakeBatchFetcher();
+
+    @Before
+    public void setUp() throws Exception {
+        final ICountFetcher leafFetcher = new ICountFetcher() {
+            @Override
+            public void loadCount(LoadCountCallback callback) {
+                callback.onLoadCount(this, 4);
+            }
+
+            @Override
+            public void updateCount(int count) {
+                leafUpdates.add(count);
+            }
+        };
+        treeCounter = new CountTreeBuilder()
+                .addNode(IdTestNodeRoot, null)
+                .addNode(IdTestParentNode_1, IdTestNodeRoot)
+                .addNode(IdTestLeafNode_1, IdTestParentNode_1)
+                .addNode(IdTestParentNode_2, IdTestParentNode_1)
+                .addNode(IdTestLeafNode_2, IdTestParentNode_2)
+                .addNode(IdTestParentNode_3, IdTestNodeRoot)
+                .addNode(IdTestLeafNode_3, IdTestParentNode_3, 9, null)
+                .addNode(IdTestLeafNode_4, IdTestNodeRoot, 0, null, leafFetcher)
+                .build();
+        treeCounter.setBatchCountFetcher(IdTestParentNode_1, batchFetcher_1);
+        treeCounter.setBatchCountFetcher(IdTestParentNode_2, batchFetcher_2);
+        treeCounter.setBatchCountFetcher(IdTestParentNode_3, batchFetcher_1);
+        persistingCounts.put(IdTestLeafNode_1, 1);
+        persistingCounts.put(IdTestLeafNode_2, 2);
+    }
+
+    @Test
+    public void reload_groupsLeavesByFetcher() throws Exception {
+        treeCounter.reload();
+
+        assertEquals(1, batchFetcher_1.requests.size());
+        assertEquals(Arrays.asList(IdTestLeafNode_1, IdTestLeafNode_3), batchFetcher_1.requests.get(0));
+        assertEquals(1, batchFetcher_2.requests.size());
+        assertEquals(Arrays.asList(IdTestLeafNode_2), batchFetcher_2.requests.get(0));
+
+        assertEquals(1, treeCounter.getCount(IdTestLeafNode_1));
+        assertEquals(2, treeCounter.getCount(IdTestLeafNode_2));
+        assertEquals(0, treeCounter.getCount(IdTestLeafNode_3));
+        assertEquals(4, treeCounter.getCount(IdTestLeafNode_4));
+        assertEquals(7, treeCounter.getCount());
+    }
+
+    @Test
+    public void reload_keepsDynamicChildrenInBatchSubtree() throws Exception {
+        final String dynamicChildId = "testDynamicChild";
+        treeCounter.enableDynamicChildren(IdTestParentNode_3, null);
+        treeCounter.applyChildCount(IdTestParentNode_3, dynamicChildId, 5);
+        assertEquals(14, treeCounter.getCount(IdTestParentNode_3));
+
+        treeCounter.reload();
+        // 动态子节点没有数据源，不交给批量数据源，也不会因为没有返回而被清零
+        assertEquals(Arrays.asList(IdTestLeafNode_1, IdTestLeafNode_3), batchFetcher_1.requests.get(0));
+        assertEquals(5, treeCounter.getCount(dynamicChildId));
+        assertEquals(5, treeCounter.getCount(IdTestParentNode_3));
+        assertEquals(12, treeCounter.getCount());
+    }
+
+    @Test
+    public void batchResult_isAppliedOnce() throws Exception {
+        final List<String> changedIds = new ArrayList<>();
+        treeCounter.setListener(new TreeCounter.OnNodeUnreadCountChangeListener() {
+            @Override
+            public void onNodeUnreadCountChanged(CountNode node) {
+                changedIds.add(node.getId());
+            }
+        });
+        treeCounter.setBatchCountFetcher(IdTestParentNode_2, null);
+        persistingCounts.put(IdTestLeafNode_3, 3);
+
+        treeCounter.reload();
+        int rootNotifications = 0;
+        for (String id : changedIds) {
+            if (id.equals(IdTestNodeRoot)) {
+                rootNotifications++;
+            }
+        }
+        // 批量数据源的结果只通知一次根节点，另一次来自单独加载的叶子节点
+        assertEquals(2, rootNotifications);
+        assertEquals(10, treeCounter.getCount());
+        assertEquals(Arrays.asList(IdTestLeafNode_1, IdTestLeafNode_2, IdTestLeafNode_3),
+                batchFetcher_1.requests.get(0));
+    }
+
+    @Test
+    public void removedNode_isIgnoredInLateResult() throws Exception {
+        batchFetcher_1.async = true;
+        treeCounter.reload();
+        final IBatchCountFetcher.LoadCountsCallback callback = batchFetcher_1.pendingCallback;
+        assertNotNull(callback);
+        assertEquals(9, treeCounter.getCount(IdTestLeafNode_3));
+
+        batchFetcher_1.pendingCallback = null;
+        treeCounter.removeNode(IdTestLeafNode_1);
+        callback.onLoadCounts(new String[] {IdTestLeafNode_1, IdTestLeafNode_3}, new int[] {5, 6});
+        assertEquals(6, treeCounter.getCount(IdTestLeafNode_3));
+        assertEquals(6, treeCounter.getCount(IdTestParentNode_3));
+    }
+
+    @Test
+    public void clearSubtree_batchesWriteBack() throws Exception {
+        treeCounter.addCount(IdTestLeafNode_1, 1);
+        treeCounter.addCount(IdTestLeafNode_2, 2);
+        treeCounter.addCount(IdTestLeafNode_4, 4);
+
+        treeCounter.clearSubtree(IdTestNodeRoot);
+        assertEquals(0, treeCounter.getCount());
+        // 批量数据源1负责的叶子节点合并为一次写回，其他叶子节点仍然逐个写回
+        assertEquals(1, batchFetcher_1.updates.size());
+        assertEquals(Arrays.asList(IdTestLeafNode_1, IdTestLeafNode_3), batchFetcher_1.updates.get(0));
+        assertEquals(Integer.valueOf(0), persistingCounts.get(IdTestLeafNode_3));
+        assertEquals(Arrays.asList(4, 0), leafUpdates);
+
+        // 数量已经为0时不再写回
+        treeCounter.clearSubtree(IdTestParentNode_1);
+        assertEquals(1, batchFetcher_1.updates.size());
+    }
+}
@@ -0,0 +1,122 @@
+package com.imasson.lib.treecounter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * 测试{@link TreeCounter#BypassPolicy}的旁路配置的缓存、恢复和批量写入
+ */
+public class BypassPreferenceUnitTest {
+
+    /*
+     * Test tree graph:
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     └─ IdTestBypassNode [Bypass]
+     *         ├─ IdTestLeafNode_1 [ZeroSelf]
+     *         ├─ IdTestLeafNode_2 [ZeroSelf]
+     *         └─ IdTestLeafNode_3 [ZeroSelf]
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot      = "testNodeRoot";
+    private static final String IdTestBypassNode    = "testBypassNode";
+    private static final String IdTestLeafNode_1    = "testLeafNode_1";
+    private static final String IdTestLeafNode_2    = "testLeafNode_2";
+    private static final String IdTestLeafNode_3    = "testLeafNode_3";
+
+    private final HashMap<String, Boolean> fakePreferences = new HashMap<>();
+    private int preferenceReadCount = 0;
+    private int preferenceWriteCount = 0;
+
+    private final TreeCounter.PreferenceHandler preferenceHandler = new TreeCounter.PreferenceHandler() {
+        @Override
+        public boolean getBooleanConfigValue(String key) {
+            preferenceReadCount++;
+            final Boolean value = fakePreferences.get(key);
+            return value != null && value;
+        }
+
+        @Override
+        public void setConfigValue(String key, boolean value) {
+            preferenceWriteCount++;
+            fakePreferences.put(key, value);
+        }
+
+        @Override
+        public int getIntegerConfigValue(String key) {
+            return 0;
+        }
+
+        @Override
+        public void setConfigValue(String key, int value) {
+        }
+    };
+
+    private static ICountFetcher fixedFetcher(final int count) {
+        return new ICountFetcher() {
+            @Override
+            public void loadCount(LoadCountCallback callback) {
+                callback.onLoadCount(this, count);
+            }
+
+            @Override
+            public void updateCount(int count) {
+            }
+        };
+    }
+
+    private TreeCounter createTreeCounter() {
+        return new TreeCounter(
+                new CountNode(IdTestNodeRoot, new CountNode[] {
+                        new CountNode(IdTestBypassNode, new CountNode[] {
+                                new CountNode(IdTestLeafNode_1, fixedFetcher(1), TreeCounter.ZeroSelfPolicy),
+                                new CountNode(IdTestLeafNode_2, fixedFetcher(2), TreeCounter.ZeroSelfPolicy),
+                                new CountNode(IdTestLeafNode_3, fixedFetcher(3), TreeCounter.ZeroSelfPolicy)
+                        }, TreeCounter.BypassPolicy)
+                }), preferenceHandler);
+    }
+
+    @Before
+    public void setup() throws Exception {
+        fakePreferences.clear();
+        preferenceReadCount = 0;
+        preferenceWriteCount = 0;
+    }
+
+    @Test
+    public void reloadRestoresBypass_withSingleRead() throws Exception {
+        fakePreferences.put(IdTestBypassNode, true);
+        final TreeCounter treeCounter = createTreeCounter();
+        treeCounter.reload();
+
+        assertTrue(treeCounter.findNode(IdTestBypassNode).isBypassed());
+        assertEquals(0, treeCounter.getCount(IdTestBypassNode));
+        assertEquals(0, treeCounter.getCount());
+        assertEquals(1, preferenceReadCount);
+    }
+
+    @Test
+    public void touchAndChange_writesOncePerOperation() throws Exception {
+        final TreeCounter treeCounter = createTreeCounter();
+        treeCounter.reload();
+
+        treeCounter.touchNode(IdTestBypassNode);
+        assertEquals(1, preferenceWriteCount);
+        assertEquals(Boolean.TRUE, fakePreferences.get(IdTestBypassNode));
+
+        treeCounter.beginBatchUpdate();
+        treeCounter.addCount(IdTestLeafNode_1, 1);
+        treeCounter.addCount(IdTestLeafNode_2, 1);
+        treeCounter.addCount(IdTestLeafNode_3, 1);
+        treeCounter.endBatchUpdate();
+
+        assertEquals(2, preferenceWriteCount);
+        assertEquals(Boolean.FALSE, fakePreferences.get(IdTestBypassNode));
+        assertEquals(9, treeCounter.getCount());
+    }
+}
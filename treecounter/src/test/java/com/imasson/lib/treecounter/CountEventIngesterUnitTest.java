@@ -0,0 +1,258 @@
+package com.imasson.lib.treecounter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link CountEventIngester}的测试，包括批量应用、断点续传和日志重放
+ */
+public class CountEventIngesterUnitTest {
+
+    /*
+     * Test tree graph:
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     ├─ IdTestParentNode
+     *     │   ├─ IdTestLeafNode_1
+     *     │   └─ IdTestLeafNode_2
+     *     └─ IdTestLeafNode_3
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot      = "testNodeRoot";
+    private static final String IdTestParentNode    = "testParentNode";
+    private static final String IdTestLeafNode_1    = "testLeafNode_1";
+    private static final String IdTestLeafNode_2    = "testLeafNode_2";
+    private static final String IdTestLeafNode_3    = "testLeafNode_3";
+
+    private TreeCounter treeCounter;
+    private int persistWriteCount = 0;
+    private int notifyCount = 0;
+
+    private ICountFetcher countingFetcher = new ICountFetcher() {
+        @Override
+        public void loadCount(LoadCountCallback callback) {
+            callback.onLoadCount(this, 0);
+        }
+
+        @Override
+        public void updateCount(int count) {
+            persistWriteCount++;
+        }
+    };
+
+    @Before
+    public void setup() throws Exception {
+        treeCounter = new TreeCounter(
+                new CountNode(IdTestNodeRoot, new CountNode[] {
+                        new CountNode(IdTestParentNode, new CountNode[] {
+                                new CountNode(IdTestLeafNode_1, countingFetcher),
+                                new CountNode(IdTestLeafNode_2, countingFetcher)
+                        }),
+                        new CountNode(IdTestLeafNode_3, countingFetcher)
+                }));
+        treeCounter.setListener(new TreeCounter.OnNodeUnreadCountChangeListener() {
+            @Override
+            public void onNodeUnreadCountChanged(CountNode node) {
+                notifyCount++;
+            }
+        });
+    }
+
+    @Test
+    public void ingestBatch_isCorrect() throws Exception {
+        final CountEventIngester ingester = new CountEventIngester(treeCounter);
+        final int applied = ingester.ingest(Arrays.asList(
+                new CountEvent(1, IdTestLeafNode_1, 3),
+                new CountEvent(2, IdTestLeafNode_1, 2),
+                new CountEvent(3, IdTestLeafNode_2, 4),
+                new CountEvent(4, IdTestLeafNode_2, -10),
+                new CountEvent(5, IdTestLeafNode_2, 1),
+                new CountEvent(6, IdTestLeafNode_3, 6),
+                new CountEvent(7, IdTestParentNode, 6)
+        ).iterator());
+
+        assertEquals(6, applied);
+        assertEquals(7, ingester.getLastAppliedOffset());
+        assertEquals(5, treeCounter.getCount(IdTestLeafNode_1));
+        assertEquals(1, treeCounter.getCount(IdTestLeafNode_2));
+        assertEquals(6, treeCounter.getCount(IdTestParentNode));
+        assertEquals(12, treeCounter.getCount());
+
+        // 每个叶子节点只写回一次，每个变化的节点只通知一次
+        assertEquals(3, persistWriteCount);
+        assertEquals(5, notifyCount);
+    }
+
+    @Test
+    public void resumeFromOffset_skipsAppliedEvents() throws Exception {
+        final CountEventIngester ingester = new CountEventIngester(treeCounter, 2);
+        final Queue<CountEvent> queue = new ArrayDeque<>();
+        queue.add(new CountEvent(1, IdTestLeafNode_1, 100));
+        queue.add(new CountEvent(2, IdTestLeafNode_1, 100));
+        queue.add(new CountEvent(3, IdTestLeafNode_1, 1));
+        queue.add(new CountEvent(3, IdTestLeafNode_1, 1));
+
+        assertEquals(1, ingester.drain(queue));
+        assertTrue(queue.isEmpty());
+        assertEquals(3, ingester.getLastAppliedOffset());
+        assertEquals(1, treeCounter.getCount());
+    }
+
+    @Test
+    public void replayLogFile_isCorrect() throws Exception {
+        final File logFile = File.createTempFile("count-events", ".log");
+        try {
+            final CountEventLog log = new CountEventLog(logFile);
+            for (int i = 1; i <= 1000; i++) {
+                log.append(new CountEvent(i, (i % 2 == 0) ? IdTestLeafNode_1 : IdTestLeafNode_3, 1));
+            }
+            log.close();
+
+            final CountEventIngester ingester = new CountEventIngester(treeCounter, 10);
+            ingester.setBatchSize(64);
+            assertEquals(990, ingester.replay(logFile));
+            assertEquals(1000, ingester.getLastAppliedOffset());
+            assertEquals(495, treeCounter.getCount(IdTestLeafNode_1));
+            assertEquals(495, treeCounter.getCount(IdTestLeafNode_3));
+            assertEquals(990, treeCounter.getCount());
+
+            // 再次重放不会重复应用
+            assertEquals(0, ingester.replay(logFile));
+            assertEquals(990, treeCounter.getCount());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            logFile.delete();
+        }
+    }
+
+    @Test
+    public void brokenLogTail_isTruncatedOnOpen() throws Exception {
+        final File logFile = File.createTempFile("count-events", ".log");
+        try {
+            CountEventLog log = new CountEventLog(logFile);
+            log.append(new CountEvent(1, IdTestLeafNode_1, 1));
+            log.append(new CountEvent(2, IdTestLeafNode_1, 1));
+            log.close();
+
+            // 模拟崩溃时写了一半的记录
+            final long validLength = logFile.length();
+            final FileOutputStream output = new FileOutputStream(logFile, true);
+            output.write(new byte[] {0, 0, 0, 0, 0, 0, 0, 3, 0});
+            output.close();
+
+            log = new CountEventLog(logFile);
+            assertEquals(validLength, logFile.length());
+            log.append(new CountEvent(3, IdTestLeafNode_3, 5));
+            log.close();
+
+            final CountEventIngester ingester = new CountEventIngester(treeCounter);
+            assertEquals(3, ingester.replay(logFile));
+            assertEquals(7, treeCounter.getCount());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            logFile.delete();
+        }
+    }
+
+    @Test
+    public void undecodableLogTail_isTruncatedOnOpen() throws Exception {
+        final File logFile = File.createTempFile("count-events", ".log");
+        try {
+            CountEventLog log = new CountEventLog(logFile);
+            log.append(new CountEvent(1, IdTestLeafNode_1, 1));
+            log.sync();
+            log.close();
+
+            // 节点ID的长度完整，但内容不是合法的UTF-8编码
+            final long validLength = logFile.length();
+            final FileOutputStream output = new FileOutputStream(logFile, true);
+            output.write(new byte[] {0, 0, 0, 0, 0, 0, 0, 2, 0, 2, (byte) 0xC3, 0x28});
+            output.close();
+
+            log = new CountEventLog(logFile);
+            assertEquals(validLength, logFile.length());
+            log.append(new CountEvent(2, IdTestLeafNode_3, 5));
+            log.sync();
+            log.close();
+
+            final CountEventIngester ingester = new CountEventIngester(treeCounter);
+            assertEquals(2, ingester.replay(logFile));
+            assertEquals(6, treeCounter.getCount());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            logFile.delete();
+        }
+    }
+
+    @Test
+    public void corruptedRecord_stopsReplay() throws Exception {
+        final File logFile = File.createTempFile("count-events", ".log");
+        try {
+            final CountEventLog log = new CountEventLog(logFile);
+            log.append(new CountEvent(1, IdTestLeafNode_1, 1));
+            log.append(new CountEvent(2, IdTestLeafNode_1, 1));
+            log.close();
+
+            // 破坏第二条记录的delta，长度不变但校验值不再匹配
+            final RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+            file.seek(logFile.length() - 5);
+            file.writeByte(9);
+            file.close();
+
+            final CountEventIngester ingester = new CountEventIngester(treeCounter);
+            assertEquals(1, ingester.replay(logFile));
+            assertEquals(1, treeCounter.getCount());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            logFile.delete();
+        }
+    }
+
+    @Test
+    public void failedBatch_isRetriedExactlyOnce() throws Exception {
+        final boolean[] failing = {false};
+        treeCounter.setListener(new TreeCounter.OnNodeUnreadCountChangeListener() {
+            @Override
+            public void onNodeUnreadCountChanged(CountNode node) {
+                if (failing[0]) {
+                    failing[0] = false;
+                    throw new IllegalStateException("listener failure");
+                }
+            }
+        });
+        final CountEventIngester ingester = new CountEventIngester(treeCounter);
+        ingester.ingest(Arrays.asList(new CountEvent(1, IdTestLeafNode_1, 1)).iterator());
+        assertEquals(1, ingester.getLastAppliedOffset());
+
+        failing[0] = true;
+        final List<CountEvent> events = Arrays.asList(
+                new CountEvent(2, IdTestLeafNode_1, 2),
+                new CountEvent(3, IdTestLeafNode_3, 3));
+        try {
+            ingester.ingest(events.iterator());
+            fail("The listener failure should be thrown.");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(1, ingester.getLastAppliedOffset());
+        assertEquals(1, treeCounter.getCount(IdTestLeafNode_1));
+        assertEquals(0, treeCounter.getCount(IdTestLeafNode_3));
+
+        assertEquals(2, ingester.ingest(events.iterator()));
+        assertEquals(3, ingester.getLastAppliedOffset());
+        assertEquals(3, treeCounter.getCount(IdTestLeafNode_1));
+        assertEquals(3, treeCounter.getCount(IdTestLeafNode_3));
+        assertEquals(6, treeCounter.getCount());
+    }
+}
@@ -0,0 +1,184 @@
+package com.imasson.lib.treecounter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link CountExpiry}的测试，使用手动控制的时钟
+ */
+public class CountExpiryUnitTest {
+
+    /*
+     * Test tree graph:
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     ├─ IdTestParentNode
+     *     │   ├─ IdTestLeafNode_1
+     *     │   └─ IdTestLeafNode_2
+     *     └─ IdTestLeafNode_3
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot      = "testNodeRoot";
+    private static final String IdTestParentNode    = "testParentNode";
+    private static final String IdTestLeafNode_1    = "testLeafNode_1";
+    private static final String IdTestLeafNode_2    = "testLeafNode_2";
+    private static final String IdTestLeafNode_3    = "testLeafNode_3";
+
+    private static final long TICK_MILLIS = 100;
+
+    private long now = 12345;
+    private TreeCounter treeCounter;
+    private CountExpiry countExpiry;
+    private int rootChangedCount = 0;
+
+    @Before
+    public void setUp() throws Exception {
+        treeCounter = new CountTreeBuilder()
+                .addNode(IdTestNodeRoot, null)
+                .addNode(IdTestParentNode, IdTestNodeRoot)
+                .addNode(IdTestLeafNode_1, IdTestParentNode)
+                .addNode(IdTestLeafNode_2, IdTestParentNode)
+                .addNode(IdTestLeafNode_3, IdTestNodeRoot)
+                .build();
+        treeCounter.setListener(new TreeCounter.OnNodeUnreadCountChangeListener() {
+            @Override
+            public void onNodeUnreadCountChanged(CountNode node) {
+                if (IdTestNodeRoot.equals(node.getId())) {
+                    rootChangedCount++;
+                }
+            }
+        });
+        countExpiry = new CountExpiry(treeCounter, TICK_MILLIS, new CountClock() {
+            @Override
+            public long currentTimeMillis() {
+                return now;
+            }
+        });
+    }
+
+    @Test
+    public void perIncrementExpiry_isCorrect() throws Exception {
+        countExpiry.addCount(IdTestLeafNode_1, 2, 1000);
+        countExpiry.addCount(IdTestLeafNode_1, 3, 5000);
+        treeCounter.addCount(IdTestLeafNode_2, 1);
+        assertEquals(6, treeCounter.getCount());
+
+        now += 999;
+        countExpiry.advance();
+        assertEquals(6, treeCounter.getCount());
+
+        now += 101;
+        countExpiry.advance();
+        assertEquals(3, treeCounter.getCount(IdTestLeafNode_1));
+        assertEquals(4, treeCounter.getCount());
+
+        now += 4000;
+        countExpiry.advance();
+        assertEquals(0, treeCounter.getCount(IdTestLeafNode_1));
+        assertEquals(1, treeCounter.getCount());
+        assertEquals(0, countExpiry.getPendingCount());
+    }
+
+    @Test
+    public void clearedIncrement_doesNotReduceNewerCount() throws Exception {
+        countExpiry.addCount(IdTestLeafNode_1, 3, 1000);
+        countExpiry.addCount(IdTestLeafNode_2, 4, 1000);
+        // 到期之前被碰触清零，之后收到不会过期的新数量
+        treeCounter.applyCount(IdTestLeafNode_1, 0);
+        treeCounter.addCount(IdTestLeafNode_1, 5);
+        // 其他途径减少的数量从余量中扣除
+        treeCounter.reduceCount(IdTestLeafNode_2, 1);
+        treeCounter.addCount(IdTestLeafNode_2, 2);
+        assertEquals(1, countExpiry.getPendingCount());
+
+        now += 1000 + TICK_MILLIS;
+        countExpiry.advance();
+        assertEquals(5, treeCounter.getCount(IdTestLeafNode_1));
+        assertEquals(2, treeCounter.getCount(IdTestLeafNode_2));
+        assertEquals(7, treeCounter.getCount());
+        assertEquals(0, countExpiry.getPendingCount());
+    }
+
+    @Test
+    public void nodeAndIncrementExpiry_inSameAdvance() throws Exception {
+        countExpiry.addCount(IdTestLeafNode_1, 2, 100);
+        countExpiry.addCount(IdTestLeafNode_1, 2, 100);
+        countExpiry.expireNode(IdTestParentNode, 100);
+        countExpiry.addCount(IdTestLeafNode_3, 5, 500);
+        countExpiry.addCount(IdTestLeafNode_3, 1, 500);
+        assertEquals(5, countExpiry.getPendingCount());
+
+        // 父节点被清零时，同一次推进中到期的增量已经离开时间轮，不能再被移除一次
+        now += 100 + TICK_MILLIS;
+        countExpiry.advance();
+        assertEquals(0, treeCounter.getCount(IdTestParentNode));
+        assertEquals(2, countExpiry.getPendingCount());
+        assertEquals(6, treeCounter.getCount());
+
+        now += 1000;
+        countExpiry.advance();
+        assertEquals(0, treeCounter.getCount(IdTestLeafNode_3));
+        assertEquals(0, countExpiry.getPendingCount());
+    }
+
+    @Test
+    public void nodeExpiry_isCorrect() throws Exception {
+        treeCounter.addCount(IdTestLeafNode_1, 2);
+        treeCounter.addCount(IdTestLeafNode_2, 3);
+        treeCounter.addCount(IdTestLeafNode_3, 4);
+        countExpiry.expireNode(IdTestParentNode, 1000);
+        countExpiry.expireNode(IdTestLeafNode_3, 500);
+        // 重复设置会替换之前的到期时间
+        countExpiry.expireNode(IdTestLeafNode_3, 2000);
+        assertEquals(2, countExpiry.getPendingCount());
+
+        // 到期时间按刻度向上取整，最多延后一个刻度
+        now += 1000 + TICK_MILLIS;
+        countExpiry.advance();
+        assertEquals(0, treeCounter.getCount(IdTestParentNode));
+        assertEquals(4, treeCounter.getCount());
+
+        countExpiry.cancel(IdTestLeafNode_3);
+        now += 5000;
+        countExpiry.advance();
+        assertEquals(4, treeCounter.getCount());
+        assertEquals(0, countExpiry.getPendingCount());
+    }
+
+    @Test
+    public void batchedExpiry_isCorrect() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            countExpiry.addCount(i % 2 == 0 ? IdTestLeafNode_1 : IdTestLeafNode_3, 1, 3000 + i);
+        }
+        assertEquals(1000, treeCounter.getCount());
+
+        rootChangedCount = 0;
+        now += 10000;
+        countExpiry.advance();
+        assertEquals(0, treeCounter.getCount());
+        assertEquals(1, rootChangedCount);
+    }
+
+    @Test
+    public void longTtl_cascadesCorrectly() throws Exception {
+        final long[] ttls = {
+                TICK_MILLIS * 63, TICK_MILLIS * 64, TICK_MILLIS * 4095, TICK_MILLIS * 4097,
+                TICK_MILLIS * 300000, TICK_MILLIS * 20000000L
+        };
+        for (long ttl : ttls) {
+            countExpiry.addCount(IdTestLeafNode_2, 1, ttl);
+        }
+        final long start = now;
+        for (int i = 0; i < ttls.length; i++) {
+            now = start + ttls[i] - 1;
+            countExpiry.advance();
+            assertEquals(ttls.length - i, treeCounter.getCount());
+            now = start + ttls[i] + TICK_MILLIS;
+            countExpiry.advance();
+            assertEquals(ttls.length - i - 1, treeCounter.getCount());
+        }
+    }
+}
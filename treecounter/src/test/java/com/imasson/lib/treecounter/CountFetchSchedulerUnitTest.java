@@ -0,0 +1,180 @@
+package com.imasson.lib.treecounter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 按优先级调度加载的测试，参考{@link CountFetchScheduler}
+ */
+public class CountFetchSchedulerUnitTest {
+
+    /*
+     * Test tree graph:
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     ├─ IdTestFolderNode_1
+     *     │   ├─ IdTestLeafNode_1
+     *     │   └─ IdTestLeafNode_2
+     *     └─ IdTestFolderNode_2
+     *         ├─ IdTestLeafNode_3
+     *         └─ IdTestLeafNode_4
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot      = "testNodeRoot";
+    private static final String IdTestFolderNode_1  = "testFolderNode_1";
+    private static final String IdTestFolderNode_2  = "testFolderNode_2";
+    private static final String IdTestLeafNode_1    = "testLeafNode_1";
+    private static final String IdTestLeafNode_2    = "testLeafNode_2";
+    private static final String IdTestLeafNode_3    = "testLeafNode_3";
+    private static final String IdTestLeafNode_4    = "testLeafNode_4";
+
+    private TreeCounter treeCounter;
+    private CountFetchScheduler scheduler;
+    private final List<String> startedIds = new ArrayList<>();
+    private final List<PendingFetcher> pendingFetchers = new ArrayList<>();
+
+    /**
+     * 记录开始的加载，由测试手动返回结果的数据源
+     */
+    private class PendingFetcher implements ICountFetcher {
+        final String id;
+        final int count;
+        LoadCountCallback callback;
+        boolean sync;
+
+        PendingFetcher(String id, int count) {
+            this.id = id;
+            this.count = count;
+        }
+
+        @Override
+        public void loadCount(LoadCountCallback callback) {
+            startedIds.add(id);
+            if (sync) {
+                callback.onLoadCount(this, count);
+                return;
+            }
+            this.callback = callback;
+            pendingFetchers.add(this);
+        }
+
+        @Override
+        public void updateCount(int count) {
+        }
+
+        void respond() {
+            pendingFetchers.remove(this);
+            callback.onLoadCount(this, count);
+        }
+    }
+
+    private PendingFetcher fetcherOf(String id) {
+        for (PendingFetcher fetcher : pendingFetchers) {
+            if (fetcher.id.equals(id)) {
+                return fetcher;
+            }
+        }
+        return null;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        treeCounter = new CountTreeBuilder()
+                .addNode(IdTestNodeRoot, null)
+                .addNode(IdTestFolderNode_1, IdTestNodeRoot)
+                .addNode(IdTestLeafNode_1, IdTestFolderNode_1, 0, null, new PendingFetcher(IdTestLeafNode_1, 1))
+                .addNode(IdTestLeafNode_2, IdTestFolderNode_1, 0, null, new PendingFetcher(IdTestLeafNode_2, 2))
+                .addNode(IdTestFolderNode_2, IdTestNodeRoot)
+                .addNode(IdTestLeafNode_3, IdTestFolderNode_2, 0, null, new PendingFetcher(IdTestLeafNode_3, 3))
+                .addNode(IdTestLeafNode_4, IdTestFolderNode_2, 0, null, new PendingFetcher(IdTestLeafNode_4, 4))
+                .build();
+        scheduler = new CountFetchScheduler(2, 1);
+        treeCounter.setFetchScheduler(scheduler);
+    }
+
+    @Test
+    public void visibleSubtree_isLoadedFirst() throws Exception {
+        scheduler.setVisible(IdTestFolderNode_2, true);
+        treeCounter.reload();
+
+        assertEquals(Arrays.asList(IdTestLeafNode_3, IdTestLeafNode_4), startedIds);
+        assertEquals(2, scheduler.getPendingCount());
+
+        fetcherOf(IdTestLeafNode_3).respond();
+        assertEquals(3, treeCounter.getCount(IdTestFolderNode_2));
+        // 仍有可见节点在加载，后台节点只能使用一个并发
+        assertEquals(Arrays.asList(IdTestLeafNode_3, IdTestLeafNode_4, IdTestLeafNode_1), startedIds);
+
+        fetcherOf(IdTestLeafNode_4).respond();
+        assertEquals(3, startedIds.size());
+        fetcherOf(IdTestLeafNode_1).respond();
+        assertEquals(4, startedIds.size());
+        fetcherOf(IdTestLeafNode_2).respond();
+        assertEquals(10, treeCounter.getCount());
+        assertEquals(0, scheduler.getRunningCount());
+        assertEquals(0, scheduler.getPendingCount());
+    }
+
+    @Test
+    public void priorityChange_reordersQueue() throws Exception {
+        treeCounter.reload();
+        assertEquals(Arrays.asList(IdTestLeafNode_1), startedIds);
+
+        scheduler.setPriority(IdTestLeafNode_4, CountFetchScheduler.PRIORITY_HIGH);
+        assertEquals(Arrays.asList(IdTestLeafNode_1, IdTestLeafNode_4), startedIds);
+
+        fetcherOf(IdTestLeafNode_4).respond();
+        fetcherOf(IdTestLeafNode_1).respond();
+        fetcherOf(IdTestLeafNode_2).respond();
+        assertEquals(Arrays.asList(IdTestLeafNode_1, IdTestLeafNode_4, IdTestLeafNode_2, IdTestLeafNode_3),
+                startedIds);
+    }
+
+    @Test
+    public void cancel_dropsQueuedAndLateResults() throws Exception {
+        scheduler.setVisible(IdTestLeafNode_2, true);
+        treeCounter.reload();
+        assertEquals(Arrays.asList(IdTestLeafNode_2, IdTestLeafNode_1), startedIds);
+
+        treeCounter.setFetchScheduler(null);
+        assertEquals(0, scheduler.getPendingCount());
+        fetcherOf(IdTestLeafNode_2).respond();
+        assertEquals(0, treeCounter.getCount());
+        assertEquals(2, startedIds.size());
+    }
+
+    @Test
+    public void syncFetchers_areAllLoaded() throws Exception {
+        treeCounter.setFetchScheduler(new CountFetchScheduler(1, 1));
+        for (CountNode node : treeCounter.generateCountNodeList()) {
+            if (node.isLeaf()) {
+                ((PendingFetcher) node.getCountFetcher()).sync = true;
+            }
+        }
+        treeCounter.reload();
+        assertEquals(Arrays.asList(IdTestLeafNode_1, IdTestLeafNode_2, IdTestLeafNode_3, IdTestLeafNode_4),
+                startedIds);
+        assertEquals(10, treeCounter.getCount());
+    }
+
+    @Test
+    public void duplicateReload_requeuesOnlyStartedNodes() throws Exception {
+        treeCounter.reload();
+        treeCounter.reload();
+        // 排队中的节点不会重复，已经开始加载的节点需要再加载一次
+        assertEquals(4, scheduler.getPendingCount());
+        assertEquals(1, scheduler.getRunningCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void sharedScheduler_throws() throws Exception {
+        new TreeCounter(new CountNode("other")).setFetchScheduler(scheduler);
+    }
+}
@@ -0,0 +1,195 @@
+package com.imasson.lib.treecounter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link CountJournal}的测试，包括崩溃恢复、日志压缩以及损坏记录的处理
+ */
+public class CountJournalUnitTest {
+
+    /*
+     * Test tree graph:
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     ├─ IdTestBypassNode [Bypass]
+     *     │   ├─ IdTestLeafNode_1 [ZeroSelf]
+     *     │   └─ IdTestLeafNode_2 [ZeroSelf]
+     *     └─ IdTestLeafNode_3 [ZeroSelf]
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot      = "testNodeRoot";
+    private static final String IdTestBypassNode    = "testBypassNode";
+    private static final String IdTestLeafNode_1    = "testLeafNode_1";
+    private static final String IdTestLeafNode_2    = "testLeafNode_2";
+    private static final String IdTestLeafNode_3    = "testLeafNode_3";
+
+    private File journalDirectory;
+
+    private static TreeCounter createTreeCounter() {
+        return new TreeCounter(
+                new CountNode(IdTestNodeRoot, new CountNode[] {
+                        new CountNode(IdTestBypassNode, new CountNode[] {
+                                new CountNode(IdTestLeafNode_1, (ICountFetcher) null, TreeCounter.ZeroSelfPolicy),
+                                new CountNode(IdTestLeafNode_2, (ICountFetcher) null, TreeCounter.ZeroSelfPolicy)
+                        }, TreeCounter.BypassPolicy),
+                        new CountNode(IdTestLeafNode_3, (ICountFetcher) null, TreeCounter.ZeroSelfPolicy)
+                }));
+    }
+
+    @Before
+    public void setup() throws Exception {
+        journalDirectory = File.createTempFile("count-journal", "");
+        assertTrue(journalDirectory.delete());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        final File[] files = journalDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        journalDirectory.delete();
+    }
+
+    private void mutate(TreeCounter treeCounter) {
+        treeCounter.applyCount(IdTestLeafNode_1, 3);
+        treeCounter.applyCount(IdTestLeafNode_2, 5);
+        treeCounter.applyCount(IdTestLeafNode_3, 7);
+        treeCounter.touchNode(IdTestBypassNode);
+        treeCounter.touchNode(IdTestLeafNode_3);
+        treeCounter.addCount(IdTestLeafNode_3, 2);
+    }
+
+    private void assertRecovered(TreeCounter treeCounter) {
+        assertEquals(3, treeCounter.getCount(IdTestLeafNode_1));
+        assertEquals(5, treeCounter.getCount(IdTestLeafNode_2));
+        assertEquals(0, treeCounter.getCount(IdTestBypassNode));
+        assertTrue(treeCounter.findNode(IdTestBypassNode).isBypassed());
+        assertEquals(8, treeCounter.findNode(IdTestBypassNode).getCount());
+        assertEquals(2, treeCounter.getCount(IdTestLeafNode_3));
+        assertEquals(2, treeCounter.getCount());
+    }
+
+    @Test
+    public void recoverFromLog_isCorrect() throws Exception {
+        final TreeCounter treeCounter = createTreeCounter();
+        final CountJournal journal = new CountJournal(journalDirectory);
+        journal.setGroupCommit(4, Long.MAX_VALUE);
+        treeCounter.setJournal(journal);
+        mutate(treeCounter);
+        journal.close();
+
+        final TreeCounter recovered = createTreeCounter();
+        final CountJournal recoveredJournal = new CountJournal(journalDirectory);
+        assertTrue(recoveredJournal.recover(recovered) > 0);
+        recoveredJournal.close();
+        assertRecovered(recovered);
+    }
+
+    @Test
+    public void recoverFromSnapshot_isCorrect() throws Exception {
+        final TreeCounter treeCounter = createTreeCounter();
+        final CountJournal journal = new CountJournal(journalDirectory);
+        journal.setGroupCommit(1, 0);
+        journal.setCompactThreshold(3);
+        treeCounter.setJournal(journal);
+        mutate(treeCounter);
+        journal.close();
+
+        assertTrue(new File(journalDirectory, CountJournal.SNAPSHOT_FILE_NAME).isFile());
+        assertTrue(new File(journalDirectory, CountJournal.LOG_FILE_NAME).length() < 64);
+
+        final TreeCounter recovered = createTreeCounter();
+        new CountJournal(journalDirectory).recover(recovered);
+        assertRecovered(recovered);
+    }
+
+    @Test
+    public void recoverWithTornTail_isCorrect() throws Exception {
+        final TreeCounter treeCounter = createTreeCounter();
+        final CountJournal journal = new CountJournal(journalDirectory);
+        treeCounter.setJournal(journal);
+        mutate(treeCounter);
+        journal.close();
+        appendGarbage(new File(journalDirectory, CountJournal.LOG_FILE_NAME));
+
+        final TreeCounter recovered = createTreeCounter();
+        final CountJournal recoveredJournal = new CountJournal(journalDirectory);
+        recoveredJournal.recover(recovered);
+        assertRecovered(recovered);
+
+        // 截掉损坏的记录之后，新追加的记录依然可以被恢复
+        recovered.setJournal(recoveredJournal);
+        recovered.addCount(IdTestLeafNode_3, 1);
+        recoveredJournal.close();
+
+        final TreeCounter recoveredAgain = createTreeCounter();
+        new CountJournal(journalDirectory).recover(recoveredAgain);
+        assertEquals(3, recoveredAgain.getCount());
+    }
+
+    @Test
+    public void recoverAfterReset_isCorrect() throws Exception {
+        final TreeCounter treeCounter = createTreeCounter();
+        final CountJournal journal = new CountJournal(journalDirectory);
+        treeCounter.setJournal(journal);
+        mutate(treeCounter);
+        treeCounter.reset();
+        treeCounter.addCount(IdTestLeafNode_2, 4);
+        journal.close();
+
+        final TreeCounter recovered = createTreeCounter();
+        recovered.applyCount(IdTestLeafNode_1, 9);
+        new CountJournal(journalDirectory).recover(recovered);
+        assertEquals(0, recovered.getCount(IdTestLeafNode_1));
+        assertEquals(4, recovered.getCount(IdTestLeafNode_2));
+        assertFalse(recovered.findNode(IdTestBypassNode).isBypassed());
+        assertEquals(4, recovered.getCount());
+    }
+
+    private static void appendGarbage(File file) throws IOException {
+        final FileOutputStream output = new FileOutputStream(file, true);
+        try {
+            output.write(new byte[] { CountJournal.RECORD_COUNT, 0, 14, 't', 'e', 's', 't' });
+        } finally {
+            output.close();
+        }
+    }
+
+    @Test
+    public void idleJournal_isCommittedAfterInterval() throws Exception {
+        final TreeCounter treeCounter = createTreeCounter();
+        final CountJournal journal = new CountJournal(journalDirectory);
+        journal.setGroupCommit(100, 20);
+        treeCounter.setJournal(journal);
+        treeCounter.applyCount(IdTestLeafNode_1, 3);
+
+        // 之后不再有修改，也没有调用sync()，缓存的记录仍然会在提交间隔之后落盘
+        final File logFile = new File(journalDirectory, CountJournal.LOG_FILE_NAME);
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (logFile.length() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(logFile.length() > 0);
+
+        final TreeCounter recovered = createTreeCounter();
+        final CountJournal recoveredJournal = new CountJournal(journalDirectory);
+        recoveredJournal.recover(recovered);
+        recoveredJournal.close();
+        assertEquals(3, recovered.getCount(IdTestLeafNode_1));
+        journal.close();
+    }
+}
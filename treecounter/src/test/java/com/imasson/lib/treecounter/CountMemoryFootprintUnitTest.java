@@ -0,0 +1,177 @@
+package com.imasson.lib.treecounter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 内存估算、内存预算和内存压缩的测试，参考{@link CountMemoryFootprint}
+ */
+public class CountMemoryFootprintUnitTest {
+
+    /*
+     * Test tree graph:
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     ├─ IdTestParentNode_1
+     *     │   ├─ IdTestLeafNode_1 [Fetcher]
+     *     │   └─ IdTestLeafNode_2
+     *     └─ IdTestParentNode_2
+     *         └─ IdTestLeafNode_3
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot      = "testNodeRoot";
+    private static final String IdTestParentNode_1  = "testParentNode_1";
+    private static final String IdTestParentNode_2  = "testParentNode_2";
+    private static final String IdTestLeafNode_1    = "testLeafNode_1";
+    private static final String IdTestLeafNode_2    = "testLeafNode_2";
+    private static final String IdTestLeafNode_3    = "testLeafNode_3";
+
+    private TreeCounter treeCounter;
+
+    @Before
+    public void setUp() throws Exception {
+        final ICountFetcher fetcher = new ICountFetcher() {
+            @Override
+            public void loadCount(LoadCountCallback callback) {
+            }
+
+            @Override
+            public void updateCount(int count) {
+            }
+        };
+        treeCounter = new CountTreeBuilder()
+                .addNode(IdTestNodeRoot, null)
+                .addNode(IdTestParentNode_1, IdTestNodeRoot)
+                .addNode(IdTestParentNode_2, IdTestNodeRoot)
+                .addNode(IdTestLeafNode_1, IdTestParentNode_1, 0, null, fetcher)
+                .addNode(IdTestLeafNode_2, IdTestParentNode_1)
+                .addNode(IdTestLeafNode_3, IdTestParentNode_2)
+                .build();
+    }
+
+    @Test
+    public void estimateMemoryFootprint_isCorrect() throws Exception {
+        final CountMemoryFootprint footprint = treeCounter.estimateMemoryFootprint();
+        assertEquals(6, footprint.getNodeCount());
+        assertEquals(6 * CountMemoryFootprint.NODE_SIZE, footprint.getNodeBytes());
+        assertEquals(1, footprint.getFetcherCount());
+        assertEquals(footprint.getTotalBytes() + CountMemoryFootprint.MIN_FETCHER_SIZE,
+                footprint.getTotalBytes(true));
+
+        final CountMemoryFootprint subtreeFootprint = treeCounter.estimateMemoryFootprint(IdTestParentNode_1);
+        assertNotNull(subtreeFootprint);
+        assertEquals(3, subtreeFootprint.getNodeCount());
+        assertTrue(subtreeFootprint.getTotalBytes() < footprint.getTotalBytes());
+        assertNull(treeCounter.estimateMemoryFootprint("unknown"));
+
+        // 叶子节点共享空数组，只有3个中间节点有子节点数组
+        final CountMemoryFootprint leafFootprint = treeCounter.estimateMemoryFootprint(IdTestLeafNode_3);
+        assertEquals(0, leafFootprint.getChildArrayBytes());
+        assertTrue(footprint.getChildArrayBytes() > 0);
+
+        treeCounter.subscribe(IdTestLeafNode_3, new TreeCounter.OnNodeUnreadCountChangeListener() {
+            @Override
+            public void onNodeUnreadCountChanged(CountNode node) {
+            }
+        });
+        assertEquals(1, treeCounter.estimateMemoryFootprint().getSubscriptionCount());
+        assertEquals(footprint.getTotalBytes() + CountMemoryFootprint.SUBSCRIPTION_SIZE,
+                treeCounter.estimateMemoryFootprint().getTotalBytes());
+    }
+
+    @Test
+    public void trimMemory_dropsIdleLeaves() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            treeCounter.addNode(IdTestParentNode_1, new CountNode("dynamic_" + i));
+        }
+        treeCounter.addCount("dynamic_3", 2);
+        treeCounter.addCount(IdTestLeafNode_3, 1);
+        final CountNodeHandle idleHandle = treeCounter.resolve("dynamic_5");
+        final long bytesBefore = treeCounter.estimateMemoryFootprint().getTotalBytes();
+
+        assertTrue(treeCounter.trimMemory(false) >= 0);
+        assertEquals(26, treeCounter.estimateMemoryFootprint().getNodeCount());
+
+        final long freedBytes = treeCounter.trimMemory(true);
+        assertTrue(freedBytes > 0);
+        assertEquals(bytesBefore - freedBytes, treeCounter.estimateMemoryFootprint().getTotalBytes());
+        assertNull(treeCounter.findNode("dynamic_5"));
+        assertFalse(idleHandle.isValid());
+        assertNotNull(treeCounter.findNode("dynamic_3"));
+        // 有数据源的节点和父节点唯一的子节点不会被删除
+        assertNotNull(treeCounter.findNode(IdTestLeafNode_1));
+        assertNotNull(treeCounter.findNode(IdTestLeafNode_3));
+        assertNull(treeCounter.findNode(IdTestLeafNode_2));
+        assertEquals(3, treeCounter.getCount());
+        assertEquals(2, treeCounter.getCount(IdTestParentNode_1));
+
+        treeCounter.addCount("dynamic_3", 1);
+        assertEquals(4, treeCounter.getCount());
+    }
+
+    @Test
+    public void trimMemory_keepsLastChild() throws Exception {
+        final CountNode leaf_3 = treeCounter.findNode(IdTestLeafNode_3);
+        treeCounter.trimMemory(true);
+        assertSame(leaf_3, treeCounter.findNode(IdTestLeafNode_3));
+        assertFalse(treeCounter.findNode(IdTestParentNode_2).isLeaf());
+    }
+
+    @Test
+    public void memoryBudget_isChecked() throws Exception {
+        final List<CountMemoryFootprint> exceeded = new ArrayList<>();
+        final long budget = treeCounter.estimateMemoryFootprint().getTotalBytes() + 1;
+        treeCounter.setMemoryBudget(budget, new TreeCounter.OnMemoryBudgetExceededListener() {
+            @Override
+            public void onMemoryBudgetExceeded(TreeCounter counter, CountMemoryFootprint footprint) {
+                exceeded.add(footprint);
+            }
+        });
+        assertTrue(exceeded.isEmpty());
+
+        treeCounter.addNode(IdTestParentNode_2, new CountNode("dynamic"));
+        assertEquals(1, exceeded.size());
+        assertTrue(exceeded.get(0).getTotalBytes() > budget);
+
+        treeCounter.setMemoryBudget(0, null);
+        treeCounter.addNode(IdTestParentNode_2, new CountNode("dynamic_2"));
+        assertEquals(1, exceeded.size());
+        assertNotNull(treeCounter.findNode("dynamic_2"));
+    }
+
+    @Test
+    public void memoryBudgetWithoutListener_dropsGeneratedNodesOnly() throws Exception {
+        treeCounter.addNode(IdTestParentNode_2, new CountNode("dynamic"));
+        treeCounter.enablePathIndex('/', null);
+        treeCounter.addPathCount("path/a", 1);
+        treeCounter.addPathCount("path/b", 1);
+        treeCounter.applyPathCount("path/a", 0);
+        treeCounter.applyPathCount("path/b", 0);
+
+        treeCounter.setMemoryBudget(treeCounter.estimateMemoryFootprint().getTotalBytes() - 1, null);
+        // 使用者添加的空闲节点不会被删除，按路径创建的空闲节点只保留父节点的最后一个子节点
+        assertNotNull(treeCounter.findNode("dynamic"));
+        assertNotNull(treeCounter.findNode(IdTestLeafNode_2));
+        assertNotNull(treeCounter.findNode("path/a"));
+        assertNull(treeCounter.findNode("path/b"));
+    }
+
+    @Test
+    public void pathIndex_isEstimated() throws Exception {
+        assertEquals(0, treeCounter.estimateMemoryFootprint().getPathIndexBytes());
+
+        treeCounter.enablePathIndex('/', null);
+        final CountMemoryFootprint footprint = treeCounter.estimateMemoryFootprint();
+        assertTrue(footprint.getPathIndexBytes() > 0);
+
+        treeCounter.addPathCount("path/a", 1);
+        assertTrue(treeCounter.estimateMemoryFootprint().getPathIndexBytes() > footprint.getPathIndexBytes());
+        assertEquals(0, treeCounter.estimateMemoryFootprint(IdTestNodeRoot).getPathIndexBytes());
+    }
+}
@@ -0,0 +1,113 @@
+package com.imasson.lib.treecounter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link CountNodeHandle}的测试，包括句柄操作和失效检测
+ */
+public class CountNodeHandleUnitTest {
+
+    /*
+     * Test tree graph:
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     ├─ IdTestBypassNode [Bypass]
+     *     │   ├─ IdTestLeafNode_1 [ZeroSelf]
+     *     │   └─ IdTestLeafNode_2 [ZeroSelf]
+     *     └─ IdTestLeafNode_3
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot      = "testNodeRoot";
+    private static final String IdTestBypassNode    = "testBypassNode";
+    private static final String IdTestLeafNode_1    = "testLeafNode_1";
+    private static final String IdTestLeafNode_2    = "testLeafNode_2";
+    private static final String IdTestLeafNode_3    = "testLeafNode_3";
+
+    private TreeCounter treeCounter;
+
+    @Before
+    public void setUp() throws Exception {
+        treeCounter = new CountTreeBuilder()
+                .addNode(IdTestNodeRoot, null)
+                .addNode(IdTestBypassNode, IdTestNodeRoot, 0, TreeCounter.BypassPolicy)
+                .addNode(IdTestLeafNode_1, IdTestBypassNode, 0, TreeCounter.ZeroSelfPolicy)
+                .addNode(IdTestLeafNode_2, IdTestBypassNode, 0, TreeCounter.ZeroSelfPolicy)
+                .addNode(IdTestLeafNode_3, IdTestNodeRoot, 0, null)
+                .build();
+    }
+
+    @Test
+    public void handleOperations_isCorrect() throws Exception {
+        final CountNodeHandle leaf_1 = treeCounter.resolve(IdTestLeafNode_1);
+        final CountNodeHandle bypassNode = treeCounter.resolve(IdTestBypassNode);
+        assertNotNull(leaf_1);
+        assertNotNull(bypassNode);
+        assertNull(treeCounter.resolve("unknown"));
+
+        treeCounter.addCount(leaf_1, 5);
+        treeCounter.reduceCount(leaf_1, 2);
+        assertEquals(3, treeCounter.getCount(leaf_1));
+        assertEquals(3, treeCounter.getCount(bypassNode));
+
+        treeCounter.touchNode(bypassNode);
+        assertEquals(0, treeCounter.getCount(bypassNode));
+        treeCounter.setBypass(bypassNode, false);
+        assertEquals(3, treeCounter.getCount());
+
+        treeCounter.applyCount(leaf_1, 7);
+        treeCounter.applyCount(bypassNode, 100);
+        assertEquals(7, treeCounter.getCount());
+
+        treeCounter.touchNode(leaf_1);
+        assertEquals(0, treeCounter.getCount());
+    }
+
+    @Test
+    public void removedNode_makesHandleStale() throws Exception {
+        final CountNodeHandle bypassNode = treeCounter.resolve(IdTestBypassNode);
+        final CountNodeHandle leaf_2 = treeCounter.resolve(IdTestLeafNode_2);
+        final CountNodeHandle leaf_3 = treeCounter.resolve(IdTestLeafNode_3);
+        treeCounter.addCount(leaf_2, 1);
+
+        final CountNode removedNode = treeCounter.findNode(IdTestBypassNode);
+        treeCounter.removeNode(IdTestBypassNode);
+        assertFalse(bypassNode.isValid());
+        assertFalse(leaf_2.isValid());
+        assertTrue(leaf_3.isValid());
+        assertNull(treeCounter.findNode(IdTestLeafNode_2));
+
+        treeCounter.addCount(leaf_2, 1);
+        assertEquals(0, treeCounter.getCount(leaf_2));
+        assertEquals(1, removedNode.getChildren()[1].getCount());
+
+        // 重新添加之后需要重新解析
+        treeCounter.addNode(IdTestNodeRoot, removedNode);
+        assertFalse(leaf_2.isValid());
+        final CountNodeHandle newLeaf_2 = treeCounter.resolve(IdTestLeafNode_2);
+        treeCounter.addCount(newLeaf_2, 1);
+        assertEquals(2, treeCounter.getCount(newLeaf_2));
+    }
+
+    @Test
+    public void handleOfOtherCounter_isIgnored() throws Exception {
+        final TreeCounter otherCounter = new TreeCounter(new CountNode(IdTestLeafNode_1));
+        final CountNodeHandle otherHandle = otherCounter.resolve(IdTestLeafNode_1);
+
+        treeCounter.addCount(otherHandle, 1);
+        assertEquals(0, treeCounter.getCount());
+    }
+
+    @Test
+    public void internId_isCorrect() throws Exception {
+        final String builtId = new StringBuilder("testLeaf").append("Node_3").toString();
+        assertNotSame(IdTestLeafNode_3, builtId);
+        assertSame(treeCounter.findNode(IdTestLeafNode_3).getId(), treeCounter.internId(builtId));
+
+        final String unknownId = "unknown";
+        assertSame(unknownId, treeCounter.internId(unknownId));
+    }
+}
@@ -0,0 +1,200 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * 路径索引的测试，参考{@link TreeCounter#enablePathIndex(char, TouchNodePolicy)}和{@link CountPathTrie}
+ */
+public class CountPathIndexUnitTest {
+
+    /*
+     * Test tree graph:
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     ├─ IdTestImNode
+     *     │   ├─ IdTestGroupNode
+     *     │   │   └─ IdTestGroupLeafNode
+     *     │   └─ IdTestGroupsLeafNode
+     *     └─ IdTestOtherLeafNode
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot          = "root";
+    private static final String IdTestImNode            = "im";
+    private static final String IdTestGroupNode         = "im/group";
+    private static final String IdTestGroupLeafNode     = "im/group/1";
+    private static final String IdTestGroupsLeafNode    = "im/groups";
+    private static final String IdTestOtherLeafNode     = "other";
+
+    private TreeCounter treeCounter;
+
+    @Before
+    public void setUp() throws Exception {
+        treeCounter = new CountTreeBuilder()
+                .addNode(IdTestNodeRoot, null)
+                .addNode(IdTestImNode, IdTestNodeRoot)
+                .addNode(IdTestGroupNode, IdTestImNode)
+                .addNode(IdTestGroupLeafNode, IdTestGroupNode, 1, null)
+                .addNode(IdTestGroupsLeafNode, IdTestImNode, 2, null)
+                .addNode(IdTestOtherLeafNode, IdTestNodeRoot, 4, null)
+                .build();
+        treeCounter.enablePathIndex('/', TreeCounter.ZeroSelfPolicy);
+    }
+
+    @Test
+    public void prefixQueries_areCorrect() throws Exception {
+        assertEquals(3, treeCounter.getPrefixCount("im"));
+        assertEquals(3, treeCounter.getPrefixCount("im/group"));
+        assertEquals(1, treeCounter.getPrefixCount("im/group/"));
+        assertEquals(7, treeCounter.getPrefixCount(""));
+        assertEquals(0, treeCounter.getPrefixCount("unknown"));
+
+        final List<String> ids = new ArrayList<>();
+        treeCounter.iteratePrefix("im/", new CountNodeHandler() {
+            @Override
+            public boolean handleCountNode(@NonNull CountNode node) {
+                ids.add(node.getId());
+                return false;
+            }
+        });
+        assertEquals(Arrays.asList(IdTestGroupNode, IdTestGroupLeafNode, IdTestGroupsLeafNode), ids);
+
+        ids.clear();
+        assertTrue(treeCounter.iteratePrefix("", new CountNodeHandler() {
+            @Override
+            public boolean handleCountNode(@NonNull CountNode node) {
+                ids.add(node.getId());
+                return ids.size() == 2;
+            }
+        }));
+        assertEquals(Arrays.asList(IdTestImNode, IdTestGroupNode), ids);
+    }
+
+    @Test
+    public void prefixCount_skipsNodesUnderMatchingAncestor() throws Exception {
+        // 直接父节点不匹配前缀，但更上层的父辈节点匹配
+        treeCounter.addNode(IdTestGroupNode, new CountNode("folder"));
+        treeCounter.addNode("folder", new CountNode("im/group/9"));
+        treeCounter.addCount("im/group/9", 5);
+
+        assertEquals(6, treeCounter.getCount(IdTestGroupNode));
+        // “im/group”也匹配“im/groups”
+        assertEquals(8, treeCounter.getPrefixCount("im/group"));
+        assertEquals(8, treeCounter.getPrefixCount("im"));
+        assertEquals(6, treeCounter.getPrefixCount("im/group/"));
+    }
+
+    @Test
+    public void addPathCount_createsIntermediateNodes() throws Exception {
+        treeCounter.addPathCount("im/group/2", 3);
+        treeCounter.addPathCount("im/channel/a/b", 1);
+        treeCounter.addPathCount("im/group/1", 1);
+        treeCounter.addPathCount("im/group/3", 0);
+
+        assertEquals(3, treeCounter.getCount("im/group/2"));
+        assertSame(treeCounter.findNode(IdTestGroupNode), treeCounter.findNode("im/group/2").getParent());
+        assertSame(treeCounter.findNode("im/channel/a"), treeCounter.findNode("im/channel/a/b").getParent());
+        assertSame(treeCounter.findNode(IdTestImNode), treeCounter.findNode("im/channel").getParent());
+        assertNull(treeCounter.findNode("im/group/3"));
+        assertEquals(5, treeCounter.getCount(IdTestGroupNode));
+        assertEquals(12, treeCounter.getCount());
+        assertEquals(1, treeCounter.getPrefixCount("im/channel/"));
+
+        // 自动创建的叶子节点使用指定的碰触策略
+        treeCounter.touchNode("im/group/2");
+        assertEquals(9, treeCounter.getCount());
+
+        treeCounter.addPathCount("new/path", 2);
+        assertSame(treeCounter.getRootNode(), treeCounter.findNode("new").getParent());
+        assertEquals(2, treeCounter.getPrefixCount("new/"));
+    }
+
+    @Test
+    public void invalidPath_isIgnored() throws Exception {
+        treeCounter.addPathCount("other/1", 1);
+        treeCounter.addPathCount("/a", 1);
+        treeCounter.addPathCount("a/", 1);
+        treeCounter.addPathCount("a//b", 1);
+        assertEquals(7, treeCounter.getCount());
+        assertNull(treeCounter.findNode("other/1"));
+
+        final TreeCounter plainCounter = new TreeCounter(new CountNode(IdTestNodeRoot));
+        plainCounter.addPathCount("a/b", 1);
+        assertEquals(0, plainCounter.getCount());
+        assertEquals(0, plainCounter.getPrefixCount("a"));
+    }
+
+    @Test
+    public void removedNodes_leaveIndex() throws Exception {
+        treeCounter.removeNode(IdTestGroupNode);
+        assertEquals(2, treeCounter.getPrefixCount("im/"));
+
+        final List<String> ids = new ArrayList<>();
+        treeCounter.iteratePrefix("im", new CountNodeHandler() {
+            @Override
+            public boolean handleCountNode(@NonNull CountNode node) {
+                ids.add(node.getId());
+                return false;
+            }
+        });
+        assertEquals(Arrays.asList(IdTestImNode, IdTestGroupsLeafNode), ids);
+
+        treeCounter.addNode(IdTestImNode, new CountNode(IdTestGroupNode));
+        treeCounter.addPathCount(IdTestGroupLeafNode, 1);
+        assertEquals(3, treeCounter.getPrefixCount("im/"));
+    }
+
+    @Test
+    public void trie_matchesMap() throws Exception {
+        final CountPathTrie trie = new CountPathTrie();
+        final TreeMap<String, CountNode> expected = new TreeMap<>();
+        final Random random = new Random(7);
+        for (int i = 0; i < 2000; i++) {
+            final String key = "k/" + random.nextInt(20) + "/" + random.nextInt(20);
+            if (random.nextInt(3) == 0) {
+                final CountNode node = expected.remove(key);
+                if (node != null) {
+                    trie.remove(key, node);
+                }
+            } else {
+                final CountNode node = new CountNode(key);
+                expected.put(key, node);
+                trie.put(key, node);
+            }
+        }
+        assertEquals(expected.size(), trie.size());
+        for (Map.Entry<String, CountNode> entry : expected.entrySet()) {
+            assertSame(entry.getValue(), trie.get(entry.getKey()));
+        }
+
+        final List<String> ids = new ArrayList<>();
+        trie.iteratePrefix("k/1", new CountNodeHandler() {
+            @Override
+            public boolean handleCountNode(@NonNull CountNode node) {
+                ids.add(node.getId());
+                return false;
+            }
+        });
+        assertEquals(new ArrayList<>(expected.subMap("k/1", "k/2").keySet()), ids);
+
+        // 边上只引用节点的ID，没有ID片段的副本
+        final CountPathTrie emptyTrie = new CountPathTrie();
+        for (Map.Entry<String, CountNode> entry : expected.entrySet()) {
+            trie.remove(entry.getKey(), entry.getValue());
+        }
+        assertEquals(0, trie.size());
+        assertEquals(emptyTrie.estimateBytes(), trie.estimateBytes());
+    }
+}
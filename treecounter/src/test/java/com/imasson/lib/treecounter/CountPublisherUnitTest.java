@@ -0,0 +1,192 @@
+package com.imasson.lib.treecounter;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * 响应式发布者的测试，包括请求数、合并中间数量和结束订阅，参考{@link CountPublisher}
+ */
+public class CountPublisherUnitTest {
+
+    /*
+     * Test tree graph:
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     ├─ IdTestLeafNode_1
+     *     └─ IdTestLeafNode_2
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot      = "testNodeRoot";
+    private static final String IdTestLeafNode_1    = "testLeafNode_1";
+    private static final String IdTestLeafNode_2    = "testLeafNode_2";
+
+    private TreeCounter treeCounter;
+
+    /**
+     * 记录收到的数量和结束信号的订阅者
+     */
+    private static class RecordingSubscriber implements CountPublisher.Subscriber {
+        final List<Integer> counts = new ArrayList<>();
+        CountPublisher.Subscription subscription;
+        Throwable error;
+        boolean completed;
+
+        @Override
+        public void onSubscribe(@NonNull CountPublisher.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(int displayCount) {
+            counts.add(displayCount);
+        }
+
+        @Override
+        public void onError(@NonNull Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    /**
+     * 手动执行任务的线程
+     */
+    private static class QueueExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        treeCounter = new CountTreeBuilder()
+                .addNode(IdTestNodeRoot, null)
+                .addNode(IdTestLeafNode_1, IdTestNodeRoot, 1, null)
+                .addNode(IdTestLeafNode_2, IdTestNodeRoot)
+                .build();
+    }
+
+    @Test
+    public void demand_isRespected() throws Exception {
+        final CountPublisher publisher = new CountPublisher(treeCounter, IdTestNodeRoot, null);
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        assertTrue(subscriber.counts.isEmpty());
+
+        subscriber.subscription.request(1);
+        assertEquals(Arrays.asList(1), subscriber.counts);
+
+        // 没有请求数时中间的数量被合并
+        for (int i = 0; i < 100; i++) {
+            treeCounter.addCount(IdTestLeafNode_2, 1);
+        }
+        assertEquals(1, subscriber.counts.size());
+        subscriber.subscription.request(2);
+        assertEquals(Arrays.asList(1, 101), subscriber.counts);
+
+        treeCounter.addCount(IdTestLeafNode_1, 1);
+        treeCounter.addCount(IdTestLeafNode_1, 1);
+        assertEquals(Arrays.asList(1, 101, 102), subscriber.counts);
+    }
+
+    @Test
+    public void unboundedDemand_receivesEveryChange() throws Exception {
+        final CountPublisher publisher = new CountPublisher(treeCounter, IdTestNodeRoot, null);
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        treeCounter.addCount(IdTestLeafNode_2, 1);
+        treeCounter.reduceCount(IdTestLeafNode_2, 1);
+        treeCounter.addCount(IdTestLeafNode_2, 1);
+        treeCounter.reduceCount(IdTestLeafNode_1, 1);
+        assertEquals(Arrays.asList(1, 2, 1, 2, 1), subscriber.counts);
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        treeCounter.addCount(IdTestLeafNode_2, 1);
+        assertEquals(6, subscriber.counts.size());
+        assertEquals(2, publisher.getLatestCount());
+    }
+
+    @Test
+    public void executor_conflatesUpdates() throws Exception {
+        final QueueExecutor executor = new QueueExecutor();
+        final CountPublisher publisher = new CountPublisher(treeCounter, IdTestNodeRoot, executor);
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        for (int i = 0; i < 1000; i++) {
+            treeCounter.addCount(IdTestLeafNode_2, 1);
+        }
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+        assertEquals(Arrays.asList(1001), subscriber.counts);
+    }
+
+    @Test
+    public void cancelAndClose_areCorrect() throws Exception {
+        final CountPublisher publisher = new CountPublisher(treeCounter, IdTestLeafNode_1, null);
+        final RecordingSubscriber cancelled = new RecordingSubscriber();
+        final RecordingSubscriber completed = new RecordingSubscriber();
+        publisher.subscribe(cancelled);
+        publisher.subscribe(completed);
+        cancelled.subscription.request(10);
+        completed.subscription.request(10);
+        assertEquals(2, publisher.getSubscriberCount());
+
+        cancelled.subscription.cancel();
+        treeCounter.addCount(IdTestLeafNode_1, 1);
+        assertEquals(Arrays.asList(1), cancelled.counts);
+        assertEquals(Arrays.asList(1, 2), completed.counts);
+
+        publisher.close();
+        assertTrue(completed.completed);
+        assertFalse(cancelled.completed);
+        treeCounter.addCount(IdTestLeafNode_1, 1);
+        assertEquals(2, completed.counts.size());
+
+        final RecordingSubscriber late = new RecordingSubscriber();
+        publisher.subscribe(late);
+        assertNotNull(late.subscription);
+        assertTrue(late.completed);
+    }
+
+    @Test
+    public void invalidRequest_signalsError() throws Exception {
+        final CountPublisher publisher = new CountPublisher(treeCounter, IdTestNodeRoot, null);
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownNode_throws() throws Exception {
+        new CountPublisher(treeCounter, "unknown", null);
+    }
+}
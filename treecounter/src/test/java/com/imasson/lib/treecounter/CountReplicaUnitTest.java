@@ -0,0 +1,165 @@
+package com.imasson.lib.treecounter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link CountReplica}和{@link PNCounter}的测试，模拟两台设备之间的同步
+ */
+public class CountReplicaUnitTest {
+
+    /*
+     * Test tree graph:
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     ├─ IdTestParentNode
+     *     │   ├─ IdTestLeafNode_1 [ZeroSelf] (2)
+     *     │   └─ IdTestLeafNode_2 [ZeroSelf] (3)
+     *     └─ IdTestLeafNode_3 [ZeroSelf]
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot      = "testNodeRoot";
+    private static final String IdTestParentNode    = "testParentNode";
+    private static final String IdTestLeafNode_1    = "testLeafNode_1";
+    private static final String IdTestLeafNode_2    = "testLeafNode_2";
+    private static final String IdTestLeafNode_3    = "testLeafNode_3";
+
+    /** 两台设备共用的服务端数量，由IdTestLeafNode_3的数据源加载 */
+    private int serverCount;
+    private TreeCounter phoneCounter;
+    private TreeCounter tabletCounter;
+    private CountReplica phoneReplica;
+    private CountReplica tabletReplica;
+
+    private TreeCounter createTreeCounter() {
+        final ICountFetcher serverFetcher = new ICountFetcher() {
+            @Override
+            public void loadCount(LoadCountCallback callback) {
+                callback.onLoadCount(this, serverCount);
+            }
+
+            @Override
+            public void updateCount(int count) {
+            }
+        };
+        return new CountTreeBuilder()
+                .addNode(IdTestNodeRoot, null)
+                .addNode(IdTestParentNode, IdTestNodeRoot)
+                .addNode(IdTestLeafNode_1, IdTestParentNode, 2, TreeCounter.ZeroSelfPolicy)
+                .addNode(IdTestLeafNode_2, IdTestParentNode, 3, TreeCounter.ZeroSelfPolicy)
+                .addNode(IdTestLeafNode_3, IdTestNodeRoot, 0, TreeCounter.ZeroSelfPolicy, serverFetcher)
+                .build();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        phoneCounter = createTreeCounter();
+        tabletCounter = createTreeCounter();
+        phoneReplica = new CountReplica(phoneCounter, "phone");
+        tabletReplica = new CountReplica(tabletCounter, "tablet");
+    }
+
+    private static Map<String, PNCounter> transfer(Map<String, PNCounter> states) throws Exception {
+        final ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        CountReplica.writeStates(new DataOutputStream(packet), states);
+        return CountReplica.readStates(new DataInputStream(new ByteArrayInputStream(packet.toByteArray())));
+    }
+
+    private void sync() throws Exception {
+        final Map<String, PNCounter> phoneDelta = transfer(phoneReplica.drainDelta());
+        final Map<String, PNCounter> tabletDelta = transfer(tabletReplica.drainDelta());
+        tabletReplica.merge(phoneDelta);
+        phoneReplica.merge(tabletDelta);
+    }
+
+    @Test
+    public void mergeConverges_isCorrect() throws Exception {
+        phoneCounter.addCount(IdTestLeafNode_1, 5);
+        tabletCounter.addCount(IdTestLeafNode_1, 1);
+        tabletCounter.touchNode(IdTestLeafNode_2);
+        tabletCounter.addCount(IdTestLeafNode_3, 4);
+        sync();
+
+        for (TreeCounter counter : new TreeCounter[] {phoneCounter, tabletCounter}) {
+            assertEquals(8, counter.getCount(IdTestLeafNode_1));
+            assertEquals(0, counter.getCount(IdTestLeafNode_2));
+            assertEquals(8, counter.getCount(IdTestParentNode));
+            assertEquals(12, counter.getCount());
+        }
+
+        // 合并之后没有新的本地变化
+        assertTrue(phoneReplica.drainDelta().isEmpty());
+        assertTrue(tabletReplica.drainDelta().isEmpty());
+    }
+
+    @Test
+    public void mergeIsIdempotent() throws Exception {
+        phoneCounter.addCount(IdTestLeafNode_3, 3);
+        final Map<String, PNCounter> delta = transfer(phoneReplica.drainDelta());
+
+        final int[] notifyCount = {0};
+        tabletCounter.setListener(new TreeCounter.OnNodeUnreadCountChangeListener() {
+            @Override
+            public void onNodeUnreadCountChanged(CountNode node) {
+                notifyCount[0]++;
+            }
+        });
+        tabletReplica.merge(delta);
+        assertEquals(8, tabletCounter.getCount());
+        // 只有受影响的路径被通知：叶子节点和根节点
+        assertEquals(2, notifyCount[0]);
+
+        tabletReplica.merge(delta);
+        tabletReplica.merge(phoneReplica.getState());
+        assertEquals(8, tabletCounter.getCount());
+        assertEquals(2, notifyCount[0]);
+    }
+
+    @Test
+    public void concurrentClearAndIncrement_keepsIncrement() throws Exception {
+        // 手机上清零的同时，平板收到了新的消息
+        phoneCounter.touchNode(IdTestLeafNode_1);
+        tabletCounter.addCount(IdTestLeafNode_1, 1);
+        sync();
+
+        assertEquals(1, phoneCounter.getCount(IdTestLeafNode_1));
+        assertEquals(1, tabletCounter.getCount(IdTestLeafNode_1));
+
+        // 重置也会被同步
+        phoneCounter.reset();
+        sync();
+        assertEquals(0, tabletCounter.getCount());
+    }
+
+    @Test
+    public void reloadSameServerCount_isNotDoubleCounted() throws Exception {
+        serverCount = 7;
+        phoneCounter.reload();
+        tabletCounter.reload();
+        // 加载的数量只替换基准值，不作为本地的修改
+        assertTrue(phoneReplica.drainDelta().isEmpty());
+        assertTrue(tabletReplica.drainDelta().isEmpty());
+
+        phoneCounter.addCount(IdTestLeafNode_3, 1);
+        tabletCounter.addCount(IdTestLeafNode_3, 2);
+        sync();
+        assertEquals(10, phoneCounter.getCount(IdTestLeafNode_3));
+        assertEquals(10, tabletCounter.getCount(IdTestLeafNode_3));
+
+        // 服务端已经包含了两台设备的修改，重新加载后以服务端的数量为准
+        serverCount = 10;
+        phoneCounter.reload();
+        assertTrue(phoneReplica.drainDelta().isEmpty());
+        assertEquals(10, phoneCounter.getCount(IdTestLeafNode_3));
+        assertEquals(15, phoneCounter.getCount());
+    }
+}
@@ -0,0 +1,163 @@
+package com.imasson.lib.treecounter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 节点和子树订阅的测试，参考{@link CountSubscription}
+ */
+public class CountSubscriptionUnitTest {
+
+    /*
+     * Test tree graph:
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     ├─ IdTestParentNode
+     *     │   ├─ IdTestLeafNode_1
+     *     │   └─ IdTestLeafNode_2
+     *     └─ IdTestLeafNode_3
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot      = "testNodeRoot";
+    private static final String IdTestParentNode    = "testParentNode";
+    private static final String IdTestLeafNode_1    = "testLeafNode_1";
+    private static final String IdTestLeafNode_2    = "testLeafNode_2";
+    private static final String IdTestLeafNode_3    = "testLeafNode_3";
+
+    private TreeCounter treeCounter;
+
+    /**
+     * 记录回调的节点ID的监听器
+     */
+    private static class RecordingListener implements TreeCounter.OnNodeUnreadCountChangeListener {
+        final List<String> changedIds = new ArrayList<>();
+
+        @Override
+        public void onNodeUnreadCountChanged(CountNode node) {
+            changedIds.add(node.getId());
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        treeCounter = new CountTreeBuilder()
+                .addNode(IdTestNodeRoot, null)
+                .addNode(IdTestParentNode, IdTestNodeRoot)
+                .addNode(IdTestLeafNode_1, IdTestParentNode)
+                .addNode(IdTestLeafNode_2, IdTestParentNode)
+                .addNode(IdTestLeafNode_3, IdTestNodeRoot)
+                .build();
+    }
+
+    @Test
+    public void nodeSubscription_onlyReceivesOwnNode() throws Exception {
+        final RecordingListener leafListener = new RecordingListener();
+        final RecordingListener parentListener = new RecordingListener();
+        final RecordingListener otherListener = new RecordingListener();
+        treeCounter.subscribe(IdTestLeafNode_1, leafListener);
+        treeCounter.subscribe(IdTestParentNode, parentListener);
+        treeCounter.subscribe(IdTestLeafNode_3, otherListener);
+
+        treeCounter.addCount(IdTestLeafNode_1, 2);
+        treeCounter.addCount(IdTestLeafNode_2, 1);
+
+        assertEquals(Collections.singletonList(IdTestLeafNode_1), leafListener.changedIds);
+        assertEquals(Arrays.asList(IdTestParentNode, IdTestParentNode), parentListener.changedIds);
+        assertTrue(otherListener.changedIds.isEmpty());
+        assertNull(treeCounter.subscribe("unknown", otherListener));
+    }
+
+    @Test
+    public void subtreeSubscription_receivesChangedPath() throws Exception {
+        final RecordingListener subtreeListener = new RecordingListener();
+        treeCounter.subscribeSubtree(IdTestParentNode, subtreeListener);
+
+        treeCounter.addCount(IdTestLeafNode_2, 1);
+        treeCounter.addCount(IdTestLeafNode_3, 1);
+
+        assertEquals(Arrays.asList(IdTestLeafNode_2, IdTestParentNode), subtreeListener.changedIds);
+    }
+
+    @Test
+    public void unsubscribe_isCorrect() throws Exception {
+        final RecordingListener listener_1 = new RecordingListener();
+        final RecordingListener listener_2 = new RecordingListener();
+        final RecordingListener listener_3 = new RecordingListener();
+        final CountSubscription subscription_1 = treeCounter.subscribe(IdTestNodeRoot, listener_1);
+        final CountSubscription subscription_2 = treeCounter.subscribeSubtree(IdTestNodeRoot, listener_2);
+        treeCounter.subscribe(IdTestNodeRoot, listener_3);
+
+        subscription_2.unsubscribe();
+        subscription_2.unsubscribe();
+        assertFalse(subscription_2.isActive());
+        treeCounter.addCount(IdTestLeafNode_3, 1);
+        assertEquals(1, listener_1.changedIds.size());
+        assertTrue(listener_2.changedIds.isEmpty());
+        assertEquals(1, listener_3.changedIds.size());
+
+        // 在回调中取消订阅
+        treeCounter.subscribe(IdTestNodeRoot, new TreeCounter.OnNodeUnreadCountChangeListener() {
+            @Override
+            public void onNodeUnreadCountChanged(CountNode node) {
+                subscription_1.unsubscribe();
+            }
+        });
+        treeCounter.addCount(IdTestLeafNode_3, 1);
+        treeCounter.addCount(IdTestLeafNode_3, 1);
+        assertEquals(1, listener_1.changedIds.size());
+        assertEquals(3, listener_3.changedIds.size());
+    }
+
+    @Test
+    public void subscriptionsCoexistWithListener() throws Exception {
+        final RecordingListener listener = new RecordingListener();
+        final RecordingListener subscriber = new RecordingListener();
+        treeCounter.setListener(listener);
+        treeCounter.subscribe(IdTestLeafNode_1, subscriber);
+
+        treeCounter.beginBatchUpdate();
+        treeCounter.addCount(IdTestLeafNode_1, 1);
+        treeCounter.addCount(IdTestLeafNode_1, 1);
+        treeCounter.endBatchUpdate();
+
+        assertEquals(3, listener.changedIds.size());
+        assertEquals(Collections.singletonList(IdTestLeafNode_1), subscriber.changedIds);
+
+        treeCounter.reset();
+        assertEquals(2, subscriber.changedIds.size());
+    }
+
+    @Test
+    public void thresholdSubscription_onlyReceivesCrossings() throws Exception {
+        final RecordingListener dotListener = new RecordingListener();
+        final RecordingListener numberListener = new RecordingListener();
+        final RecordingListener plainListener = new RecordingListener();
+        treeCounter.subscribe(IdTestNodeRoot, dotListener, CountSubscription.DOT_THRESHOLDS);
+        treeCounter.subscribe(IdTestNodeRoot, numberListener, CountSubscription.NUMBER_THRESHOLDS);
+        treeCounter.subscribe(IdTestNodeRoot, plainListener);
+
+        for (int i = 0; i < 1000; i++) {
+            treeCounter.addCount(i % 2 == 0 ? IdTestLeafNode_1 : IdTestLeafNode_3, 1);
+        }
+        assertEquals(1000, plainListener.changedIds.size());
+        assertEquals(1, dotListener.changedIds.size());
+        assertEquals(100, numberListener.changedIds.size());
+
+        treeCounter.clearSubtree(IdTestNodeRoot);
+        assertEquals(2, dotListener.changedIds.size());
+        assertEquals(101, numberListener.changedIds.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unorderedThresholds_throws() throws Exception {
+        treeCounter.subscribe(IdTestNodeRoot, new RecordingListener(), new int[] {10, 1});
+    }
+}
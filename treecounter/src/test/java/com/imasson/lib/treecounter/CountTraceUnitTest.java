@@ -0,0 +1,128 @@
+package com.imasson.lib.treecounter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * 轨迹录制和回放的测试，参考{@link CountTrace}、{@link CountTraceReplayer}和{@link CountWorkloadGenerator}
+ */
+public class CountTraceUnitTest {
+
+    /*
+     * Test tree graph:
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     ├─ IdTestBypassNode [Bypass]
+     *     │   ├─ IdTestLeafNode_1 [ZeroSelf]
+     *     │   └─ IdTestLeafNode_2 [ZeroSelf]
+     *     └─ IdTestLeafNode_3
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot      = "testNodeRoot";
+    private static final String IdTestBypassNode    = "testBypassNode";
+    private static final String IdTestLeafNode_1    = "testLeafNode_1";
+    private static final String IdTestLeafNode_2    = "testLeafNode_2";
+    private static final String IdTestLeafNode_3    = "testLeafNode_3";
+
+    private TreeCounter treeCounter;
+
+    @Before
+    public void setUp() throws Exception {
+        treeCounter = new CountTreeBuilder()
+                .addNode(IdTestNodeRoot, null)
+                .addNode(IdTestBypassNode, IdTestNodeRoot, 0, TreeCounter.BypassPolicy)
+                .addNode(IdTestLeafNode_1, IdTestBypassNode, 2, TreeCounter.ZeroSelfPolicy)
+                .addNode(IdTestLeafNode_2, IdTestBypassNode, 0, TreeCounter.ZeroSelfPolicy)
+                .addNode(IdTestLeafNode_3, IdTestNodeRoot, 0, null)
+                .build();
+    }
+
+    @Test
+    public void recordedTrace_replaysSameCounts() throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final CountTrace.Writer writer = new CountTrace.Writer(output);
+        treeCounter.setTraceWriter(writer);
+
+        treeCounter.addCount(IdTestLeafNode_1, 3);
+        treeCounter.beginBatchUpdate();
+        treeCounter.addCount(IdTestLeafNode_2, 4);
+        treeCounter.reduceCount(IdTestLeafNode_1, 1);
+        treeCounter.endBatchUpdate();
+        treeCounter.touchNode(IdTestBypassNode);
+        treeCounter.applyCount(IdTestLeafNode_3, 7);
+        treeCounter.addCount(IdTestLeafNode_2, 1);
+        treeCounter.touchNode(IdTestLeafNode_2);
+        treeCounter.addNode(IdTestNodeRoot, new CountNode("newLeaf"));
+        treeCounter.addCount("newLeaf", 5);
+        treeCounter.removeNode(IdTestLeafNode_3);
+        treeCounter.setTraceWriter(null);
+        treeCounter.addCount(IdTestLeafNode_1, 100);
+        writer.close();
+        assertNull(writer.getError());
+
+        final CountTraceReplayer replayer = new CountTraceReplayer(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(5, replayer.getNodeCount());
+        assertEquals(writer.getOpCount() - 5, replayer.getOpCount());
+
+        final CountTraceReplayer.Result result = replayer.run();
+        assertEquals(replayer.getOpCount(), result.opCount);
+        final TreeCounter replayed = replayer.getLastTreeCounter();
+        assertNotNull(replayed);
+        assertEquals(4, replayed.getCount(IdTestLeafNode_1));
+        assertEquals(0, replayed.getCount(IdTestLeafNode_2));
+        assertEquals(5, replayed.getCount("newLeaf"));
+        assertNull(replayed.findNode(IdTestLeafNode_3));
+        assertEquals(treeCounter.findNode(IdTestBypassNode).isBypassed(), replayed.findNode(IdTestBypassNode).isBypassed());
+        assertEquals(treeCounter.getCount(IdTestBypassNode) - 100, replayed.getCount(IdTestBypassNode));
+    }
+
+    @Test
+    public void generatedWorkload_isReplayable() throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final CountTrace.Writer writer = new CountTrace.Writer(output);
+        new CountWorkloadGenerator(42).setNodeCount(200).generate(writer, 5000);
+        writer.close();
+
+        final ByteArrayOutputStream sameOutput = new ByteArrayOutputStream();
+        final CountTrace.Writer sameWriter = new CountTrace.Writer(sameOutput);
+        new CountWorkloadGenerator(42).setNodeCount(200).generate(sameWriter, 5000);
+        sameWriter.close();
+        assertTrue(Arrays.equals(output.toByteArray(), sameOutput.toByteArray()));
+
+        final CountTraceReplayer replayer = new CountTraceReplayer(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(200, replayer.getNodeCount());
+        assertEquals(5000, replayer.getOpCount());
+
+        replayer.run();
+        final CountTraceReplayer.Result result = replayer.run();
+        assertEquals(5000, result.opCount);
+        assertTrue(result.p50Nanos <= result.p99Nanos);
+        assertTrue(result.p99Nanos <= result.maxNanos);
+        assertTrue(replayer.getLastTreeCounter().getCount() > 0);
+    }
+
+    @Test
+    public void truncatedTrace_dropsLastOp() throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final CountTrace.Writer writer = new CountTrace.Writer(output);
+        writer.writeTree(treeCounter);
+        writer.write(CountTrace.OP_ADD_COUNT, IdTestLeafNode_3, 1);
+        writer.write(CountTrace.OP_ADD_COUNT, IdTestLeafNode_3, 1);
+        writer.close();
+
+        final byte[] bytes = output.toByteArray();
+        final byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        final CountTraceReplayer replayer = new CountTraceReplayer(new ByteArrayInputStream(truncated));
+        assertEquals(1, replayer.getOpCount());
+        replayer.run();
+        assertEquals(3, replayer.getLastTreeCounter().getCount());
+    }
+}
@@ -0,0 +1,97 @@
+package com.imasson.lib.treecounter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link CountTreeBuilder}的测试，包括结构、数量汇总以及大规模节点行的构建
+ */
+public class CountTreeBuilderUnitTest {
+
+    /*
+     * Test tree graph (rows are deliberately out of order):
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     ├─ IdTestParentNode [Bypass]
+     *     │   ├─ IdTestLeafNode_1 (3)
+     *     │   └─ IdTestLeafNode_2 (5)
+     *     └─ IdTestLeafNode_3 (4)
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot      = "testNodeRoot";
+    private static final String IdTestParentNode    = "testParentNode";
+    private static final String IdTestLeafNode_1    = "testLeafNode_1";
+    private static final String IdTestLeafNode_2    = "testLeafNode_2";
+    private static final String IdTestLeafNode_3    = "testLeafNode_3";
+
+    @Test
+    public void buildFromRows_isCorrect() throws Exception {
+        final TreeCounter treeCounter = new CountTreeBuilder()
+                .addNode(IdTestLeafNode_1, IdTestParentNode, 3, TreeCounter.ZeroSelfPolicy)
+                .addNode(IdTestNodeRoot, null)
+                .addNode(IdTestLeafNode_2, IdTestParentNode, 5, TreeCounter.ZeroSelfPolicy)
+                .addNode(IdTestParentNode, IdTestNodeRoot, 100, TreeCounter.BypassPolicy)
+                .addNode(IdTestLeafNode_3, IdTestNodeRoot, 4, null)
+                .build();
+
+        assertEquals(IdTestNodeRoot, treeCounter.getRootNode().getId());
+        final CountNode[] rootChildren = treeCounter.getRootNode().getChildren();
+        assertEquals(2, rootChildren.length);
+        assertEquals(IdTestParentNode, rootChildren[0].getId());
+        assertEquals(IdTestLeafNode_3, rootChildren[1].getId());
+        assertSame(treeCounter.getRootNode(), treeCounter.findNode(IdTestParentNode).getParent());
+
+        assertEquals(8, treeCounter.getCount(IdTestParentNode));
+        assertEquals(12, treeCounter.getCount());
+
+        treeCounter.touchNode(IdTestLeafNode_1);
+        assertEquals(5, treeCounter.getCount(IdTestParentNode));
+        assertEquals(9, treeCounter.getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void buildWithMissingParent_throws() throws Exception {
+        new CountTreeBuilder()
+                .addNode(IdTestNodeRoot, null)
+                .addNode(IdTestLeafNode_1, IdTestParentNode)
+                .build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void buildWithCycle_throws() throws Exception {
+        new CountTreeBuilder()
+                .addNode(IdTestNodeRoot, null)
+                .addNode(IdTestLeafNode_1, IdTestLeafNode_2)
+                .addNode(IdTestLeafNode_2, IdTestLeafNode_1)
+                .build();
+    }
+
+    /**
+     * 测试100k个节点行的构建，每个分支节点带有100个叶子节点
+     */
+    @Test
+    public void buildLargeTree_isCorrect() throws Exception {
+        final int branchCount = 1000;
+        final int leafPerBranch = 100;
+        final CountTreeBuilder builder = new CountTreeBuilder(branchCount * (leafPerBranch + 1) + 1);
+        builder.addNode(IdTestNodeRoot, null);
+        for (int i = 0; i < branchCount; i++) {
+            final String branchId = "branch_" + i;
+            builder.addNode(branchId, IdTestNodeRoot);
+            for (int j = 0; j < leafPerBranch; j++) {
+                builder.addNode(branchId + "_" + j, branchId, 1, null);
+            }
+        }
+        final TreeCounter treeCounter = builder.build();
+
+        assertEquals(branchCount * leafPerBranch, treeCounter.getCount());
+        assertEquals(leafPerBranch, treeCounter.getCount("branch_7"));
+        assertEquals(1, treeCounter.getCount("branch_7_99"));
+
+        treeCounter.addCount("branch_7_99", 2);
+        assertEquals(leafPerBranch + 2, treeCounter.getCount("branch_7"));
+        assertEquals(branchCount * leafPerBranch + 2, treeCounter.getCount());
+    }
+}
@@ -0,0 +1,108 @@
+package com.imasson.lib.treecounter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 子树哈希和{@link CountTreeDigest}的测试
+ */
+public class CountTreeDigestUnitTest {
+
+    /*
+     * Test tree graph (each branch has 100 leaves):
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     ├─ branch_0
+     *     │   ├─ branch_0_0
+     *     │   ├─ ...
+     *     │   └─ branch_0_99
+     *     ├─ ...
+     *     └─ branch_99 [Bypass]
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot = "testNodeRoot";
+    private static final int BRANCH_COUNT = 100;
+    private static final int LEAF_PER_BRANCH = 100;
+
+    private TreeCounter localCounter;
+    private TreeCounter remoteCounter;
+    private int remoteHashCount;
+    private CountTreeDigest.DigestProvider remoteProvider;
+
+    private static TreeCounter createTreeCounter() {
+        final CountTreeBuilder builder = new CountTreeBuilder();
+        builder.addNode(IdTestNodeRoot, null);
+        for (int i = 0; i < BRANCH_COUNT; i++) {
+            final String branchId = "branch_" + i;
+            builder.addNode(branchId, IdTestNodeRoot, 0,
+                    i == BRANCH_COUNT - 1 ? TreeCounter.BypassPolicy : null);
+            for (int j = 0; j < LEAF_PER_BRANCH; j++) {
+                builder.addNode(branchId + "_" + j, branchId, (i + j) % 3, null);
+            }
+        }
+        return builder.build();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        localCounter = createTreeCounter();
+        remoteCounter = createTreeCounter();
+        remoteHashCount = 0;
+        final CountTreeDigest.DigestProvider provider = CountTreeDigest.of(remoteCounter);
+        remoteProvider = new CountTreeDigest.DigestProvider() {
+            @Override
+            public long getSubtreeHash(String id) {
+                remoteHashCount++;
+                return provider.getSubtreeHash(id);
+            }
+        };
+    }
+
+    @Test
+    public void identicalTrees_haveNoDiff() throws Exception {
+        assertEquals(localCounter.getSubtreeHash(), remoteCounter.getSubtreeHash());
+        assertEquals(Collections.<String>emptyList(), CountTreeDigest.diff(localCounter, remoteProvider));
+        assertEquals(1, remoteHashCount);
+    }
+
+    @Test
+    public void changedLeaves_areFound() throws Exception {
+        localCounter.addCount("branch_3_7", 1);
+        localCounter.addCount("branch_42_0", 5);
+
+        final List<String> diff = CountTreeDigest.diff(localCounter, remoteProvider);
+        assertEquals(Arrays.asList("branch_3_7", "branch_42_0"), diff);
+        // 根节点、所有分支节点以及两个分支下的叶子节点
+        assertEquals(1 + BRANCH_COUNT + 2 * LEAF_PER_BRANCH, remoteHashCount);
+
+        remoteCounter.addCount("branch_3_7", 1);
+        remoteCounter.addCount("branch_42_0", 5);
+        assertEquals(localCounter.getSubtreeHash(), remoteCounter.getSubtreeHash());
+    }
+
+    @Test
+    public void bypassAndReset_changeHash() throws Exception {
+        final long hash = localCounter.getSubtreeHash();
+        final long branchHash = localCounter.getSubtreeHash("branch_0");
+
+        localCounter.touchNode("branch_99");
+        assertNotEquals(hash, localCounter.getSubtreeHash());
+        assertEquals(branchHash, localCounter.getSubtreeHash("branch_0"));
+        assertEquals(Collections.singletonList("branch_99"), CountTreeDigest.diff(localCounter, remoteProvider));
+
+        localCounter.reset();
+        remoteCounter.reset();
+        assertEquals(localCounter.getSubtreeHash(), remoteCounter.getSubtreeHash());
+        assertNotEquals(hash, localCounter.getSubtreeHash());
+
+        localCounter.addCount("branch_1_1", 1);
+        assertEquals(Collections.singletonList("branch_1_1"), CountTreeDigest.diff(localCounter, remoteProvider));
+    }
+}
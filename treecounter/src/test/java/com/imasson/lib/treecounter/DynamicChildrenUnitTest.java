@@ -0,0 +1,155 @@
+package com.imasson.lib.treecounter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 动态子节点模式的测试，参考{@link TreeCounter#enableDynamicChildren(String, TouchNodePolicy)}
+ */
+public class DynamicChildrenUnitTest {
+
+    /*
+     * Test tree graph:
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     ├─ IdTestDynamicNode [Dynamic, children ZeroSelf]
+     *     │   └─ IdTestLeafNode_1
+     *     └─ IdTestLeafNode_2
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot      = "testNodeRoot";
+    private static final String IdTestDynamicNode   = "testDynamicNode";
+    private static final String IdTestLeafNode_1    = "testLeafNode_1";
+    private static final String IdTestLeafNode_2    = "testLeafNode_2";
+
+    private TreeCounter treeCounter;
+
+    @Before
+    public void setUp() throws Exception {
+        treeCounter = new CountTreeBuilder()
+                .addNode(IdTestNodeRoot, null)
+                .addNode(IdTestDynamicNode, IdTestNodeRoot)
+                .addNode(IdTestLeafNode_1, IdTestDynamicNode, 1, null)
+                .addNode(IdTestLeafNode_2, IdTestNodeRoot)
+                .build();
+        treeCounter.enableDynamicChildren(IdTestDynamicNode, TreeCounter.ZeroSelfPolicy);
+    }
+
+    @Test
+    public void dynamicChildren_materializeAndCollapse() throws Exception {
+        treeCounter.addChildCount(IdTestDynamicNode, "conversation_1", 3);
+        treeCounter.addChildCount(IdTestDynamicNode, "conversation_2", 2);
+        treeCounter.reduceChildCount(IdTestDynamicNode, "conversation_3", 1);
+        assertNotNull(treeCounter.findNode("conversation_1"));
+        assertNull(treeCounter.findNode("conversation_3"));
+        assertEquals(6, treeCounter.getCount());
+        assertEquals(3, treeCounter.findNode(IdTestDynamicNode).getChildren().length);
+
+        treeCounter.reduceChildCount(IdTestDynamicNode, "conversation_1", 3);
+        assertNull(treeCounter.findNode("conversation_1"));
+        assertEquals(3, treeCounter.getCount());
+
+        treeCounter.touchNode("conversation_2");
+        assertNull(treeCounter.findNode("conversation_2"));
+        treeCounter.applyChildCount(IdTestDynamicNode, "conversation_1", 0);
+        assertNull(treeCounter.findNode("conversation_1"));
+        treeCounter.applyChildCount(IdTestDynamicNode, "conversation_1", 4);
+        assertEquals(5, treeCounter.getCount(IdTestDynamicNode));
+        assertEquals(2, treeCounter.findNode(IdTestDynamicNode).getChildren().length);
+    }
+
+    @Test
+    public void dynamicChildren_collapseAfterBatch() throws Exception {
+        final List<String> changedIds = new ArrayList<>();
+        treeCounter.setListener(new TreeCounter.OnNodeUnreadCountChangeListener() {
+            @Override
+            public void onNodeUnreadCountChanged(CountNode node) {
+                changedIds.add(node.getId());
+            }
+        });
+
+        treeCounter.beginBatchUpdate();
+        treeCounter.addChildCount(IdTestDynamicNode, "conversation_1", 1);
+        treeCounter.reduceChildCount(IdTestDynamicNode, "conversation_1", 1);
+        treeCounter.addChildCount(IdTestDynamicNode, "conversation_2", 1);
+        assertNotNull(treeCounter.findNode("conversation_1"));
+        treeCounter.endBatchUpdate();
+
+        assertNull(treeCounter.findNode("conversation_1"));
+        assertNotNull(treeCounter.findNode("conversation_2"));
+        assertTrue(changedIds.contains("conversation_1"));
+        assertEquals(2, treeCounter.getCount());
+    }
+
+    @Test
+    public void idleChildren_onlyCollapseWhenIdle() throws Exception {
+        // 开启时已有的空闲子节点会被删除，有数量的子节点保留
+        assertNotNull(treeCounter.findNode(IdTestLeafNode_1));
+        treeCounter.reduceCount(IdTestLeafNode_1, 1);
+        assertNull(treeCounter.findNode(IdTestLeafNode_1));
+
+        treeCounter.addChildCount(IdTestDynamicNode, "conversation_1", 1);
+        final CountSubscription subscription = treeCounter.subscribe("conversation_1",
+                new TreeCounter.OnNodeUnreadCountChangeListener() {
+                    @Override
+                    public void onNodeUnreadCountChanged(CountNode node) {
+                    }
+                });
+        treeCounter.touchNode("conversation_1");
+        assertNotNull(treeCounter.findNode("conversation_1"));
+        subscription.unsubscribe();
+
+        treeCounter.addChildCount(IdTestDynamicNode, "conversation_2", 2);
+        treeCounter.reset();
+        assertNull(treeCounter.findNode("conversation_1"));
+        assertNull(treeCounter.findNode("conversation_2"));
+        assertEquals(0, treeCounter.getCount());
+    }
+
+    @Test
+    public void invalidDynamicChild_isIgnored() throws Exception {
+        treeCounter.addChildCount(IdTestDynamicNode, IdTestLeafNode_2, 1);
+        treeCounter.addChildCount(IdTestNodeRoot, "conversation_1", 1);
+        assertEquals(1, treeCounter.getCount());
+        assertNull(treeCounter.findNode("conversation_1"));
+
+        treeCounter.disableDynamicChildren(IdTestDynamicNode);
+        treeCounter.addChildCount(IdTestDynamicNode, "conversation_1", 1);
+        assertNull(treeCounter.findNode("conversation_1"));
+    }
+
+    @Test
+    public void collapseOnlyChild_keepsParentAsBranch() throws Exception {
+        treeCounter.reduceChildCount(IdTestDynamicNode, IdTestLeafNode_1, 1);
+        final CountNode dynamicNode = treeCounter.findNode(IdTestDynamicNode);
+        assertNull(treeCounter.findNode(IdTestLeafNode_1));
+        assertEquals(0, dynamicNode.getChildren().length);
+        assertFalse(dynamicNode.isLeaf());
+
+        // 分支节点不能直接修改数量，只能通过动态子节点
+        treeCounter.addCount(IdTestDynamicNode, 7);
+        assertEquals(0, treeCounter.getCount());
+        treeCounter.addChildCount(IdTestDynamicNode, "conversation_1", 2);
+        assertEquals(2, treeCounter.getCount(IdTestDynamicNode));
+
+        treeCounter.touchNode("conversation_1");
+        treeCounter.disableDynamicChildren(IdTestDynamicNode);
+        assertTrue(dynamicNode.isLeaf());
+    }
+
+    @Test
+    public void enableOnLeafWithCount_isIgnored() throws Exception {
+        treeCounter.applyCount(IdTestLeafNode_2, 3);
+        treeCounter.enableDynamicChildren(IdTestLeafNode_2, null);
+        assertTrue(treeCounter.findNode(IdTestLeafNode_2).isLeaf());
+        treeCounter.addChildCount(IdTestLeafNode_2, "conversation_1", 1);
+        assertNull(treeCounter.findNode("conversation_1"));
+        assertEquals(4, treeCounter.getCount());
+    }
+}
@@ -0,0 +1,166 @@
+package com.imasson.lib.treecounter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 移动节点的测试，参考{@link TreeCounter#moveNode(String, String)}
+ */
+public class MoveNodeUnitTest {
+
+    /*
+     * Test tree graph:
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     ├─ IdTestFolderNode_1
+     *     │   ├─ IdTestSubFolderNode
+     *     │   │   ├─ IdTestLeafNode_1
+     *     │   │   └─ IdTestLeafNode_2
+     *     │   └─ IdTestLeafNode_3
+     *     └─ IdTestFolderNode_2
+     *         └─ IdTestLeafNode_4
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot      = "testNodeRoot";
+    private static final String IdTestFolderNode_1  = "testFolderNode_1";
+    private static final String IdTestFolderNode_2  = "testFolderNode_2";
+    private static final String IdTestSubFolderNode = "testSubFolderNode";
+    private static final String IdTestLeafNode_1    = "testLeafNode_1";
+    private static final String IdTestLeafNode_2    = "testLeafNode_2";
+    private static final String IdTestLeafNode_3    = "testLeafNode_3";
+    private static final String IdTestLeafNode_4    = "testLeafNode_4";
+
+    private TreeCounter treeCounter;
+    private int fetchCount;
+
+    @Before
+    public void setUp() throws Exception {
+        final ICountFetcher fetcher = new ICountFetcher() {
+            @Override
+            public void loadCount(LoadCountCallback callback) {
+                fetchCount++;
+                callback.onLoadCount(this, 3);
+            }
+
+            @Override
+            public void updateCount(int count) {
+            }
+        };
+        treeCounter = new CountTreeBuilder()
+                .addNode(IdTestNodeRoot, null)
+                .addNode(IdTestFolderNode_1, IdTestNodeRoot)
+                .addNode(IdTestSubFolderNode, IdTestFolderNode_1)
+                .addNode(IdTestLeafNode_1, IdTestSubFolderNode, 1, null)
+                .addNode(IdTestLeafNode_2, IdTestSubFolderNode, 2, null)
+                .addNode(IdTestLeafNode_3, IdTestFolderNode_1, 0, null, fetcher)
+                .addNode(IdTestFolderNode_2, IdTestNodeRoot)
+                .addNode(IdTestLeafNode_4, IdTestFolderNode_2, 4, null)
+                .build();
+        treeCounter.reload();
+        fetchCount = 0;
+    }
+
+    @Test
+    public void moveSubtree_updatesBothPaths() throws Exception {
+        final CountNodeHandle handle = treeCounter.resolve(IdTestLeafNode_1);
+        treeCounter.moveNode(IdTestSubFolderNode, IdTestFolderNode_2);
+
+        assertEquals(3, treeCounter.getCount(IdTestFolderNode_1));
+        assertEquals(7, treeCounter.getCount(IdTestFolderNode_2));
+        assertEquals(10, treeCounter.getCount());
+        assertSame(treeCounter.findNode(IdTestFolderNode_2),
+                treeCounter.findNode(IdTestSubFolderNode).getParent());
+        assertEquals(0, fetchCount);
+
+        // 句柄和索引保持不变
+        treeCounter.addCount(handle, 1);
+        assertEquals(8, treeCounter.getCount(IdTestFolderNode_2));
+        assertEquals(3, treeCounter.getCount(IdTestFolderNode_1));
+
+        treeCounter.moveNode(IdTestLeafNode_3, IdTestSubFolderNode);
+        assertEquals(0, treeCounter.getCount(IdTestFolderNode_1));
+        assertEquals(11, treeCounter.getCount(IdTestFolderNode_2));
+        assertEquals(11, treeCounter.getCount());
+    }
+
+    @Test
+    public void move_notifiesEachPathNodeOnce() throws Exception {
+        final List<String> changedIds = new ArrayList<>();
+        treeCounter.setListener(new TreeCounter.OnNodeUnreadCountChangeListener() {
+            @Override
+            public void onNodeUnreadCountChanged(CountNode node) {
+                changedIds.add(node.getId());
+            }
+        });
+        treeCounter.moveNode(IdTestLeafNode_1, IdTestFolderNode_2);
+
+        assertEquals(4, changedIds.size());
+        assertEquals(IdTestSubFolderNode, changedIds.get(0));
+        assertTrue(changedIds.contains(IdTestFolderNode_1));
+        assertTrue(changedIds.contains(IdTestFolderNode_2));
+        assertEquals(IdTestNodeRoot, changedIds.get(3));
+        assertEquals(10, treeCounter.getCount());
+    }
+
+    @Test
+    public void moveInBatch_isDeferred() throws Exception {
+        treeCounter.beginBatchUpdate();
+        treeCounter.moveNode(IdTestSubFolderNode, IdTestFolderNode_2);
+        treeCounter.addCount(IdTestLeafNode_4, 1);
+        assertEquals(3, treeCounter.getCount(IdTestFolderNode_1));
+        treeCounter.endBatchUpdate();
+
+        assertEquals(3, treeCounter.getCount(IdTestFolderNode_1));
+        assertEquals(8, treeCounter.getCount(IdTestFolderNode_2));
+        assertEquals(11, treeCounter.getCount());
+    }
+
+    @Test
+    public void invalidMove_isIgnored() throws Exception {
+        treeCounter.moveNode(IdTestFolderNode_1, IdTestLeafNode_1);
+        treeCounter.moveNode(IdTestFolderNode_1, IdTestFolderNode_1);
+        treeCounter.moveNode(IdTestNodeRoot, IdTestFolderNode_2);
+        treeCounter.moveNode(IdTestLeafNode_1, "unknown");
+
+        assertSame(treeCounter.getRootNode(), treeCounter.findNode(IdTestFolderNode_1).getParent());
+        assertEquals(6, treeCounter.getCount(IdTestFolderNode_1));
+        assertEquals(10, treeCounter.getCount());
+    }
+
+    @Test
+    public void moveUnderLeafWithCount_isIgnored() throws Exception {
+        treeCounter.moveNode(IdTestLeafNode_1, IdTestLeafNode_4);
+        treeCounter.moveNode(IdTestLeafNode_1, IdTestLeafNode_3);
+
+        assertSame(treeCounter.findNode(IdTestSubFolderNode), treeCounter.findNode(IdTestLeafNode_1).getParent());
+        assertTrue(treeCounter.findNode(IdTestLeafNode_4).isLeaf());
+        assertTrue(treeCounter.findNode(IdTestLeafNode_3).isLeaf());
+        assertEquals(4, treeCounter.getCount(IdTestLeafNode_4));
+        assertEquals(10, treeCounter.getCount());
+
+        // 没有自己的数量和数据源的叶子节点可以变为父节点
+        treeCounter.applyCount(IdTestLeafNode_2, 0);
+        treeCounter.moveNode(IdTestLeafNode_1, IdTestLeafNode_2);
+        assertEquals(1, treeCounter.getCount(IdTestLeafNode_2));
+        assertEquals(8, treeCounter.getCount());
+    }
+
+    @Test
+    public void moveWithBypassedParent_keepsDisplayCount() throws Exception {
+        treeCounter.setBypass(IdTestFolderNode_2, true);
+        assertEquals(6, treeCounter.getCount());
+
+        treeCounter.moveNode(IdTestLeafNode_2, IdTestFolderNode_2);
+        assertEquals(4, treeCounter.getCount());
+        assertEquals(6, treeCounter.findNode(IdTestFolderNode_2).getCount());
+
+        treeCounter.moveNode(IdTestLeafNode_4, IdTestFolderNode_1);
+        assertEquals(8, treeCounter.getCount());
+    }
+}
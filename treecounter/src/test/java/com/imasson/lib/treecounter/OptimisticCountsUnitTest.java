@@ -0,0 +1,129 @@
+package com.imasson.lib.treecounter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 乐观修改的确认和拒绝的测试，参考{@link OptimisticCounts}
+ */
+public class OptimisticCountsUnitTest {
+
+    /*
+     * Test tree graph:
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     ├─ IdTestParentNode
+     *     │   ├─ IdTestLeafNode_1
+     *     │   └─ IdTestLeafNode_2
+     *     └─ IdTestLeafNode_3
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot      = "testNodeRoot";
+    private static final String IdTestParentNode    = "testParentNode";
+    private static final String IdTestLeafNode_1    = "testLeafNode_1";
+    private static final String IdTestLeafNode_2    = "testLeafNode_2";
+    private static final String IdTestLeafNode_3    = "testLeafNode_3";
+
+    private TreeCounter treeCounter;
+    private OptimisticCounts optimisticCounts;
+
+    @Before
+    public void setUp() throws Exception {
+        treeCounter = new CountTreeBuilder()
+                .addNode(IdTestNodeRoot, null)
+                .addNode(IdTestParentNode, IdTestNodeRoot)
+                .addNode(IdTestLeafNode_1, IdTestParentNode, 5, null)
+                .addNode(IdTestLeafNode_2, IdTestParentNode, 2, null)
+                .addNode(IdTestLeafNode_3, IdTestNodeRoot, 1, null)
+                .build();
+        optimisticCounts = new OptimisticCounts(treeCounter);
+    }
+
+    @Test
+    public void acknowledge_keepsOptimisticCount() throws Exception {
+        optimisticCounts.markRead("op_1", IdTestLeafNode_1);
+        assertEquals(0, treeCounter.getCount(IdTestLeafNode_1));
+        assertEquals(5, optimisticCounts.getConfirmedCount(IdTestLeafNode_1));
+        assertEquals(-5, optimisticCounts.getPendingDelta(IdTestLeafNode_1));
+        assertEquals(3, treeCounter.getCount());
+
+        optimisticCounts.acknowledge("op_1");
+        assertEquals(0, optimisticCounts.getPendingOperationCount());
+        assertEquals(0, optimisticCounts.getConfirmedCount(IdTestLeafNode_1));
+        assertEquals(0, optimisticCounts.getPendingDelta(IdTestLeafNode_1));
+        assertEquals(3, treeCounter.getCount());
+    }
+
+    @Test
+    public void reject_restoresOnlyItsDelta() throws Exception {
+        optimisticCounts.applyDelta("op_1", IdTestLeafNode_1, -2);
+        optimisticCounts.applyDelta("op_2", IdTestLeafNode_1, -1);
+        assertEquals(2, treeCounter.getCount(IdTestLeafNode_1));
+
+        // 期间收到新消息
+        treeCounter.addCount(IdTestLeafNode_1, 4);
+        assertEquals(6, treeCounter.getCount(IdTestLeafNode_1));
+
+        optimisticCounts.reject("op_1");
+        assertEquals(8, treeCounter.getCount(IdTestLeafNode_1));
+        assertEquals(9, optimisticCounts.getConfirmedCount(IdTestLeafNode_1));
+        optimisticCounts.acknowledge("op_2");
+        assertEquals(8, treeCounter.getCount(IdTestLeafNode_1));
+        assertEquals(11, treeCounter.getCount());
+    }
+
+    @Test
+    public void confirmedCount_isLayeredUnderPendingDeltas() throws Exception {
+        optimisticCounts.markRead("op_1", IdTestLeafNode_2);
+        optimisticCounts.confirm(IdTestLeafNode_2, 4);
+        assertEquals(2, treeCounter.getCount(IdTestLeafNode_2));
+
+        optimisticCounts.acknowledge("op_1", 1);
+        assertEquals(1, treeCounter.getCount(IdTestLeafNode_2));
+        assertEquals(7, treeCounter.getCount());
+
+        optimisticCounts.confirm(IdTestLeafNode_3, 3);
+        assertEquals(3, treeCounter.getCount(IdTestLeafNode_3));
+    }
+
+    @Test
+    public void clampedCount_restoresExactly() throws Exception {
+        optimisticCounts.applyDelta("op_1", IdTestLeafNode_3, -3);
+        optimisticCounts.applyDelta("op_2", IdTestLeafNode_3, 1);
+        assertEquals(0, treeCounter.getCount(IdTestLeafNode_3));
+
+        optimisticCounts.reject("op_1");
+        assertEquals(2, treeCounter.getCount(IdTestLeafNode_3));
+        optimisticCounts.reject("op_2");
+        assertEquals(1, treeCounter.getCount(IdTestLeafNode_3));
+    }
+
+    @Test
+    public void settlement_onlyNotifiesAffectedPath() throws Exception {
+        optimisticCounts.markRead("op_1", IdTestLeafNode_1);
+        final List<String> changedIds = new ArrayList<>();
+        treeCounter.setListener(new TreeCounter.OnNodeUnreadCountChangeListener() {
+            @Override
+            public void onNodeUnreadCountChanged(CountNode node) {
+                changedIds.add(node.getId());
+            }
+        });
+
+        optimisticCounts.reject("op_1");
+        assertEquals(3, changedIds.size());
+        assertFalse(changedIds.contains(IdTestLeafNode_2));
+        assertFalse(changedIds.contains(IdTestLeafNode_3));
+
+        optimisticCounts.acknowledge("unknown");
+        optimisticCounts.applyDelta("op_2", "unknown", 1);
+        optimisticCounts.applyDelta("op_3", IdTestParentNode, 1);
+        assertEquals(0, optimisticCounts.getPendingOperationCount());
+        assertEquals(3, changedIds.size());
+    }
+}
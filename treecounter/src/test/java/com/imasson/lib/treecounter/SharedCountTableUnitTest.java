@@ -0,0 +1,140 @@
+package com.imasson.lib.treecounter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link SharedCountTable}的测试，使用普通文件模拟跨进程的共享内存
+ */
+public class SharedCountTableUnitTest {
+
+    /*
+     * Test tree graph:
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     ├─ IdTestBypassNode [Bypass]
+     *     │   ├─ IdTestLeafNode_1 (2)
+     *     │   └─ IdTestLeafNode_2 (3)
+     *     └─ IdTestLeafNode_3 (4)
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot      = "testNodeRoot";
+    private static final String IdTestBypassNode    = "testBypassNode";
+    private static final String IdTestLeafNode_1    = "testLeafNode_1";
+    private static final String IdTestLeafNode_2    = "testLeafNode_2";
+    private static final String IdTestLeafNode_3    = "testLeafNode_3";
+
+    private File tableFile;
+    private TreeCounter treeCounter;
+
+    @Before
+    public void setUp() throws Exception {
+        tableFile = File.createTempFile("counts", ".table");
+        treeCounter = new CountTreeBuilder()
+                .addNode(IdTestNodeRoot, null)
+                .addNode(IdTestBypassNode, IdTestNodeRoot, 0, TreeCounter.BypassPolicy)
+                .addNode(IdTestLeafNode_1, IdTestBypassNode, 2, TreeCounter.ZeroSelfPolicy)
+                .addNode(IdTestLeafNode_2, IdTestBypassNode, 3, TreeCounter.ZeroSelfPolicy)
+                .addNode(IdTestLeafNode_3, IdTestNodeRoot, 4, null)
+                .build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        //noinspection ResultOfMethodCallIgnored
+        tableFile.delete();
+    }
+
+    @Test
+    public void publishAndRead_isCorrect() throws Exception {
+        final SharedCountTable.Writer writer = SharedCountTable.publish(treeCounter, tableFile);
+        final SharedCountTable table = SharedCountTable.open(tableFile);
+
+        assertEquals(5, table.size());
+        assertEquals(9, table.getCount());
+        assertEquals(5, table.getCount(IdTestBypassNode));
+        assertEquals(0, table.getCount("unknown"));
+
+        treeCounter.touchNode(IdTestBypassNode);
+        assertTrue(table.isBypassed(IdTestBypassNode));
+        assertEquals(0, table.getCount(IdTestBypassNode));
+        assertEquals(5, table.getRawCount(IdTestBypassNode));
+        assertEquals(4, table.getCount());
+
+        treeCounter.addCount(IdTestLeafNode_1, 10);
+        assertEquals(12, table.getCount(IdTestLeafNode_1));
+        assertEquals(19, table.getCount());
+
+        treeCounter.reset();
+        assertEquals(0, table.getCount());
+        assertEquals(0, table.getCount(IdTestLeafNode_3));
+
+        // 关闭之后不再发布
+        writer.close();
+        treeCounter.addCount(IdTestLeafNode_3, 1);
+        assertEquals(0, table.getCount());
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void openInvalidFile_throws() throws Exception {
+        SharedCountTable.open(tableFile);
+    }
+
+    @Test
+    public void republish_keepsOpenReadersValid() throws Exception {
+        final SharedCountTable.Writer writer = SharedCountTable.publish(treeCounter, tableFile);
+        final SharedCountTable oldTable = SharedCountTable.open(tableFile);
+        writer.close();
+
+        // 节点树结构变化之后重新发布，已经打开的读取者继续读取原来的文件
+        treeCounter.addNode(IdTestNodeRoot, new CountNode("newLeaf"));
+        treeCounter.addCount("newLeaf", 6);
+        SharedCountTable.publish(treeCounter, tableFile);
+        assertEquals(5, oldTable.size());
+        assertEquals(9, oldTable.getCount());
+
+        final SharedCountTable newTable = SharedCountTable.open(tableFile);
+        assertEquals(6, newTable.size());
+        assertEquals(15, newTable.getCount());
+        assertFalse(new File(tableFile.getPath() + ".tmp").exists());
+    }
+
+    /**
+     * 写入时并发读取，每次读取的值都应该来自某一次完整的写入
+     */
+    @Test
+    public void concurrentRead_isConsistent() throws Exception {
+        SharedCountTable.publish(treeCounter, tableFile);
+        final SharedCountTable table = SharedCountTable.open(tableFile);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<String> error = new AtomicReference<>();
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running.get()) {
+                    final int count = table.getCount(IdTestLeafNode_3);
+                    if (count < 4 || count > 10004) {
+                        error.set("Unexpected count: " + count);
+                    }
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 10000; i++) {
+            treeCounter.addCount(IdTestLeafNode_3, 1);
+        }
+        running.set(false);
+        reader.join();
+
+        assertNull(error.get());
+        assertEquals(10004, table.getCount(IdTestLeafNode_3));
+    }
+}
@@ -3,6 +3,10 @@ package com.imasson.lib.treecounter;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import static org.junit.Assert.*;
 
 /**
@@ -169,4 +173,83 @@ public class TouchNodeUnitTest {
         assertEquals(0, treeCounter.getCount(IdTestLeafNode_4));
         assertEquals(originTotalCount - originParentCount, treeCounter.getCount());
     }
+
+    @Test
+    public void zeroDescendantPolicy_notifiesEachNodeOnce() throws Exception {
+        final List<String> notifiedIds = new ArrayList<>();
+        treeCounter.setListener(new TreeCounter.OnNodeUnreadCountChangeListener() {
+            @Override
+            public void onNodeUnreadCountChanged(CountNode node) {
+                notifiedIds.add(node.getId());
+            }
+        });
+
+        treeCounter.touchNode(IdTestZeroDescendantNode);
+
+        assertEquals(4, notifiedIds.size());
+        assertTrue(notifiedIds.containsAll(Arrays.asList(IdTestLeafNode_3, IdTestLeafNode_4,
+                IdTestZeroDescendantNode, IdTestNodeRoot)));
+        assertEquals(0, fakePersistingCount3);
+        assertEquals(0, fakePersistingCount4);
+    }
+
+    @Test
+    public void clearSubtree_isCorrect() throws Exception {
+        treeCounter.clearSubtree(IdTestNodeRoot);
+
+        assertEquals(0, treeCounter.getCount());
+        assertEquals(0, treeCounter.getCount(IdTestLeafNode_1));
+        assertEquals(0, treeCounter.getCount(IdTestLeafNode_4));
+        assertEquals(0, fakePersistingCount1);
+        assertEquals(0, fakePersistingCount4);
+
+        treeCounter.addCount(IdTestLeafNode_2, 1);
+        assertEquals(1, treeCounter.getCount(IdTestBypassNode));
+        assertEquals(1, treeCounter.getCount());
+    }
+
+    @Test
+    public void touchNodes_isCorrect() throws Exception {
+        final int originTotalCount = treeCounter.getCount();
+        final int[] notifyCount = new int[1];
+        treeCounter.setListener(new TreeCounter.OnNodeUnreadCountChangeListener() {
+            @Override
+            public void onNodeUnreadCountChanged(CountNode node) {
+                notifyCount[0]++;
+            }
+        });
+
+        treeCounter.touchNodes(Arrays.asList(IdTestLeafNode_1, IdTestLeafNode_2));
+
+        assertEquals(0, treeCounter.getCount(IdTestBypassNode));
+        assertEquals(originTotalCount - COUNT_INIT_NODE_1 - COUNT_INIT_NODE_2, treeCounter.getCount());
+        // 两个叶子节点、共同的父节点和根节点各通知一次
+        assertEquals(4, notifyCount[0]);
+    }
+
+    @Test
+    public void touchNodesWithBypassPolicy_notifiesOnce() throws Exception {
+        final TreeCounter bypassCounter = new CountTreeBuilder()
+                .addNode(IdTestNodeRoot, null)
+                .addNode(IdTestBypassNode, IdTestNodeRoot)
+                .addNode(IdTestLeafNode_1, IdTestBypassNode, 2, TreeCounter.BypassPolicy)
+                .addNode(IdTestLeafNode_2, IdTestBypassNode, 3, TreeCounter.BypassPolicy)
+                .build();
+        final List<String> changedIds = new ArrayList<>();
+        bypassCounter.setListener(new TreeCounter.OnNodeUnreadCountChangeListener() {
+            @Override
+            public void onNodeUnreadCountChanged(CountNode node) {
+                changedIds.add(node.getId());
+            }
+        });
+
+        bypassCounter.touchNodes(Arrays.asList(IdTestLeafNode_1, IdTestLeafNode_2));
+
+        assertEquals(0, bypassCounter.getCount());
+        assertTrue(bypassCounter.findNode(IdTestLeafNode_1).isBypassed());
+        assertEquals(3, bypassCounter.findNode(IdTestLeafNode_2).getCount());
+        // 两个叶子节点、共同的父节点和根节点各通知一次
+        assertEquals(Arrays.asList(IdTestLeafNode_1, IdTestLeafNode_2, IdTestBypassNode, IdTestNodeRoot),
+                changedIds);
+    }
 }
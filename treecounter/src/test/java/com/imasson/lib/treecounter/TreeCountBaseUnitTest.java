@@ -213,4 +213,45 @@ public class TreeCountBaseUnitTest {
         assertTrue(notifyFlags[1]);
         assertTrue(notifyFlags[2]);
     }
-}
\ No newline at end of file
+
+    /**
+     * 测试{@link TreeCounter#reset()}之后各节点数量值为0，且之后的更新不会受到重置前的数值影响
+     * @throws Exception
+     */
+    @Test
+    public void resetTreeCount_isCorrect() throws Exception {
+        treeCounter.applyCount(IdTestLeafNode_1, 3);
+        treeCounter.applyCount(IdTestLeafNode_2, 4);
+        treeCounter.applyCount(IdTestSingleNode, 5);
+
+        final int[] resetCalls = new int[1];
+        final int[] nodeCalls = new int[1];
+        class ResetListener implements TreeCounter.OnNodeUnreadCountChangeListener,
+                TreeCounter.OnTreeResetListener {
+            @Override
+            public void onNodeUnreadCountChanged(CountNode node) {
+                nodeCalls[0]++;
+            }
+
+            @Override
+            public void onTreeReset(TreeCounter counter) {
+                resetCalls[0]++;
+            }
+        }
+        treeCounter.setListener(new ResetListener());
+
+        treeCounter.reset();
+
+        assertEquals(1, resetCalls[0]);
+        assertEquals(0, nodeCalls[0]);
+        assertEquals(0, treeCounter.getCount());
+        assertEquals(0, treeCounter.getCount(IdTestParentNode));
+        assertEquals(0, treeCounter.getCount(IdTestLeafNode_2));
+
+        treeCounter.addCount(IdTestLeafNode_1, 1);
+        assertEquals(1, treeCounter.getCount(IdTestLeafNode_1));
+        assertEquals(0, treeCounter.getCount(IdTestLeafNode_2));
+        assertEquals(1, treeCounter.getCount(IdTestParentNode));
+        assertEquals(1, treeCounter.getCount());
+    }
+}
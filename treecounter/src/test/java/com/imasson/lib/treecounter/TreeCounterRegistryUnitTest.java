@@ -0,0 +1,183 @@
+package com.imasson.lib.treecounter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link TreeCounterRegistry}的测试，包括与{@link TreeCounter}行为的一致性以及租户的淘汰和重新加载
+ */
+public class TreeCounterRegistryUnitTest {
+
+    /*
+     * Test tree graph:
+     * -------------------------------------------
+     *    IdTestNodeRoot
+     *     ├─ IdTestBypassNode [Bypass]
+     *     │   ├─ IdTestLeafNode_1 [ZeroSelf]
+     *     │   └─ IdTestLeafNode_2 [ZeroSelf]
+     *     └─ IdTestClearNode [ZeroDescendant]
+     *         ├─ IdTestLeafNode_3
+     *         └─ IdTestLeafNode_4
+     * -------------------------------------------
+     */
+
+    private static final String IdTestNodeRoot      = "testNodeRoot";
+    private static final String IdTestBypassNode    = "testBypassNode";
+    private static final String IdTestClearNode     = "testClearNode";
+    private static final String IdTestLeafNode_1    = "testLeafNode_1";
+    private static final String IdTestLeafNode_2    = "testLeafNode_2";
+    private static final String IdTestLeafNode_3    = "testLeafNode_3";
+    private static final String IdTestLeafNode_4    = "testLeafNode_4";
+
+    private static final String[] AllIds = {
+            IdTestNodeRoot, IdTestBypassNode, IdTestClearNode,
+            IdTestLeafNode_1, IdTestLeafNode_2, IdTestLeafNode_3, IdTestLeafNode_4
+    };
+    private static final String[] LeafIds = {
+            IdTestLeafNode_1, IdTestLeafNode_2, IdTestLeafNode_3, IdTestLeafNode_4
+    };
+
+    private File snapshotDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        snapshotDirectory = File.createTempFile("registry", "");
+        assertTrue(snapshotDirectory.delete());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        final File[] files = snapshotDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        snapshotDirectory.delete();
+    }
+
+    private static TreeCounter createTreeCounter() {
+        return new CountTreeBuilder()
+                .addNode(IdTestNodeRoot, null)
+                .addNode(IdTestBypassNode, IdTestNodeRoot, 0, TreeCounter.BypassPolicy)
+                .addNode(IdTestLeafNode_1, IdTestBypassNode, 0, TreeCounter.ZeroSelfPolicy)
+                .addNode(IdTestLeafNode_2, IdTestBypassNode, 0, TreeCounter.ZeroSelfPolicy)
+                .addNode(IdTestClearNode, IdTestNodeRoot, 0, TreeCounter.ZeroDescendantPolicy)
+                .addNode(IdTestLeafNode_3, IdTestClearNode, 0, null)
+                .addNode(IdTestLeafNode_4, IdTestClearNode, 0, null)
+                .build();
+    }
+
+    @Test
+    public void operations_matchTreeCounter() throws Exception {
+        final TreeCounter reference = createTreeCounter();
+        final TreeCounterRegistry registry = new TreeCounterRegistry(
+                CountTreeSchema.from(createTreeCounter()), snapshotDirectory);
+        final String tenantId = "tenant";
+
+        final Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            final String leafId = LeafIds[random.nextInt(LeafIds.length)];
+            final String anyId = AllIds[random.nextInt(AllIds.length)];
+            switch (random.nextInt(5)) {
+                case 0:
+                    reference.addCount(leafId, 3);
+                    registry.addCount(tenantId, leafId, 3);
+                    break;
+                case 1:
+                    reference.reduceCount(leafId, 2);
+                    registry.reduceCount(tenantId, leafId, 2);
+                    break;
+                case 2:
+                    final int count = random.nextInt(10);
+                    reference.applyCount(leafId, count);
+                    registry.applyCount(tenantId, leafId, count);
+                    break;
+                default:
+                    reference.touchNode(anyId);
+                    registry.touchNode(tenantId, anyId);
+                    break;
+            }
+            for (String id : AllIds) {
+                assertEquals(id, reference.getCount(id), registry.getCount(tenantId, id));
+            }
+        }
+    }
+
+    @Test
+    public void evictAndReload_isCorrect() throws Exception {
+        final TreeCounterRegistry registry = new TreeCounterRegistry(
+                CountTreeSchema.from(createTreeCounter()), snapshotDirectory);
+        registry.setMaxResidentTenants(2);
+
+        for (int i = 0; i < 10; i++) {
+            registry.addCount("tenant_" + i, IdTestLeafNode_1, i + 1);
+            registry.addCount("tenant_" + i, IdTestLeafNode_3, 1);
+        }
+        registry.touchNode("tenant_3", IdTestBypassNode);
+        assertEquals(2, registry.getResidentTenantCount());
+
+        for (int i = 0; i < 10; i++) {
+            final String tenantId = "tenant_" + i;
+            assertEquals(i + 1, registry.getCount(tenantId, IdTestLeafNode_1));
+            assertEquals(i == 3 ? 1 : i + 2, registry.getCount(tenantId));
+            assertEquals(i == 3, registry.isBypassed(tenantId, IdTestBypassNode));
+        }
+        assertEquals(2, registry.getResidentTenantCount());
+
+        // 未访问过的租户都是0，重置后不再占用快照文件
+        assertEquals(0, registry.getCount("unknown"));
+        registry.reset("tenant_0");
+        assertEquals(0, registry.getCount("tenant_0"));
+    }
+
+    @Test
+    public void residentBytesLimit_isCorrect() throws Exception {
+        final TreeCounterRegistry registry = new TreeCounterRegistry(
+                CountTreeSchema.from(createTreeCounter()), snapshotDirectory);
+        registry.addCount("tenant_0", IdTestLeafNode_2, 1);
+        final long tenantBytes = registry.getResidentBytes();
+        registry.setMaxResidentBytes(tenantBytes * 3);
+
+        for (int i = 1; i < 10; i++) {
+            registry.addCount("tenant_" + i, IdTestLeafNode_2, 1);
+        }
+        assertEquals(3, registry.getResidentTenantCount());
+        assertTrue(registry.getResidentBytes() <= tenantBytes * 3);
+        assertEquals(1, registry.getCount("tenant_0"));
+    }
+
+    @Test
+    public void corruptSnapshot_isRebuilt() throws Exception {
+        final TreeCounterRegistry registry = new TreeCounterRegistry(
+                CountTreeSchema.from(createTreeCounter()), snapshotDirectory);
+        registry.setMaxResidentTenants(1);
+        registry.addCount("tenant_0", IdTestLeafNode_1, 5);
+        registry.addCount("tenant_1", IdTestLeafNode_1, 1);
+
+        // 截断已经写出的快照，模拟写入时掉电
+        final File[] files = snapshotDirectory.listFiles();
+        assertNotNull(files);
+        assertEquals(1, files.length);
+        final RandomAccessFile snapshot = new RandomAccessFile(files[0], "rw");
+        try {
+            snapshot.setLength(6);
+        } finally {
+            snapshot.close();
+        }
+
+        assertEquals(0, registry.getCount("tenant_0"));
+        registry.addCount("tenant_0", IdTestLeafNode_3, 2);
+        assertEquals(2, registry.getCount("tenant_0"));
+        assertEquals(1, registry.getCount("tenant_1"));
+    }
+}